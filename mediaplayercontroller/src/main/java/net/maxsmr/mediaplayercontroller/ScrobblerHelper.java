@@ -1,18 +1,29 @@
 package net.maxsmr.mediaplayercontroller;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import android.text.TextUtils;
 
 import net.maxsmr.commonutils.android.media.MetadataRetriever;
+import net.maxsmr.commonutils.data.CompareUtils;
 import net.maxsmr.commonutils.logger.BaseLogger;
 import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
 import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
+import net.maxsmr.mediaplayercontroller.scrobble.ScrobbleJournal;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 public final class ScrobblerHelper {
 
     private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(ScrobblerHelper.class);
@@ -26,6 +37,12 @@ public final class ScrobblerHelper {
         return state == BaseMediaPlayerController.State.IDLE || state == BaseMediaPlayerController.State.PAUSED || state == BaseMediaPlayerController.State.PLAYING;
     }
 
+    private static boolean isFlapState(@NotNull BaseMediaPlayerController.State state) {
+        return state == BaseMediaPlayerController.State.PAUSED || state == BaseMediaPlayerController.State.PLAYING;
+    }
+
+    public static final long DEFAULT_COALESCE_WINDOW_MS = 500;
+
     private ScrobblerHelper(@NotNull Context context, @NotNull BaseMediaPlayerController<?> mpc) {
         mContext = context;
         mMpc = mpc;
@@ -46,19 +63,82 @@ public final class ScrobblerHelper {
     @NotNull
     private final MediaPlayerCallbacks mCallbacks = new MediaPlayerCallbacks();
 
-    private boolean mScrobblingEnabled = true;
+    /**
+     * metadata extraction and broadcasts are done here, so media thread isn't blocked
+     */
+    @NotNull
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, ScrobblerHelper.class.getSimpleName());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile boolean mScrobblingEnabled = true;
+
+    private volatile long mCoalesceWindowMs = DEFAULT_COALESCE_WINDOW_MS;
+
+    /**
+     * PAUSED/PLAYING event, which waits for coalesce window; guarded by itself
+     */
+    @Nullable
+    private Event mPendingEvent;
+
+    @Nullable
+    private ScheduledFuture<?> mPendingFuture;
+
+    // fields below are accessed only on executor
 
     @NotNull
     private BaseMediaPlayerController.State mLastState = BaseMediaPlayerController.State.IDLE;
 
     private MetadataRetriever.MediaMetadata mLastMetadata;
 
+    @Nullable
+    private Object mCachedTrackKey;
+
+    @Nullable
+    private MetadataRetriever.MediaMetadata mCachedMetadata;
+
+    @Nullable
+    private Object mLastTrackKey;
+
+    @Nullable
+    private volatile ScrobbleJournal mJournal;
+
     private static boolean checkMetadata(MetadataRetriever.MediaMetadata metadata) {
         return metadata != null && !TextUtils.isEmpty(metadata.artist) && !TextUtils.isEmpty(metadata.title) && metadata.durationMs > 0;
     }
 
-    private synchronized void notifyScrobblerStateChanged(@NotNull BaseMediaPlayerController.State newState, @NotNull BaseMediaPlayerController.State oldState, @Nullable MetadataRetriever.MediaMetadata metadata, long position) {
-        logger.d("notifyScrobblerStateChanged(), newState=" + newState + ", oldState=" + oldState + ", metadata=" + metadata + ", position=" + position);
+    @Nullable
+    public ScrobbleJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * @param journal if set, delivered state changes and completions are also appended there
+     *                (regardless of metadata presence), so they are kept when no scrobbler is listening
+     */
+    public void setJournal(@Nullable ScrobbleJournal journal) {
+        mJournal = journal;
+    }
+
+    public long getCoalesceWindowMs() {
+        return mCoalesceWindowMs;
+    }
+
+    /**
+     * @param coalesceWindowMs PAUSED/PLAYING changes of same track within this time are merged into one broadcast
+     *                         (or none, if state returns to last broadcasted one); 0 to disable
+     */
+    public void setCoalesceWindowMs(long coalesceWindowMs) {
+        if (coalesceWindowMs < 0) {
+            throw new IllegalArgumentException("incorrect coalesceWindowMs: " + coalesceWindowMs);
+        }
+        mCoalesceWindowMs = coalesceWindowMs;
+    }
+
+    private void notifyScrobblerStateChanged(@NotNull BaseMediaPlayerController.State newState, @NotNull BaseMediaPlayerController.State oldState, @Nullable Object trackKey, long position) {
+        logger.d("notifyScrobblerStateChanged(), newState=" + newState + ", oldState=" + oldState + ", track=" + trackKey + ", position=" + position);
 
         if (mMpc == null) {
             throw new IllegalStateException(BaseMediaPlayerController.class.getSimpleName() + " is not attached");
@@ -68,54 +148,196 @@ public final class ScrobblerHelper {
             throw new IllegalStateException(BaseMediaPlayerController.class.getSimpleName() + " was released");
         }
 
-        if (isScrobbleState(newState)) {
+        if (!isScrobbleState(newState) || !mScrobblingEnabled) {
+            return;
+        }
+
+        final Event event = new Event(newState, oldState, trackKey, position);
+        final long window = mCoalesceWindowMs;
+        synchronized (mExecutor) {
+            if (mExecutor.isShutdown()) {
+                return;
+            }
+            if (mPendingEvent != null) {
+                if (window > 0 && isFlapState(newState) && CompareUtils.objectsEqual(trackKey, mPendingEvent.trackKey)) {
+                    // flap: keep first old state, so PLAYING -> PAUSED -> PLAYING ends where it started
+                    mPendingEvent = new Event(newState, mPendingEvent.oldState, trackKey, position);
+                    return;
+                }
+                flushPendingEvent();
+            }
+            if (window > 0 && isFlapState(newState)) {
+                mPendingEvent = event;
+                mPendingFuture = mExecutor.schedule(this::deliverPending, window, TimeUnit.MILLISECONDS);
+            } else {
+                mExecutor.execute(() -> deliver(event));
+            }
+        }
+    }
+
+    private void deliverPending() {
+        final Event pending;
+        synchronized (mExecutor) {
+            pending = mPendingEvent;
+            mPendingEvent = null;
+            mPendingFuture = null;
+        }
+        if (pending != null) {
+            deliver(pending);
+        }
+    }
+
+    /**
+     * must be called under mExecutor lock
+     */
+    private void flushPendingEvent() {
+        if (mPendingEvent != null) {
+            if (mPendingFuture != null) {
+                mPendingFuture.cancel(false);
+                mPendingFuture = null;
+            }
+            final Event pending = mPendingEvent;
+            mPendingEvent = null;
+            mExecutor.execute(() -> deliver(pending));
+        }
+    }
+
+    private void notifyCompletion(@Nullable Object trackKey, long durationMs) {
+        if (!mScrobblingEnabled || mJournal == null) {
+            return;
+        }
+        synchronized (mExecutor) {
+            if (!mExecutor.isShutdown()) {
+                // keep order with coalesced event
+                flushPendingEvent();
+                mExecutor.execute(() -> appendToJournal(ScrobbleJournal.Type.COMPLETE, trackKey, durationMs));
+            }
+        }
+    }
 
-            if (mScrobblingEnabled) {
+    /**
+     * called on executor
+     */
+    private void appendToJournal(@NotNull ScrobbleJournal.Type type, @Nullable Object trackKey, long positionMs) {
+        final ScrobbleJournal journal = mJournal;
+        if (journal == null || journal.isClosed()) {
+            return;
+        }
+        final MetadataRetriever.MediaMetadata metadata = getMetadata(trackKey);
+        try {
+            journal.append(type, trackKey != null ? trackKey.toString() : null, positionMs,
+                    metadata != null ? metadata.durationMs : -1,
+                    metadata != null ? metadata.artist : null,
+                    metadata != null ? metadata.title : null,
+                    metadata != null ? metadata.album : null);
+        } catch (IOException | IllegalStateException e) {
+            logger.e("can't append " + type + " to journal", e);
+        }
+    }
 
-                if (newState != mLastState) {
+    /**
+     * called on executor
+     */
+    private void deliver(@NotNull Event event) {
+        final BaseMediaPlayerController.State newState = event.newState;
 
-                    if (newState != BaseMediaPlayerController.State.IDLE) {
+        if (newState == mLastState) {
+            return;
+        }
 
-                        if (checkMetadata(metadata)) {
+        if (newState == BaseMediaPlayerController.State.IDLE) {
+            if (mLastTrackKey != null) {
+                appendToJournal(ScrobbleJournal.Type.STOP, mLastTrackKey, -1);
+            }
+        } else if (newState == BaseMediaPlayerController.State.PAUSED) {
+            appendToJournal(ScrobbleJournal.Type.PAUSE, event.trackKey, event.position);
+        } else {
+            final boolean resumed = event.oldState == BaseMediaPlayerController.State.PAUSED && mLastState == BaseMediaPlayerController.State.PAUSED;
+            appendToJournal(resumed ? ScrobbleJournal.Type.RESUME : ScrobbleJournal.Type.START, event.trackKey, event.position);
+        }
+        mLastTrackKey = newState != BaseMediaPlayerController.State.IDLE ? event.trackKey : null;
 
-                            Intent scrobbleIntent = new Intent();
+        if (newState != BaseMediaPlayerController.State.IDLE) {
 
-                            switch (newState) {
+            final MetadataRetriever.MediaMetadata metadata = getMetadata(event.trackKey);
 
-                                case PAUSED:
-                                    scrobbleIntent.setAction(BroadcastIntentActions.ACTION_LASTFMAPI_PAUSERESUME);
-                                    break;
+            if (checkMetadata(metadata)) {
 
-                                case PLAYING:
-                                    if (oldState == BaseMediaPlayerController.State.PAUSED) {
-                                        scrobbleIntent.setAction(BroadcastIntentActions.ACTION_LASTFMAPI_PAUSERESUME);
-                                        if (position < 0 || position > metadata.durationMs) {
-                                            throw new IllegalArgumentException("incorrect track position: " + position);
-                                        }
-                                        scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_POSITION, position);
-                                    } else {
-                                        scrobbleIntent.setAction(BroadcastIntentActions.ACTION_LASTFMAPI_METACHANGED);
-                                        scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_TRACK, metadata.title);
-                                        scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_ARTIST, metadata.artist);
-                                        scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_ALBUM, metadata.album);
-                                        scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_DURATION, metadata.durationMs);
-                                    }
-                                    break;
-                            }
+                Intent scrobbleIntent = new Intent();
 
-                            mContext.sendBroadcast(scrobbleIntent);
-                            mLastMetadata = metadata;
-                        }
+                switch (newState) {
 
-                    } else {
-                        mContext.sendBroadcast(new Intent(BroadcastIntentActions.ACTION_LASTFMAPI_STOP));
-                        mLastMetadata = null;
-                    }
+                    case PAUSED:
+                        scrobbleIntent.setAction(BroadcastIntentActions.ACTION_LASTFMAPI_PAUSERESUME);
+                        break;
 
-                    mLastState = newState;
+                    case PLAYING:
+                        if (event.oldState == BaseMediaPlayerController.State.PAUSED && mLastState == BaseMediaPlayerController.State.PAUSED) {
+                            scrobbleIntent.setAction(BroadcastIntentActions.ACTION_LASTFMAPI_PAUSERESUME);
+                            if (event.position < 0 || event.position > metadata.durationMs) {
+                                logger.e("incorrect track position: " + event.position);
+                            } else {
+                                scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_POSITION, event.position);
+                            }
+                        } else {
+                            scrobbleIntent.setAction(BroadcastIntentActions.ACTION_LASTFMAPI_METACHANGED);
+                            scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_TRACK, metadata.title);
+                            scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_ARTIST, metadata.artist);
+                            scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_ALBUM, metadata.album);
+                            scrobbleIntent.putExtra(BroadcastIntentExtras.EXTRA_DURATION, metadata.durationMs);
+                        }
+                        break;
                 }
+
+                mContext.sendBroadcast(scrobbleIntent);
+                mLastMetadata = metadata;
             }
+
+        } else {
+            mContext.sendBroadcast(new Intent(BroadcastIntentActions.ACTION_LASTFMAPI_STOP));
+            mLastMetadata = null;
         }
+
+        mLastState = newState;
+    }
+
+    /**
+     * @return metadata of specified track, extracted once per track (e.g. not on each loop)
+     */
+    @Nullable
+    private MetadataRetriever.MediaMetadata getMetadata(@Nullable Object trackKey) {
+        if (trackKey == null) {
+            return null;
+        }
+        if (!trackKey.equals(mCachedTrackKey)) {
+            mCachedMetadata = extractMetadata(trackKey);
+            mCachedTrackKey = trackKey;
+        }
+        return mCachedMetadata;
+    }
+
+    /**
+     * same as {@link BaseMediaPlayerController#getCurrentTrackMetatada()}, but for captured track
+     */
+    @Nullable
+    private MetadataRetriever.MediaMetadata extractMetadata(@NotNull Object trackKey) {
+        if (trackKey instanceof Uri) {
+            final Uri uri = (Uri) trackKey;
+            return TextUtils.isEmpty(uri.getScheme()) || uri.getScheme().equalsIgnoreCase(ContentResolver.SCHEME_FILE) ?
+                    MetadataRetriever.extractMetadata(mContext, uri) : null;
+        } else if (trackKey instanceof AssetFileDescriptor) {
+            return MetadataRetriever.extractMetadata(((AssetFileDescriptor) trackKey).getFileDescriptor());
+        }
+        return null;
+    }
+
+    /**
+     * @return object, which identifies current track of controller
+     */
+    @Nullable
+    private Object getCurrentTrackKey() {
+        final Uri uri = mMpc.getContentUri();
+        return uri != null ? uri : mMpc.getContentAssetFileDescriptor();
     }
 
     private void notifyScrobblerNonIdleStateChanged() {
@@ -126,12 +348,12 @@ public final class ScrobblerHelper {
 
         BaseMediaPlayerController.State currentState = mMpc.getCurrentState();
         if (currentState != BaseMediaPlayerController.State.IDLE) {
-            notifyScrobblerStateChanged(currentState, mLastState, mMpc.getCurrentTrackMetatada(), mMpc.getCurrentPosition());
+            notifyScrobblerStateChanged(currentState, BaseMediaPlayerController.State.IDLE, getCurrentTrackKey(), mMpc.getCurrentPosition());
         }
     }
 
     private void notifyScrobblerIdleState() {
-        notifyScrobblerStateChanged(BaseMediaPlayerController.State.IDLE, mLastState, null, 0);
+        notifyScrobblerStateChanged(BaseMediaPlayerController.State.IDLE, BaseMediaPlayerController.State.IDLE, null, 0);
     }
 
     public void enableScrobbling() {
@@ -172,6 +394,10 @@ public final class ScrobblerHelper {
         mMpc.getStateChangedObservable().unregisterObserver(mCallbacks);
         mMpc.getCompletionObservable().unregisterObserver(mCallbacks);
         mMpc = null;
+        synchronized (mExecutor) {
+            // queued broadcasts (including final stop) are still sent
+            mExecutor.shutdown();
+        }
     }
 
     protected interface BroadcastIntentActions {
@@ -198,13 +424,36 @@ public final class ScrobblerHelper {
         String EXTRA_POSITION = "position";
     }
 
+    private static final class Event {
+
+        @NotNull
+        final BaseMediaPlayerController.State newState;
+
+        @NotNull
+        final BaseMediaPlayerController.State oldState;
+
+        @Nullable
+        final Object trackKey;
+
+        final long position;
+
+        Event(@NotNull BaseMediaPlayerController.State newState, @NotNull BaseMediaPlayerController.State oldState, @Nullable Object trackKey, long position) {
+            this.newState = newState;
+            this.oldState = oldState;
+            this.trackKey = trackKey;
+            this.position = position;
+        }
+    }
+
     private class MediaPlayerCallbacks implements BaseMediaPlayerController.OnStateChangedListener, BaseMediaPlayerController.OnCompletionListener {
 
         @Override
         public void onCompletion(boolean isLooping) {
+            notifyCompletion(getCurrentTrackKey(), mMpc.getDuration());
             if (isLooping) {
-                notifyScrobblerStateChanged(BaseMediaPlayerController.State.IDLE, mLastState, null, 0);
-                notifyScrobblerStateChanged(BaseMediaPlayerController.State.PLAYING, mLastState, mMpc.getCurrentTrackMetatada(), mMpc.getCurrentPosition());
+                // new play of same track: metadata is taken from cache
+                notifyScrobblerStateChanged(BaseMediaPlayerController.State.IDLE, BaseMediaPlayerController.State.PLAYING, null, 0);
+                notifyScrobblerStateChanged(BaseMediaPlayerController.State.PLAYING, BaseMediaPlayerController.State.IDLE, getCurrentTrackKey(), mMpc.getCurrentPosition());
             }
         }
 
@@ -218,7 +467,7 @@ public final class ScrobblerHelper {
             if (currentState == BaseMediaPlayerController.State.RELEASED) {
                 detach();
             } else {
-                notifyScrobblerStateChanged(currentState, previousState, mMpc.getCurrentTrackMetatada(), mMpc.getCurrentPosition());
+                notifyScrobblerStateChanged(currentState, previousState, getCurrentTrackKey(), mMpc.getCurrentPosition());
             }
         }
 
@@ -0,0 +1,940 @@
+package net.maxsmr.mediaplayercontroller.cache;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback HTTP proxy for progressive http/https media: bytes are streamed to the player
+ * and simultaneously written to {@link SparseCacheFile} in cache directory,
+ * so replays, loops and backward seeks are served locally (range requests are supported).
+ * <p>
+ * Note: player must be allowed to use cleartext traffic to 127.0.0.1 (see network security config)
+ */
+public class MediaCacheProxy {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(MediaCacheProxy.class);
+
+    public static final long DEFAULT_MAX_CACHE_SIZE = 512L * 1024 * 1024;
+
+    public static final int DEFAULT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String CACHE_FILE_EXT = ".cache";
+
+    private static final long PREFETCH_POLL_INTERVAL_MS = 50;
+
+    /**
+     * cache directory is trimmed after this part of max cache size was written since last trim
+     */
+    private static final int TRIM_THRESHOLD_DIVIDER = 16;
+
+    private static final String LOOPBACK_HOST = "127.0.0.1";
+
+    @NotNull
+    private final File mCacheDir;
+
+    /**
+     * upstream sources by key, kept while cache entry of same key is opened
+     */
+    @NotNull
+    private final Map<String, Source> mSources = new ConcurrentHashMap<>();
+
+    /**
+     * opened cache files by key with count of requests currently using each
+     */
+    @NotNull
+    private final Map<String, CacheEntry> mOpenedEntries = new LinkedHashMap<>();
+
+    /**
+     * prefetch tasks by key, which are currently running
+     */
+    @NotNull
+    private final Map<String, SegmentedDownloader.Task> mPrefetchTasks = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mThreadCounter = new AtomicInteger();
+
+    private final AtomicLong mWrittenSinceTrim = new AtomicLong();
+
+    private long mMaxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+    private int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    @Nullable
+    private ServerSocket mServerSocket;
+
+    @Nullable
+    private ExecutorService mExecutor;
+
+    public MediaCacheProxy(@NotNull File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    public static boolean isProxySupported(@Nullable Uri uri) {
+        if (uri == null) {
+            return false;
+        }
+        final String scheme = uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    @NotNull
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    public synchronized long getMaxCacheSize() {
+        return mMaxCacheSize;
+    }
+
+    public synchronized void setMaxCacheSize(long maxCacheSize) {
+        if (maxCacheSize <= 0) {
+            throw new IllegalArgumentException("incorrect maxCacheSize: " + maxCacheSize);
+        }
+        mMaxCacheSize = maxCacheSize;
+    }
+
+    public synchronized void setTimeoutMs(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("incorrect timeoutMs: " + timeoutMs);
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    public synchronized boolean isRunning() {
+        return mServerSocket != null && !mServerSocket.isClosed();
+    }
+
+    public synchronized int getPort() {
+        if (!isRunning()) {
+            throw new IllegalStateException(MediaCacheProxy.class.getSimpleName() + " is not running");
+        }
+        //noinspection ConstantConditions
+        return mServerSocket.getLocalPort();
+    }
+
+    public synchronized void start() throws IOException {
+        if (isRunning()) {
+            return;
+        }
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            throw new IOException("can't create directory: " + mCacheDir);
+        }
+        final ServerSocket serverSocket = new ServerSocket(0, 8, InetAddress.getByName(LOOPBACK_HOST));
+        final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, MediaCacheProxy.class.getSimpleName() + "-" + mThreadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        mServerSocket = serverSocket;
+        mExecutor = executor;
+        executor.execute(() -> acceptConnections(serverSocket, executor));
+        logger.i("started on port " + serverSocket.getLocalPort());
+    }
+
+    public synchronized void stop() {
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                logger.e("an IOException occurred during close()", e);
+            }
+            mServerSocket = null;
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        for (SegmentedDownloader.Task task : mPrefetchTasks.values()) {
+            task.cancel();
+        }
+        mPrefetchTasks.clear();
+        synchronized (mOpenedEntries) {
+            for (CacheEntry entry : mOpenedEntries.values()) {
+                closeQuietly(entry.file);
+            }
+            mOpenedEntries.clear();
+            mSources.clear();
+        }
+        logger.i("stopped");
+    }
+
+    /**
+     * opens cache file, so shouldn't be called on main thread;
+     * returned uri is served until {@link #releaseProxyUri(Uri)} is called for it
+     *
+     * @param headers will be sent with each upstream request for this uri
+     * @return uri of this proxy to pass to the player instead of original or null if cache file can't be opened
+     */
+    @Nullable
+    public Uri getProxyUri(@NotNull Uri uri, @Nullable Map<String, String> headers) {
+        if (!isProxySupported(uri)) {
+            throw new IllegalArgumentException("unsupported uri: " + uri);
+        }
+        final String key = makeKey(uri.toString());
+        synchronized (mOpenedEntries) {
+            final CacheEntry entry = acquireEntry(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.pins++;
+            mSources.put(key, new Source(uri.toString(), headers));
+        }
+        final Uri.Builder builder = new Uri.Builder()
+                .scheme("http")
+                .encodedAuthority(LOOPBACK_HOST + ":" + getPort())
+                .appendPath(key);
+        final String lastSegment = uri.getLastPathSegment();
+        if (!TextUtils.isEmpty(lastSegment)) {
+            // keeping original name, so content type still can be guessed from it
+            builder.appendPath(lastSegment);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param proxyUri obtained by {@link #getProxyUri(Uri, Map)}, other uris are ignored
+     */
+    public void releaseProxyUri(@NotNull Uri proxyUri) {
+        if (!"http".equalsIgnoreCase(proxyUri.getScheme()) || !LOOPBACK_HOST.equals(proxyUri.getHost())
+                || proxyUri.getPathSegments().isEmpty()) {
+            return;
+        }
+        final String key = proxyUri.getPathSegments().get(0);
+        synchronized (mOpenedEntries) {
+            final CacheEntry entry = mOpenedEntries.get(key);
+            if (entry != null && entry.pins > 0) {
+                entry.pins--;
+                releaseEntry(key, entry);
+            }
+        }
+    }
+
+    public boolean isFullyCached(@NotNull Uri uri) {
+        final String key = makeKey(uri.toString());
+        final CacheEntry entry = acquireEntry(key);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            return entry.file.isComplete();
+        } finally {
+            releaseEntry(key, entry);
+        }
+    }
+
+    /**
+     * @return uri of local cache file, if resource was fully downloaded, null otherwise
+     */
+    @Nullable
+    public Uri getCachedFileUri(@NotNull Uri uri) {
+        final String key = makeKey(uri.toString());
+        final CacheEntry entry = acquireEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return entry.file.isComplete() ? Uri.fromFile(entry.file.getDataFile()) : null;
+        } finally {
+            releaseEntry(key, entry);
+        }
+    }
+
+    /**
+     * starts download of whole resource into cache over several connections (if not running yet);
+     * player requests to this proxy are served from downloaded ranges as soon as they land
+     *
+     * @return running task or null if cache file can't be opened
+     */
+    @Nullable
+    public SegmentedDownloader.Task prefetch(@NotNull Uri uri, @Nullable Map<String, String> headers, @NotNull SegmentedDownloader downloader) {
+        if (!isProxySupported(uri)) {
+            throw new IllegalArgumentException("unsupported uri: " + uri);
+        }
+        final String key = makeKey(uri.toString());
+        synchronized (mPrefetchTasks) {
+            SegmentedDownloader.Task task = mPrefetchTasks.get(key);
+            if (task != null && !task.isDone()) {
+                return task;
+            }
+            final CacheEntry entry;
+            synchronized (mOpenedEntries) {
+                entry = acquireEntry(key);
+                if (entry == null) {
+                    return null;
+                }
+                mSources.put(key, new Source(uri.toString(), headers));
+            }
+            task = downloader.download(uri, headers, entry.file, new SegmentedDownloader.OnDownloadListener() {
+                @Override
+                public void onPrefixAvailable(@NotNull SegmentedDownloader.Task task, long prefixLength) {
+                    logger.d("prefix of " + uri + " available: " + prefixLength);
+                }
+
+                @Override
+                public void onCompleted(@NotNull SegmentedDownloader.Task task) {
+                    onPrefetchDone(key, task, entry);
+                }
+
+                @Override
+                public void onFailed(@NotNull SegmentedDownloader.Task task, @NotNull IOException e) {
+                    onPrefetchDone(key, task, entry);
+                }
+
+                @Override
+                public void onCancelled(@NotNull SegmentedDownloader.Task task) {
+                    onPrefetchDone(key, task, entry);
+                }
+            });
+            mPrefetchTasks.put(key, task);
+            return task;
+        }
+    }
+
+    public void cancelPrefetch(@NotNull Uri uri) {
+        final SegmentedDownloader.Task task = mPrefetchTasks.get(makeKey(uri.toString()));
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    private void onPrefetchDone(@NotNull String key, @NotNull SegmentedDownloader.Task task, @NotNull CacheEntry entry) {
+        synchronized (mPrefetchTasks) {
+            if (mPrefetchTasks.get(key) == task) {
+                mPrefetchTasks.remove(key);
+            }
+        }
+        final long downloaded = entry.file.getLength();
+        releaseEntry(key, entry);
+        if (downloaded != SparseCacheFile.LENGTH_UNKNOWN) {
+            onCacheWritten(downloaded);
+        }
+    }
+
+    /**
+     * deletes all cache files, which are not used at the moment
+     */
+    public void clearCache() {
+        synchronized (mOpenedEntries) {
+            final File[] files = mCacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (isCacheDataFile(file) && !mOpenedEntries.containsKey(keyFromFile(file))) {
+                        deleteCacheFiles(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private void acceptConnections(@NotNull ServerSocket serverSocket, @NotNull ExecutorService executor) {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute(() -> handleConnection(socket));
+            } catch (SocketException e) {
+                // closed
+                break;
+            } catch (IOException e) {
+                logger.e("an IOException occurred during accept()", e);
+            } catch (RuntimeException e) {
+                // executor was shut down
+                logger.e("can't handle connection", e);
+                break;
+            }
+        }
+    }
+
+    private void handleConnection(@NotNull Socket socket) {
+        String key = null;
+        CacheEntry entry = null;
+        try {
+            socket.setSoTimeout(mTimeoutMs);
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+            final Request request = Request.read(in);
+            if (request == null) {
+                return;
+            }
+            logger.d("request: " + request);
+
+            key = request.key;
+            Source source = null;
+            if (key != null) {
+                synchronized (mOpenedEntries) {
+                    // source is dropped when last user of entry releases it
+                    source = mSources.get(key);
+                    if (source != null) {
+                        entry = acquireEntry(key);
+                    }
+                }
+            }
+            if (source == null) {
+                writeStatus(out, 404, "Not Found");
+                return;
+            }
+            if (entry == null) {
+                writeStatus(out, 500, "Internal Server Error");
+                return;
+            }
+            serve(request, source, entry.file, out);
+        } catch (IOException e) {
+            // client usually closes connection after seek
+            logger.d("connection closed: " + e.getMessage());
+        } finally {
+            if (key != null && entry != null) {
+                releaseEntry(key, entry);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void serve(@NotNull Request request, @NotNull Source source, @NotNull SparseCacheFile file, @NotNull OutputStream out) throws IOException {
+
+        HttpURLConnection pending = null;
+        long written = 0;
+
+        try {
+            long length = file.getLength();
+            final long start = Math.max(request.rangeStart, 0);
+
+            if (length == SparseCacheFile.LENGTH_UNKNOWN) {
+                // we need upstream to know total length, this connection will be reused for first missing part
+                pending = openUpstream(source, start, SparseCacheFile.LENGTH_UNKNOWN);
+                length = readLength(pending, start);
+                if (length != SparseCacheFile.LENGTH_UNKNOWN) {
+                    file.setLength(length);
+                }
+                file.setContentType(pending.getContentType());
+            }
+
+            if (length == SparseCacheFile.LENGTH_UNKNOWN) {
+                // chunked response without any length: streaming as is
+                writeHeaders(out, 200, "OK", file.getContentType(), SparseCacheFile.LENGTH_UNKNOWN, null);
+                if (!request.isHead) {
+                    final long end = transferUpstream(pending, file, out, start, Long.MAX_VALUE);
+                    written += end - start;
+                    file.setLength(end);
+                }
+                out.flush();
+                return;
+            }
+
+            if (start >= length && length > 0) {
+                writeHeaders(out, 416, "Range Not Satisfiable", null, 0, "bytes */" + length);
+                out.flush();
+                return;
+            }
+
+            final long endExclusive = request.rangeEnd >= 0 ? Math.min(request.rangeEnd + 1, length) : length;
+
+            if (request.hasRange) {
+                writeHeaders(out, 206, "Partial Content", file.getContentType(), endExclusive - start,
+                        "bytes " + start + "-" + (endExclusive - 1) + "/" + length);
+            } else {
+                writeHeaders(out, 200, "OK", file.getContentType(), endExclusive - start, null);
+            }
+
+            if (!request.isHead) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                long position = start;
+                while (position < endExclusive) {
+                    final long cachedEnd = file.getCachedEnd(position);
+                    if (cachedEnd > position) {
+                        closeConnection(pending);
+                        pending = null;
+                        final long to = Math.min(cachedEnd, endExclusive);
+                        while (position < to) {
+                            int read = file.read(position, buffer, 0, (int) Math.min(buffer.length, to - position));
+                            if (read <= 0) {
+                                throw new IOException("cached data at " + position + " is not available");
+                            }
+                            out.write(buffer, 0, read);
+                            position += read;
+                        }
+                    } else if (waitForPrefetch(request.key, file, position)) {
+                        // downloaded by prefetch task, will be served from cache on next iteration
+                        continue;
+                    } else {
+                        final long nextCached = file.getNextCachedStart(position);
+                        final long to = nextCached != SparseCacheFile.LENGTH_UNKNOWN ? Math.min(nextCached, endExclusive) : endExclusive;
+                        if (pending == null) {
+                            pending = openUpstream(source, position, to - 1);
+                        }
+                        final long from = position;
+                        position = transferUpstream(pending, file, out, position, to);
+                        written += position - from;
+                        closeConnection(pending);
+                        pending = null;
+                    }
+                }
+            }
+            out.flush();
+        } finally {
+            closeConnection(pending);
+            try {
+                file.flush();
+            } catch (IOException | IllegalStateException e) {
+                logger.e("can't flush " + file, e);
+            }
+            onCacheWritten(written);
+        }
+    }
+
+    /**
+     * doesn't wait, if position is not covered by running connection of prefetch task
+     *
+     * @return true if position became cached by running prefetch task within timeout
+     */
+    private boolean waitForPrefetch(@Nullable String key, @NotNull SparseCacheFile file, long position) throws IOException {
+        final SegmentedDownloader.Task task = key != null ? mPrefetchTasks.get(key) : null;
+        if (task == null || !task.isInFlight(position)) {
+            // e.g. range at the end of file: upstream is faster than waiting for queued segments
+            return false;
+        }
+        final long deadline = System.currentTimeMillis() + mTimeoutMs;
+        while (task.isInFlight(position) && file.getCachedEnd(position) <= position && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(PREFETCH_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            }
+        }
+        return file.getCachedEnd(position) > position;
+    }
+
+    @NotNull
+    private HttpURLConnection openUpstream(@NotNull Source source, long from, long toInclusive) throws IOException {
+        logger.d("opening upstream " + source.url + ", range: " + from + "-" + (toInclusive >= 0 ? toInclusive : ""));
+        final HttpURLConnection connection = (HttpURLConnection) new URL(source.url).openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        for (Map.Entry<String, String> header : source.headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (from > 0 || toInclusive >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + (toInclusive >= 0 ? toInclusive : ""));
+        }
+        final int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("upstream response code: " + code);
+        }
+        return connection;
+    }
+
+    /**
+     * copies upstream body to cache and output, starting from position;
+     * if server ignored requested range, leading bytes are only cached
+     *
+     * @return position after last transferred byte
+     */
+    private long transferUpstream(@NotNull HttpURLConnection connection, @NotNull SparseCacheFile file, @NotNull OutputStream out,
+                                  long from, long toExclusive) throws IOException {
+        long bodyPosition = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL ? parseContentRangeStart(connection, from) : 0;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final InputStream in = connection.getInputStream();
+        long position = from;
+        while (position < toExclusive) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, toExclusive - bodyPosition));
+            if (read < 0) {
+                break;
+            }
+            if (read == 0) {
+                continue;
+            }
+            file.write(bodyPosition, buffer, 0, read);
+            final long bodyEnd = bodyPosition + read;
+            if (bodyEnd > position) {
+                final int skip = (int) (position - bodyPosition);
+                out.write(buffer, skip, read - skip);
+                position = bodyEnd;
+            }
+            bodyPosition = bodyEnd;
+        }
+        return position;
+    }
+
+    private static long readLength(@NotNull HttpURLConnection connection, long requestedFrom) throws IOException {
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            final String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null) {
+                final int slash = contentRange.lastIndexOf('/');
+                if (slash >= 0) {
+                    final String total = contentRange.substring(slash + 1).trim();
+                    if (!"*".equals(total)) {
+                        try {
+                            return Long.parseLong(total);
+                        } catch (NumberFormatException e) {
+                            logger.e("incorrect Content-Range: " + contentRange);
+                        }
+                    }
+                }
+            }
+            return SparseCacheFile.LENGTH_UNKNOWN;
+        }
+        final long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+        return contentLength >= 0 ? contentLength : SparseCacheFile.LENGTH_UNKNOWN;
+    }
+
+    private static long parseContentRangeStart(@NotNull HttpURLConnection connection, long defaultValue) {
+        final String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            final int space = contentRange.indexOf(' ');
+            final int dash = contentRange.indexOf('-');
+            if (space >= 0 && dash > space) {
+                final long start = parseLong(contentRange.substring(space + 1, dash));
+                if (start >= 0) {
+                    return start;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    private static long parseLong(@Nullable String value) {
+        if (!TextUtils.isEmpty(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    private CacheEntry acquireEntry(@NotNull String key) {
+        synchronized (mOpenedEntries) {
+            CacheEntry entry = mOpenedEntries.get(key);
+            if (entry == null) {
+                try {
+                    entry = new CacheEntry(new SparseCacheFile(new File(mCacheDir, key + CACHE_FILE_EXT)));
+                } catch (IOException e) {
+                    logger.e("can't open cache file for " + key, e);
+                    return null;
+                }
+                mOpenedEntries.put(key, entry);
+            }
+            entry.usages++;
+            return entry;
+        }
+    }
+
+    private void releaseEntry(@NotNull String key, @NotNull CacheEntry entry) {
+        synchronized (mOpenedEntries) {
+            if (--entry.usages <= 0) {
+                // entry may be already dropped by stop(), then a new one may be opened for same key
+                if (mOpenedEntries.get(key) == entry) {
+                    mOpenedEntries.remove(key);
+                    mSources.remove(key);
+                }
+                closeQuietly(entry.file);
+            }
+        }
+    }
+
+    /**
+     * trims cache, if enough bytes were written since last trim
+     */
+    private void onCacheWritten(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        final long threshold = Math.max(getMaxCacheSize() / TRIM_THRESHOLD_DIVIDER, BUFFER_SIZE);
+        if (mWrittenSinceTrim.addAndGet(bytes) >= threshold) {
+            mWrittenSinceTrim.set(0);
+            trimCache();
+        }
+    }
+
+    /**
+     * removes least recently modified unused cache files until total size fits in max size
+     */
+    private void trimCache() {
+        synchronized (mOpenedEntries) {
+            final File[] files = mCacheDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            long totalSize = 0;
+            for (File file : files) {
+                totalSize += file.length();
+            }
+            final long maxCacheSize = getMaxCacheSize();
+            if (totalSize <= maxCacheSize) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    // Long.compare() requires API 19
+                    final long l = lhs.lastModified();
+                    final long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                if (totalSize <= maxCacheSize) {
+                    break;
+                }
+                if (isCacheDataFile(file) && !mOpenedEntries.containsKey(keyFromFile(file))) {
+                    totalSize -= deleteCacheFiles(file);
+                }
+            }
+        }
+    }
+
+    private static boolean isCacheDataFile(@NotNull File file) {
+        return file.isFile() && file.getName().endsWith(CACHE_FILE_EXT);
+    }
+
+    @NotNull
+    private static String keyFromFile(@NotNull File file) {
+        final String name = file.getName();
+        return name.substring(0, name.length() - CACHE_FILE_EXT.length());
+    }
+
+    @NotNull
+    static String makeKey(@NotNull String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format(Locale.US, "%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * deletes data file with its index without opening
+     *
+     * @return freed bytes count
+     */
+    private static long deleteCacheFiles(@NotNull File dataFile) {
+        long freed = 0;
+        final File indexFile = new File(dataFile.getPath() + SparseCacheFile.INDEX_FILE_EXT);
+        for (File file : new File[]{dataFile, indexFile}) {
+            final long length = file.length();
+            if (file.exists()) {
+                if (file.delete()) {
+                    freed += length;
+                } else {
+                    logger.e("can't delete file: " + file);
+                }
+            }
+        }
+        return freed;
+    }
+
+    private static void closeConnection(@Nullable HttpURLConnection connection) {
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private static void closeQuietly(@NotNull SparseCacheFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.e("an IOException occurred during close()", e);
+        }
+    }
+
+    private static void writeStatus(@NotNull OutputStream out, int code, @NotNull String message) throws IOException {
+        writeHeaders(out, code, message, null, 0, null);
+        out.flush();
+    }
+
+    private static void writeHeaders(@NotNull OutputStream out, int code, @NotNull String message,
+                                     @Nullable String contentType, long contentLength, @Nullable String contentRange) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(code).append(' ').append(message).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if (!TextUtils.isEmpty(contentType)) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (contentRange != null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("US-ASCII"));
+    }
+
+    private static class Source {
+
+        @NotNull
+        final String url;
+
+        @NotNull
+        final Map<String, String> headers;
+
+        Source(@NotNull String url, @Nullable Map<String, String> headers) {
+            this.url = url;
+            this.headers = headers != null ? Collections.unmodifiableMap(new LinkedHashMap<>(headers)) : Collections.<String, String>emptyMap();
+        }
+    }
+
+    private static class CacheEntry {
+
+        @NotNull
+        final SparseCacheFile file;
+
+        int usages = 0;
+
+        /**
+         * count of usages held by proxy uris, which are not released yet
+         */
+        int pins = 0;
+
+        CacheEntry(@NotNull SparseCacheFile file) {
+            this.file = file;
+        }
+    }
+
+    private static class Request {
+
+        @Nullable
+        final String key;
+
+        final boolean isHead;
+
+        final boolean hasRange;
+
+        final long rangeStart;
+
+        /**
+         * inclusive, -1 if not specified
+         */
+        final long rangeEnd;
+
+        private Request(@Nullable String key, boolean isHead, boolean hasRange, long rangeStart, long rangeEnd) {
+            this.key = key;
+            this.isHead = isHead;
+            this.hasRange = hasRange;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+        }
+
+        @Nullable
+        static Request read(@NotNull InputStream in) throws IOException {
+            final String requestLine = readLine(in);
+            if (TextUtils.isEmpty(requestLine)) {
+                return null;
+            }
+            final String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("incorrect request line: " + requestLine);
+            }
+            final boolean isHead = "HEAD".equalsIgnoreCase(parts[0]);
+            String path = parts[1];
+            final int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+            String key = null;
+            for (String segment : path.split("/")) {
+                if (!segment.isEmpty()) {
+                    key = segment;
+                    break;
+                }
+            }
+            boolean hasRange = false;
+            long rangeStart = 0;
+            long rangeEnd = -1;
+            String line;
+            while (!TextUtils.isEmpty(line = readLine(in))) {
+                final int colon = line.indexOf(':');
+                if (colon > 0 && "Range".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                    final String value = line.substring(colon + 1).trim();
+                    if (value.startsWith("bytes=")) {
+                        final String range = value.substring("bytes=".length());
+                        final int dash = range.indexOf('-');
+                        if (dash > 0) {
+                            hasRange = true;
+                            rangeStart = parseLong(range.substring(0, dash));
+                            rangeEnd = parseLong(range.substring(dash + 1));
+                            if (rangeStart < 0) {
+                                rangeStart = 0;
+                            }
+                        }
+                    }
+                }
+            }
+            return new Request(key, isHead, hasRange, rangeStart, rangeEnd);
+        }
+
+        @Nullable
+        private static String readLine(@NotNull InputStream in) throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    break;
+                }
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return c == -1 && sb.length() == 0 ? null : sb.toString();
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "Request{" +
+                    "key='" + key + '\'' +
+                    ", isHead=" + isHead +
+                    ", hasRange=" + hasRange +
+                    ", rangeStart=" + rangeStart +
+                    ", rangeEnd=" + rangeEnd +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package net.maxsmr.mediaplayercontroller.cache;
+
+import android.net.Uri;
+
+import net.maxsmr.commonutils.data.Observable;
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads remote resource into {@link SparseCacheFile} by byte ranges
+ * over several concurrent connections, each range is retried independently;
+ * already cached ranges of target are skipped, so interrupted downloads are resumed
+ */
+public class SegmentedDownloader {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(SegmentedDownloader.class);
+
+    public static final int DEFAULT_CONNECTIONS_COUNT = 4;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 8L * 1024 * 1024;
+
+    public static final int DEFAULT_RETRY_COUNT = 3;
+
+    public static final long DEFAULT_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+
+    public static final int DEFAULT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * flush index after each such amount of written bytes, so progress survives process death
+     */
+    private static final long FLUSH_INTERVAL_BYTES = 4L * 1024 * 1024;
+
+    private final int mConnectionsCount;
+
+    /**
+     * runs segments, size is limited by connections count
+     */
+    @NotNull
+    private final ExecutorService mSegmentsExecutor;
+
+    /**
+     * runs tasks, which are waiting for their segments
+     */
+    @NotNull
+    private final ExecutorService mTasksExecutor;
+
+    private final AtomicInteger mThreadCounter = new AtomicInteger();
+
+    private volatile long mSegmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private volatile int mRetryCount = DEFAULT_RETRY_COUNT;
+
+    private volatile long mRetryDelayMs = DEFAULT_RETRY_DELAY_MS;
+
+    private volatile int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    public SegmentedDownloader() {
+        this(DEFAULT_CONNECTIONS_COUNT);
+    }
+
+    public SegmentedDownloader(int connectionsCount) {
+        if (connectionsCount <= 0) {
+            throw new IllegalArgumentException("incorrect connectionsCount: " + connectionsCount);
+        }
+        mConnectionsCount = connectionsCount;
+        mSegmentsExecutor = Executors.newFixedThreadPool(connectionsCount, this::newThread);
+        mTasksExecutor = Executors.newCachedThreadPool(this::newThread);
+    }
+
+    @NotNull
+    private Thread newThread(@NotNull Runnable r) {
+        Thread t = new Thread(r, SegmentedDownloader.class.getSimpleName() + "-" + mThreadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+    public int getConnectionsCount() {
+        return mConnectionsCount;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("incorrect segmentSize: " + segmentSize);
+        }
+        mSegmentSize = segmentSize;
+    }
+
+    public void setRetryCount(int retryCount) {
+        if (retryCount < 0) {
+            throw new IllegalArgumentException("incorrect retryCount: " + retryCount);
+        }
+        mRetryCount = retryCount;
+    }
+
+    public void setRetryDelayMs(long retryDelayMs) {
+        if (retryDelayMs < 0) {
+            throw new IllegalArgumentException("incorrect retryDelayMs: " + retryDelayMs);
+        }
+        mRetryDelayMs = retryDelayMs;
+    }
+
+    public void setTimeoutMs(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("incorrect timeoutMs: " + timeoutMs);
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    public boolean isShutdown() {
+        return mSegmentsExecutor.isShutdown();
+    }
+
+    /**
+     * cancels all running tasks
+     */
+    public void shutdown() {
+        mTasksExecutor.shutdownNow();
+        mSegmentsExecutor.shutdownNow();
+    }
+
+    @NotNull
+    public Task download(@NotNull Uri uri, @Nullable Map<String, String> headers, @NotNull SparseCacheFile target) {
+        return download(uri, headers, target, null);
+    }
+
+    /**
+     * @param target   will not be closed after download
+     * @param listener registered before start, so no events will be missed
+     */
+    @NotNull
+    public Task download(@NotNull Uri uri, @Nullable Map<String, String> headers, @NotNull SparseCacheFile target, @Nullable OnDownloadListener listener) {
+        if (isShutdown()) {
+            throw new IllegalStateException(SegmentedDownloader.class.getSimpleName() + " is shut down");
+        }
+        final Task task = new Task(uri, headers, target);
+        if (listener != null) {
+            task.getDownloadObservable().registerObserver(listener);
+        }
+        task.coordinatorFuture = mTasksExecutor.submit(task::run);
+        return task;
+    }
+
+    @NotNull
+    private HttpURLConnection openConnection(@NotNull Task task, long from, long toInclusive) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(task.uri.toString()).openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        for (Map.Entry<String, String> header : task.headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setRequestProperty("Range", "bytes=" + from + "-" + (toInclusive >= 0 ? toInclusive : ""));
+        final int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("response code: " + code);
+        }
+        return connection;
+    }
+
+    /**
+     * @return total length or {@link SparseCacheFile#LENGTH_UNKNOWN} if server does not support ranges
+     */
+    private long probeLength(@NotNull Task task) throws IOException {
+        final HttpURLConnection connection = openConnection(task, 0, 0);
+        try {
+            task.target.setContentType(connection.getContentType());
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                final String contentRange = connection.getHeaderField("Content-Range");
+                final int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+                if (slash >= 0) {
+                    try {
+                        return Long.parseLong(contentRange.substring(slash + 1).trim());
+                    } catch (NumberFormatException e) {
+                        logger.e("incorrect Content-Range: " + contentRange);
+                    }
+                }
+            }
+            return SparseCacheFile.LENGTH_UNKNOWN;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return list of missing [start, end) ranges, split by segment size
+     */
+    @NotNull
+    private List<long[]> makeSegments(@NotNull SparseCacheFile target, long length) {
+        final List<long[]> segments = new ArrayList<>();
+        final long segmentSize = mSegmentSize;
+        long position = 0;
+        while (position < length) {
+            final long cachedEnd = target.getCachedEnd(position);
+            if (cachedEnd > position) {
+                position = cachedEnd;
+                continue;
+            }
+            final long nextCached = target.getNextCachedStart(position);
+            final long gapEnd = nextCached != SparseCacheFile.LENGTH_UNKNOWN ? Math.min(nextCached, length) : length;
+            while (position < gapEnd) {
+                final long end = Math.min(position + segmentSize, gapEnd);
+                segments.add(new long[]{position, end});
+                position = end;
+            }
+        }
+        return segments;
+    }
+
+    private void downloadSegment(@NotNull Task task, long start, long end) throws IOException {
+        final long[] range = {start, end};
+        task.runningSegments.add(range);
+        try {
+            downloadSegmentRange(task, start, end);
+        } finally {
+            task.runningSegments.remove(range);
+        }
+    }
+
+    private void downloadSegmentRange(@NotNull Task task, long start, long end) throws IOException {
+        final int retryCount = mRetryCount;
+        long position = start;
+        IOException lastException = null;
+        for (int attempt = 0; attempt <= retryCount && position < end; attempt++) {
+            if (attempt > 0) {
+                logger.w("retrying segment " + position + "-" + end + " of " + task.uri + ", attempt " + attempt + "/" + retryCount);
+                try {
+                    Thread.sleep(mRetryDelayMs * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted");
+                }
+            }
+            HttpURLConnection connection = null;
+            try {
+                connection = openConnection(task, position, end - 1);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("range " + position + "-" + (end - 1) + " is not supported");
+                }
+                position = transfer(task, connection.getInputStream(), position, end);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.e("an IOException occurred during download segment " + position + "-" + end + " of " + task.uri, e);
+                lastException = e;
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+        if (position < end) {
+            throw lastException != null ? lastException : new IOException("segment " + start + "-" + end + " is incomplete");
+        }
+    }
+
+    /**
+     * @return position after last written byte
+     */
+    private long transfer(@NotNull Task task, @NotNull InputStream in, long from, long toExclusive) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = from;
+        long unflushed = 0;
+        while (position < toExclusive) {
+            if (task.isCancelled() || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("cancelled");
+            }
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, toExclusive - position));
+            if (read < 0) {
+                break;
+            }
+            task.target.write(position, buffer, 0, read);
+            position += read;
+            task.downloadedBytes.addAndGet(read);
+            unflushed += read;
+            if (unflushed >= FLUSH_INTERVAL_BYTES) {
+                task.target.flush();
+                unflushed = 0;
+            }
+            task.checkPrefix();
+        }
+        return position;
+    }
+
+    public interface OnDownloadListener {
+
+        /**
+         * called once, when contiguous part from the start of resource is available in target
+         */
+        void onPrefixAvailable(@NotNull Task task, long prefixLength);
+
+        void onCompleted(@NotNull Task task);
+
+        void onFailed(@NotNull Task task, @NotNull IOException e);
+
+        /**
+         * called instead of {@link #onCompleted(Task)} / {@link #onFailed(Task, IOException)},
+         * when task was cancelled, including the case it had not been started yet
+         */
+        void onCancelled(@NotNull Task task);
+    }
+
+    public class Task {
+
+        @NotNull
+        public final Uri uri;
+
+        @NotNull
+        public final Map<String, String> headers;
+
+        @NotNull
+        public final SparseCacheFile target;
+
+        private final AtomicLong downloadedBytes = new AtomicLong();
+
+        private final CountDownLatch prefixLatch = new CountDownLatch(1);
+
+        private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+        private final OnDownloadObservable downloadObservable = new OnDownloadObservable();
+
+        private final List<Future<?>> segmentFutures = Collections.synchronizedList(new ArrayList<Future<?>>());
+
+        /**
+         * [start, end) ranges of segments, which are being downloaded at the moment (not queued ones)
+         */
+        private final List<long[]> runningSegments = Collections.synchronizedList(new ArrayList<long[]>());
+
+        /**
+         * true if resource is downloaded sequentially via single connection
+         */
+        private volatile boolean downloadingWhole = false;
+
+        private volatile Future<?> coordinatorFuture;
+
+        private volatile long prefixLength = 0;
+
+        /**
+         * set once by segment thread, which dispatches prefix availability
+         */
+        private final AtomicBoolean prefixDispatched = new AtomicBoolean(false);
+
+        private volatile boolean cancelled = false;
+
+        /**
+         * set when run() is entered or when task is cancelled before it
+         */
+        private final AtomicBoolean started = new AtomicBoolean(false);
+
+        @Nullable
+        private volatile IOException exception;
+
+        private Task(@NotNull Uri uri, @Nullable Map<String, String> headers, @NotNull SparseCacheFile target) {
+            this.uri = uri;
+            this.headers = headers != null ? Collections.unmodifiableMap(new LinkedHashMap<>(headers)) : Collections.<String, String>emptyMap();
+            this.target = target;
+        }
+
+        @NotNull
+        public Observable<OnDownloadListener> getDownloadObservable() {
+            return downloadObservable;
+        }
+
+        public long getDownloadedBytes() {
+            return downloadedBytes.get();
+        }
+
+        public long getLength() {
+            return target.getLength();
+        }
+
+        /**
+         * @return length of contiguous part from the start of resource, which is available at the moment
+         */
+        public long getPrefixLength() {
+            return prefixLength;
+        }
+
+        public boolean isPrefixAvailable() {
+            return prefixLatch.getCount() == 0;
+        }
+
+        public boolean isDone() {
+            return doneLatch.getCount() == 0;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isSuccessful() {
+            return isDone() && !cancelled && exception == null;
+        }
+
+        @Nullable
+        public IOException getException() {
+            return exception;
+        }
+
+        /**
+         * @return true if position is going to be downloaded by running connection, so it's worth waiting for
+         */
+        public boolean isInFlight(long position) {
+            if (isDone()) {
+                return false;
+            }
+            if (downloadingWhole) {
+                // ranges are not supported, there is no other way to get it
+                return true;
+            }
+            synchronized (runningSegments) {
+                for (long[] range : runningSegments) {
+                    if (position >= range[0] && position < range[1]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public void cancel() {
+            if (!isDone()) {
+                logger.d("cancelling download of " + uri);
+                cancelled = true;
+                synchronized (segmentFutures) {
+                    for (Future<?> f : segmentFutures) {
+                        f.cancel(true);
+                    }
+                }
+                if (coordinatorFuture != null) {
+                    coordinatorFuture.cancel(true);
+                }
+                if (started.compareAndSet(false, true)) {
+                    // run() will not be invoked, finishing here
+                    finish(null);
+                }
+            }
+        }
+
+        /**
+         * @return true if prefix became available within timeout
+         */
+        public boolean awaitPrefix(long timeoutMs) throws InterruptedException {
+            return prefixLatch.await(timeoutMs, TimeUnit.MILLISECONDS) && !isCancelled();
+        }
+
+        /**
+         * @return true if download finished within timeout (successfully or not)
+         */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return doneLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            logger.i("downloading " + uri + "...");
+            final long startTime = System.currentTimeMillis();
+            try {
+                long length = target.getLength();
+                if (length == SparseCacheFile.LENGTH_UNKNOWN || !target.isComplete()) {
+                    length = probeLength(this);
+                }
+                if (length == SparseCacheFile.LENGTH_UNKNOWN) {
+                    logger.w("ranges are not supported for " + uri + ", downloading via single connection");
+                    downloadingWhole = true;
+                    downloadWhole();
+                } else {
+                    target.setLength(length);
+                    checkPrefix();
+                    downloadSegments(length);
+                }
+                target.flush();
+                logger.i("download of " + uri + " completed, time: " + (System.currentTimeMillis() - startTime) + " ms");
+                finish(null);
+            } catch (IOException e) {
+                logger.e("download of " + uri + " failed", e);
+                finish(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                finish(null);
+            }
+        }
+
+        private void downloadWhole() throws IOException {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+                connection.setConnectTimeout(mTimeoutMs);
+                connection.setReadTimeout(mTimeoutMs);
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("response code: " + connection.getResponseCode());
+                }
+                target.reset();
+                final long contentLength = connection.getContentLength();
+                if (contentLength >= 0) {
+                    target.setLength(contentLength);
+                }
+                target.setContentType(connection.getContentType());
+                final long end = transfer(this, connection.getInputStream(), 0, contentLength >= 0 ? contentLength : Long.MAX_VALUE);
+                if (contentLength < 0) {
+                    target.setLength(end);
+                } else if (end < contentLength) {
+                    throw new IOException("unexpected end of stream at " + end + ", expected length: " + contentLength);
+                }
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        private void downloadSegments(long length) throws IOException, InterruptedException {
+            final List<long[]> segments = makeSegments(target, length);
+            logger.d("missing segments of " + uri + ": " + segments.size());
+            if (segments.isEmpty()) {
+                return;
+            }
+            // segments are submitted in order, so the first one (prefix) is started first
+            for (final long[] segment : segments) {
+                segmentFutures.add(mSegmentsExecutor.submit(() -> {
+                    downloadSegment(this, segment[0], segment[1]);
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<?> f : new ArrayList<>(segmentFutures)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                        // no point to continue
+                        for (Future<?> other : new ArrayList<>(segmentFutures)) {
+                            other.cancel(true);
+                        }
+                    }
+                } catch (CancellationException e) {
+                    if (failure == null && !cancelled) {
+                        failure = new IOException("segment was cancelled");
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (cancelled) {
+                throw new InterruptedException("cancelled");
+            }
+        }
+
+        private void checkPrefix() {
+            final long length = target.getLength();
+            final long available = target.getCachedEnd(0);
+            if (available > prefixLength) {
+                prefixLength = available;
+                if ((available >= mSegmentSize || (length != SparseCacheFile.LENGTH_UNKNOWN && available >= length))
+                        && prefixDispatched.compareAndSet(false, true)) {
+                    prefixLatch.countDown();
+                    downloadObservable.dispatchPrefixAvailable(this, available);
+                }
+            }
+        }
+
+        private void finish(@Nullable IOException e) {
+            exception = e;
+            prefixLatch.countDown();
+            doneLatch.countDown();
+            segmentFutures.clear();
+            if (cancelled) {
+                logger.d("download of " + uri + " cancelled");
+                downloadObservable.dispatchCancelled(this);
+            } else if (e != null) {
+                downloadObservable.dispatchFailed(this, e);
+            } else {
+                downloadObservable.dispatchCompleted(this);
+            }
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "Task{" +
+                    "uri=" + uri +
+                    ", downloadedBytes=" + downloadedBytes +
+                    ", prefixLength=" + prefixLength +
+                    ", length=" + target.getLength() +
+                    ", cancelled=" + cancelled +
+                    ", exception=" + exception +
+                    '}';
+        }
+    }
+
+    private static class OnDownloadObservable extends Observable<OnDownloadListener> {
+
+        private void dispatchPrefixAvailable(@NotNull Task task, long prefixLength) {
+            synchronized (observers) {
+                for (OnDownloadListener l : copyOfObservers()) {
+                    l.onPrefixAvailable(task, prefixLength);
+                }
+            }
+        }
+
+        private void dispatchCompleted(@NotNull Task task) {
+            synchronized (observers) {
+                for (OnDownloadListener l : copyOfObservers()) {
+                    l.onCompleted(task);
+                }
+            }
+        }
+
+        private void dispatchFailed(@NotNull Task task, @NotNull IOException e) {
+            synchronized (observers) {
+                for (OnDownloadListener l : copyOfObservers()) {
+                    l.onFailed(task, e);
+                }
+            }
+        }
+
+        private void dispatchCancelled(@NotNull Task task) {
+            synchronized (observers) {
+                for (OnDownloadListener l : copyOfObservers()) {
+                    l.onCancelled(task);
+                }
+            }
+        }
+    }
+}
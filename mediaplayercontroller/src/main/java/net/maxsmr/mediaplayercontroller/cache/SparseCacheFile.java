@@ -0,0 +1,352 @@
+package net.maxsmr.mediaplayercontroller.cache;
+
+import android.text.TextUtils;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data file of known (or not yet known) length, which may be filled in arbitrary order;
+ * written ranges are tracked in sidecar index file, so partially downloaded content survives restarts
+ */
+public class SparseCacheFile implements Closeable {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(SparseCacheFile.class);
+
+    public static final long LENGTH_UNKNOWN = -1;
+
+    public static final String INDEX_FILE_EXT = ".idx";
+
+    @NotNull
+    private final File mDataFile;
+
+    @NotNull
+    private final File mIndexFile;
+
+    @NotNull
+    private final RandomAccessFile mDataAccess;
+
+    /**
+     * sorted, non-overlapping, non-adjacent ranges: [start, end)
+     */
+    @NotNull
+    private final List<long[]> mRanges = new ArrayList<>();
+
+    private long mLength = LENGTH_UNKNOWN;
+
+    @Nullable
+    private String mContentType;
+
+    private boolean mIndexChanged = false;
+
+    private boolean mClosed = false;
+
+    public SparseCacheFile(@NotNull File dataFile) throws IOException {
+        mDataFile = dataFile;
+        mIndexFile = new File(dataFile.getPath() + INDEX_FILE_EXT);
+        final File parent = dataFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("can't create directory: " + parent);
+        }
+        mDataAccess = new RandomAccessFile(dataFile, "rw");
+        readIndex();
+    }
+
+    @NotNull
+    public File getDataFile() {
+        return mDataFile;
+    }
+
+    @NotNull
+    public File getIndexFile() {
+        return mIndexFile;
+    }
+
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    public synchronized void setLength(long length) throws IOException {
+        checkClosed();
+        if (length < 0 && length != LENGTH_UNKNOWN) {
+            throw new IllegalArgumentException("incorrect length: " + length);
+        }
+        if (length != mLength) {
+            if (mLength != LENGTH_UNKNOWN && length != LENGTH_UNKNOWN) {
+                logger.w("length of " + mDataFile + " changed: " + mLength + " -> " + length + ", dropping cached ranges");
+                mRanges.clear();
+            }
+            mLength = length;
+            if (length != LENGTH_UNKNOWN) {
+                mDataAccess.setLength(length);
+            }
+            mIndexChanged = true;
+        }
+    }
+
+    @Nullable
+    public synchronized String getContentType() {
+        return mContentType;
+    }
+
+    public synchronized void setContentType(@Nullable String contentType) {
+        if (!TextUtils.equals(contentType, mContentType)) {
+            mContentType = contentType;
+            mIndexChanged = true;
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return mLength != LENGTH_UNKNOWN && (mLength == 0 || getCachedEnd(0) >= mLength);
+    }
+
+    public synchronized long getCachedBytesCount() {
+        long count = 0;
+        for (long[] range : mRanges) {
+            count += range[1] - range[0];
+        }
+        return count;
+    }
+
+    public synchronized boolean isCached(long start, long endExclusive) {
+        return start >= endExclusive || getCachedEnd(start) >= endExclusive;
+    }
+
+    /**
+     * @return exclusive end of contiguous cached run, which includes specified position, or position itself if it's not cached
+     */
+    public synchronized long getCachedEnd(long position) {
+        for (long[] range : mRanges) {
+            if (position >= range[0] && position < range[1]) {
+                return range[1];
+            }
+            if (range[0] > position) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return start of nearest cached range after specified position, or {@link #LENGTH_UNKNOWN} if there is no such
+     */
+    public synchronized long getNextCachedStart(long position) {
+        for (long[] range : mRanges) {
+            if (range[0] > position) {
+                return range[0];
+            }
+        }
+        return LENGTH_UNKNOWN;
+    }
+
+    /**
+     * @return copy of currently cached ranges, each as [start, end)
+     */
+    @NotNull
+    public synchronized List<long[]> getCachedRanges() {
+        final List<long[]> result = new ArrayList<>(mRanges.size());
+        for (long[] range : mRanges) {
+            result.add(new long[]{range[0], range[1]});
+        }
+        return result;
+    }
+
+    public synchronized void write(long position, @NotNull byte[] buffer, int offset, int count) throws IOException {
+        checkClosed();
+        if (position < 0) {
+            throw new IllegalArgumentException("incorrect position: " + position);
+        }
+        if (count <= 0) {
+            return;
+        }
+        if (mLength != LENGTH_UNKNOWN && position + count > mLength) {
+            throw new IOException("write beyond length: " + (position + count) + " > " + mLength);
+        }
+        mDataAccess.seek(position);
+        mDataAccess.write(buffer, offset, count);
+        addRange(position, position + count);
+    }
+
+    /**
+     * @return read bytes count or -1 if position is not cached
+     */
+    public synchronized int read(long position, @NotNull byte[] buffer, int offset, int count) throws IOException {
+        checkClosed();
+        final long cachedEnd = getCachedEnd(position);
+        if (cachedEnd <= position) {
+            return -1;
+        }
+        final int toRead = (int) Math.min(count, cachedEnd - position);
+        mDataAccess.seek(position);
+        mDataAccess.readFully(buffer, offset, toRead);
+        return toRead;
+    }
+
+    /**
+     * forgets all cached ranges, data file is truncated
+     */
+    public synchronized void reset() throws IOException {
+        checkClosed();
+        mRanges.clear();
+        mLength = LENGTH_UNKNOWN;
+        mContentType = null;
+        mDataAccess.setLength(0);
+        mIndexChanged = true;
+        flush();
+    }
+
+    /**
+     * syncs written data and persists index, if changed
+     */
+    public synchronized void flush() throws IOException {
+        checkClosed();
+        if (mIndexChanged) {
+            mDataAccess.getFD().sync();
+            writeIndex();
+            mIndexChanged = false;
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            try {
+                flush();
+            } finally {
+                mClosed = true;
+                mDataAccess.close();
+            }
+        }
+    }
+
+    /**
+     * closes and deletes both data and index files
+     */
+    public synchronized void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            logger.e("an IOException occurred during close()", e);
+        }
+        if (mDataFile.exists() && !mDataFile.delete()) {
+            logger.e("can't delete file: " + mDataFile);
+        }
+        if (mIndexFile.exists() && !mIndexFile.delete()) {
+            logger.e("can't delete file: " + mIndexFile);
+        }
+    }
+
+    private void checkClosed() {
+        if (mClosed) {
+            throw new IllegalStateException(SparseCacheFile.class.getSimpleName() + " was closed");
+        }
+    }
+
+    private void addRange(long start, long end) {
+        int i = 0;
+        while (i < mRanges.size() && mRanges.get(i)[1] < start) {
+            i++;
+        }
+        long newStart = start;
+        long newEnd = end;
+        while (i < mRanges.size() && mRanges.get(i)[0] <= end) {
+            final long[] range = mRanges.remove(i);
+            newStart = Math.min(newStart, range[0]);
+            newEnd = Math.max(newEnd, range[1]);
+        }
+        mRanges.add(i, new long[]{newStart, newEnd});
+        mIndexChanged = true;
+    }
+
+    /**
+     * index format: first line - length, second - content type (may be empty), next lines - "start-end"
+     */
+    private void readIndex() {
+        if (!mIndexFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(mIndexFile))) {
+            final String lengthLine = reader.readLine();
+            if (lengthLine == null) {
+                return;
+            }
+            final long length = Long.parseLong(lengthLine.trim());
+            final String contentType = reader.readLine();
+            final List<long[]> ranges = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int separator = line.indexOf('-');
+                if (separator > 0) {
+                    long start = Long.parseLong(line.substring(0, separator).trim());
+                    long end = Long.parseLong(line.substring(separator + 1).trim());
+                    if (start < 0 || end <= start || (length != LENGTH_UNKNOWN && end > length) || end > mDataAccess.length()) {
+                        throw new IOException("incorrect range: " + line);
+                    }
+                    ranges.add(new long[]{start, end});
+                }
+            }
+            mLength = length;
+            mContentType = !TextUtils.isEmpty(contentType) ? contentType : null;
+            for (long[] range : ranges) {
+                addRange(range[0], range[1]);
+            }
+            mIndexChanged = false;
+        } catch (IOException | NumberFormatException e) {
+            logger.e("can't read index " + mIndexFile + ", cached data will be dropped", e);
+            mRanges.clear();
+            mLength = LENGTH_UNKNOWN;
+            mContentType = null;
+            mIndexChanged = true;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            final Writer writer = new OutputStreamWriter(fos, "UTF-8");
+            writer.write(String.valueOf(mLength));
+            writer.write('\n');
+            writer.write(mContentType != null ? mContentType : "");
+            writer.write('\n');
+            for (long[] range : mRanges) {
+                writer.write(range[0] + "-" + range[1]);
+                writer.write('\n');
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(mIndexFile)) {
+            throw new IOException("can't rename " + tempFile + " to " + mIndexFile);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "SparseCacheFile{" +
+                "mDataFile=" + mDataFile +
+                ", mLength=" + mLength +
+                ", mContentType='" + mContentType + '\'' +
+                ", mRanges=" + mRanges.size() +
+                '}';
+    }
+}
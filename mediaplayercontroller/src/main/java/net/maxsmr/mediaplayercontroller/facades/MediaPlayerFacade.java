@@ -1,23 +1,49 @@
 package net.maxsmr.mediaplayercontroller.facades;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Pair;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import net.maxsmr.commonutils.data.Observable;
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
 import net.maxsmr.mediaplayercontroller.mpc.nativeplayer.MediaPlayerController;
+import net.maxsmr.mediaplayercontroller.playlist.PlaylistManager;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class MediaPlayerFacade {
 
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(MediaPlayerFacade.class);
+
     private static MediaPlayerFacade sInstance;
 
     public static MediaPlayerFacade initInstance(@NotNull Context context) {
         if (sInstance == null) {
             synchronized (MediaPlayerFacade.class) {
-                sInstance = new MediaPlayerFacade(context);
+                if (sInstance == null) {
+                    sInstance = new MediaPlayerFacade(context);
+                }
             }
         }
         return sInstance;
@@ -30,53 +56,671 @@ public final class MediaPlayerFacade {
         return sInstance;
     }
 
+    /**
+     * releases all controllers and quits media threads
+     */
     public static void releaseInstance() {
-        if (sInstance != null) {
-            for (String alias : sInstance.mCached.keySet()) {
-                sInstance.remove(alias);
+        synchronized (MediaPlayerFacade.class) {
+            if (sInstance != null) {
+                sInstance.setEvictionPolicy(CAPACITY_UNLIMITED, IDLE_TIMEOUT_NEVER, EvictionMode.SUSPEND);
+                sInstance.mEvictionExecutor.shutdown();
+                for (String alias : new ArrayList<>(sInstance.mCached.keySet())) {
+                    sInstance.remove(alias);
+                }
+                sInstance.mCached.clear();
+                sInstance.quitMediaThreads();
+                sInstance = null;
             }
-            sInstance.mCached.clear();
         }
     }
 
+    public static final int DEFAULT_MEDIA_THREADS_COUNT = 2;
+
+    public static final int CAPACITY_UNLIMITED = 0;
+
+    public static final long IDLE_TIMEOUT_NEVER = 0;
+
+    public static final int DEFAULT_PRELOAD_BUDGET = 2;
+
+    private static final long MIN_IDLE_CHECK_INTERVAL_MS = 1000;
+
     public MediaPlayerFacade(@NotNull Context context) {
+        this(context, DEFAULT_MEDIA_THREADS_COUNT);
+    }
+
+    /**
+     * @param mediaThreadsCount number of media threads shared by controllers created by {@link #getOrCreateOnMediaThread(String)},
+     *                          0 to use main looper for all
+     */
+    public MediaPlayerFacade(@NotNull Context context, int mediaThreadsCount) {
+        if (mediaThreadsCount < 0) {
+            throw new IllegalArgumentException("incorrect mediaThreadsCount: " + mediaThreadsCount);
+        }
         mContext = context;
+        mMediaThreads = new HandlerThread[mediaThreadsCount];
     }
 
     @NotNull
     private final Context mContext;
 
+    /**
+     * started on demand
+     */
+    @NotNull
+    private final HandlerThread[] mMediaThreads;
+
+    private final AtomicInteger mNextMediaThread = new AtomicInteger();
+
     @NotNull
-    private LinkedHashMap<String, MediaPlayerController> mCached = new LinkedHashMap<>();
+    private final ConcurrentHashMap<String, Entry> mCached = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final OnControllerRecreatedObservable mControllerRecreatedObservable = new OnControllerRecreatedObservable();
+
+    private final ScheduledExecutorService mEvictionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, MediaPlayerFacade.class.getSimpleName() + "-eviction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Object mPolicyLock = new Object();
+
+    private int mCapacity = CAPACITY_UNLIMITED;
+
+    private long mIdleTimeoutMs = IDLE_TIMEOUT_NEVER;
+
+    @NotNull
+    private EvictionMode mEvictionMode = EvictionMode.SUSPEND;
+
+    private int mPreloadBudget = DEFAULT_PRELOAD_BUDGET;
+
+    @Nullable
+    private ScheduledFuture<?> mIdleCheckFuture;
 
+    /**
+     * new controller runs on main looper, so it may drive {@link android.widget.MediaController} and video surface
+     */
     @NotNull
     public MediaPlayerController getOrCreate(String alias) {
-        MediaPlayerController mpc = get(alias);
-        if (mpc == null || mpc.isReleased()) {
-            mpc = new MediaPlayerController(mContext, Looper.getMainLooper());
-        }
-        mCached.put(alias, mpc);
-        return mpc;
+        return getOrCreate(alias, null);
+    }
+
+    /**
+     * new controller is assigned to next media thread of pool (round-robin);
+     * its callbacks are run on that thread, so it must not be used with {@link android.widget.MediaController}
+     * or {@link android.view.SurfaceView}, which require main thread
+     */
+    @NotNull
+    public MediaPlayerController getOrCreateOnMediaThread(String alias) {
+        return getOrCreate(alias, nextMediaLooper());
     }
 
+    /**
+     * @param mediaLooper looper for new controller (e.g. the one of related controller, see {@link #getMediaLooper(int)}),
+     *                    main looper if null
+     */
+    @SuppressWarnings("ConstantConditions")
+    @NotNull
+    public MediaPlayerController getOrCreate(String alias, @Nullable Looper mediaLooper) {
+        return access(alias, true, mediaLooper);
+    }
+
+    /**
+     * evicted controller is restored on access
+     */
     @Nullable
     public MediaPlayerController get(String alias) {
-        MediaPlayerController c = mCached.get(alias);
-        if (c != null && c.isReleased()) {
-            c = null;
+        return access(alias, false, null);
+    }
+
+    /**
+     * creates controller, if needed, and prepares content on its media thread without starting it,
+     * so following {@link MediaPlayerController#start()} doesn't wait for preparing;
+     * preloaded controllers are not evicted by {@link #setEvictionPolicy(int, long, EvictionMode)},
+     * instead the oldest of them are suspended when preload budget is exceeded; video is prepared only when surface is attached;
+     * does nothing if controller is playing or same content is already preparing or prepared
+     */
+    @NotNull
+    public MediaPlayerController preload(String alias, @NotNull BaseMediaPlayerController.PlayMode playMode, @NotNull Uri uri) {
+        final MediaPlayerController mpc = getOrCreate(alias);
+        if (!canPreload(alias, mpc, playMode, uri)) {
+            return mpc;
         }
-        return c;
+        if (getPreloadBudget() == 0) {
+            logger.w("preload budget is 0, content is set without preparing");
+            mpc.setContentUri(playMode, uri);
+            return mpc;
+        }
+        final Entry entry = mCached.get(alias);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.controller == mpc) {
+                    entry.preloadTime = SystemClock.elapsedRealtime();
+                }
+            }
+        }
+        mpc.runOnMediaThread(() -> {
+            // state could be changed before this is run
+            if (!mpc.isReleased() && canPreload(alias, mpc, playMode, uri)) {
+                mpc.setContentUri(playMode, uri);
+                // no-op if already preparing or prepared
+                mpc.resume();
+            }
+        });
+        trimPreloaded(alias);
+        return mpc;
+    }
+
+    private static boolean canPreload(String alias, @NotNull MediaPlayerController mpc, @NotNull BaseMediaPlayerController.PlayMode playMode, @NotNull Uri uri) {
+        if (mpc.isPlaying() || mpc.getTargetState() == BaseMediaPlayerController.State.PLAYING) {
+            logger.w("controller \"" + alias + "\" is playing, " + uri + " is not preloaded");
+            return false;
+        }
+        if (mpc.getPlayMode() == playMode && uri.equals(mpc.getContentUri()) && (mpc.isPreparing() || mpc.isInPlaybackState())) {
+            logger.d("controller \"" + alias + "\" is already preparing or prepared with " + uri);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isPreloaded(String alias) {
+        final Entry entry = mCached.get(alias);
+        return entry != null && entry.isActive() && entry.preloadTime != 0;
+    }
+
+    public int getPreloadBudget() {
+        synchronized (mPolicyLock) {
+            return mPreloadBudget;
+        }
+    }
+
+    /**
+     * @param preloadBudget maximum number of controllers kept prepared by {@link #preload(String, BaseMediaPlayerController.PlayMode, Uri)}
+     *                      until they are started
+     */
+    public void setPreloadBudget(int preloadBudget) {
+        if (preloadBudget < 0) {
+            throw new IllegalArgumentException("incorrect preloadBudget: " + preloadBudget);
+        }
+        synchronized (mPolicyLock) {
+            mPreloadBudget = preloadBudget;
+        }
+        trimPreloaded(null);
     }
 
     @Nullable
     public MediaPlayerController remove(String alias) {
-        MediaPlayerController mpc = mCached.remove(alias);
+        final Entry entry = mCached.remove(alias);
+        if (entry == null) {
+            return null;
+        }
+        final MediaPlayerController mpc;
+        synchronized (entry) {
+            entry.removed = true;
+            entry.snapshot = null;
+            entry.preloadTime = 0;
+            mpc = entry.controller;
+        }
         if (mpc != null && !mpc.isReleased()) {
             mpc.release();
         }
         return mpc;
     }
 
+    @NotNull
+    public Observable<OnControllerRecreatedListener> getControllerRecreatedObservable() {
+        return mControllerRecreatedObservable;
+    }
+
+    /**
+     * least recently accessed controllers, which are not playing, are evicted
+     * when there are more active controllers than capacity or when they were idle for given time;
+     * access is any facade call for alias or state change of controller
+     *
+     * @param capacity      maximum number of active (not evicted) controllers or {@link #CAPACITY_UNLIMITED}
+     * @param idleTimeoutMs or {@link #IDLE_TIMEOUT_NEVER}
+     */
+    public void setEvictionPolicy(int capacity, long idleTimeoutMs, @NotNull EvictionMode mode) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("incorrect capacity: " + capacity);
+        }
+        if (idleTimeoutMs < 0) {
+            throw new IllegalArgumentException("incorrect idleTimeoutMs: " + idleTimeoutMs);
+        }
+        synchronized (mPolicyLock) {
+            mCapacity = capacity;
+            mIdleTimeoutMs = idleTimeoutMs;
+            mEvictionMode = mode;
+            if (mIdleCheckFuture != null) {
+                mIdleCheckFuture.cancel(false);
+                mIdleCheckFuture = null;
+            }
+            if (mEvictionExecutor.isShutdown()) {
+                return;
+            }
+            if (idleTimeoutMs != IDLE_TIMEOUT_NEVER) {
+                final long interval = Math.max(MIN_IDLE_CHECK_INTERVAL_MS, idleTimeoutMs / 2);
+                mIdleCheckFuture = mEvictionExecutor.scheduleWithFixedDelay(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+            }
+            if (capacity != CAPACITY_UNLIMITED) {
+                mEvictionExecutor.execute(() -> evictOverCapacity(null));
+            }
+        }
+    }
+
+    public int getMediaThreadsCount() {
+        return mMediaThreads.length;
+    }
+
+    /**
+     * @return looper of media thread with given index, main looper if there are no media threads
+     */
+    @NotNull
+    public Looper getMediaLooper(int index) {
+        if (mMediaThreads.length == 0) {
+            return Looper.getMainLooper();
+        }
+        if (index < 0 || index >= mMediaThreads.length) {
+            throw new IllegalArgumentException("incorrect index: " + index);
+        }
+        synchronized (mMediaThreads) {
+            HandlerThread thread = mMediaThreads[index];
+            if (thread == null) {
+                thread = new HandlerThread(MediaPlayerFacade.class.getSimpleName() + "-media-" + index, Process.THREAD_PRIORITY_AUDIO);
+                thread.start();
+                mMediaThreads[index] = thread;
+            }
+            return thread.getLooper();
+        }
+    }
+
+    @NotNull
+    private Looper nextMediaLooper() {
+        if (mMediaThreads.length == 0) {
+            return Looper.getMainLooper();
+        }
+        return getMediaLooper((mNextMediaThread.getAndIncrement() & Integer.MAX_VALUE) % mMediaThreads.length);
+    }
+
+    /**
+     * pending messages of released controllers are processed before quit, where possible
+     */
+    private void quitMediaThreads() {
+        synchronized (mMediaThreads) {
+            for (int i = 0; i < mMediaThreads.length; i++) {
+                final HandlerThread thread = mMediaThreads[i];
+                if (thread != null) {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                        thread.quitSafely();
+                    } else {
+                        thread.quit();
+                    }
+                    mMediaThreads[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * controller for alias is created at most once, concurrent callers wait for it
+     */
+    @Nullable
+    private MediaPlayerController access(String alias, boolean create, @Nullable Looper mediaLooper) {
+        MediaPlayerController mpc;
+        boolean recreated = false;
+        while (true) {
+            Entry entry = mCached.get(alias);
+            if (entry == null) {
+                if (!create) {
+                    return null;
+                }
+                final Entry newEntry = new Entry();
+                entry = mCached.putIfAbsent(alias, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
+                }
+            }
+            synchronized (entry) {
+                if (entry.removed) {
+                    // removed concurrently, retry with new entry
+                    continue;
+                }
+                entry.touch();
+                mpc = entry.controller;
+                if (mpc != null && !mpc.isReleased()) {
+                    if (entry.suspended) {
+                        logger.d("resuming evicted controller \"" + alias + "\"...");
+                        entry.suspended = false;
+                        // after suspend, posted by eviction, if it wasn't run yet
+                        final MediaPlayerController suspended = mpc;
+                        suspended.runOnMediaThread(() -> {
+                            if (!suspended.isReleased()) {
+                                suspended.resume();
+                            }
+                        });
+                    }
+                } else if (entry.snapshot != null) {
+                    logger.d("recreating evicted controller \"" + alias + "\"...");
+                    mpc = createController(entry, entry.snapshot.looper);
+                    entry.snapshot.restore(mpc);
+                    entry.snapshot = null;
+                    recreated = true;
+                } else if (create) {
+                    mpc = createController(entry, mediaLooper != null ? mediaLooper : Looper.getMainLooper());
+                } else {
+                    return null;
+                }
+            }
+            break;
+        }
+        if (recreated) {
+            mControllerRecreatedObservable.dispatchControllerRecreated(alias, mpc);
+        }
+        evictOverCapacity(alias);
+        return mpc;
+    }
+
+    @NotNull
+    private MediaPlayerController createController(@NotNull Entry entry, @NotNull Looper mediaLooper) {
+        final MediaPlayerController mpc = new MediaPlayerController(mContext, mediaLooper);
+        mpc.getStateChangedObservable().registerObserver(entry);
+        entry.controller = mpc;
+        entry.suspended = false;
+        return mpc;
+    }
 
+    /**
+     * @param keepAlias alias which was just accessed
+     */
+    private void evictOverCapacity(@Nullable String keepAlias) {
+        final int capacity;
+        final EvictionMode mode;
+        synchronized (mPolicyLock) {
+            capacity = mCapacity;
+            mode = mEvictionMode;
+        }
+        if (capacity == CAPACITY_UNLIMITED) {
+            return;
+        }
+        final List<Pair<String, Entry>> active = new ArrayList<>();
+        final Map<Entry, Long> accessTimes = new HashMap<>();
+        for (Map.Entry<String, Entry> e : mCached.entrySet()) {
+            if (e.getValue().isActive()) {
+                active.add(new Pair<>(e.getKey(), e.getValue()));
+                // fixed for sorting
+                accessTimes.put(e.getValue(), e.getValue().lastAccessTime);
+            }
+        }
+        int excess = active.size() - capacity;
+        if (excess <= 0) {
+            return;
+        }
+        Collections.sort(active, (lhs, rhs) -> compareTimes(accessTimes.get(lhs.second), accessTimes.get(rhs.second)));
+        for (Pair<String, Entry> p : active) {
+            if (excess <= 0) {
+                break;
+            }
+            if (!p.first.equals(keepAlias) && evict(p.first, p.second, mode)) {
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * @param keepAlias alias which was just preloaded
+     */
+    private void trimPreloaded(@Nullable String keepAlias) {
+        final int budget = getPreloadBudget();
+        final List<Pair<String, Entry>> preloaded = new ArrayList<>();
+        final Map<Entry, Long> preloadTimes = new HashMap<>();
+        for (Map.Entry<String, Entry> e : mCached.entrySet()) {
+            final long preloadTime = e.getValue().preloadTime;
+            if (preloadTime != 0 && e.getValue().isActive()) {
+                preloaded.add(new Pair<>(e.getKey(), e.getValue()));
+                preloadTimes.put(e.getValue(), preloadTime);
+            }
+        }
+        int excess = preloaded.size() - budget;
+        if (excess <= 0) {
+            return;
+        }
+        Collections.sort(preloaded, (lhs, rhs) -> compareTimes(preloadTimes.get(lhs.second), preloadTimes.get(rhs.second)));
+        for (Pair<String, Entry> p : preloaded) {
+            if (excess <= 0) {
+                break;
+            }
+            if (p.first.equals(keepAlias)) {
+                continue;
+            }
+            synchronized (p.second) {
+                final MediaPlayerController mpc = p.second.controller;
+                if (p.second.preloadTime == 0 || !p.second.isActive() || mpc == null) {
+                    continue;
+                }
+                logger.d("preload budget exceeded, suspending controller \"" + p.first + "\"");
+                p.second.preloadTime = 0;
+                if (!mpc.isPlaying() && mpc.getTargetState() != BaseMediaPlayerController.State.PLAYING) {
+                    suspendOnMediaThread(p.second, mpc);
+                }
+                excess--;
+            }
+        }
+    }
 
+    /**
+     * Long.compare() requires API 19
+     */
+    private static int compareTimes(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    private void evictIdle() {
+        final long idleTimeoutMs;
+        final EvictionMode mode;
+        synchronized (mPolicyLock) {
+            idleTimeoutMs = mIdleTimeoutMs;
+            mode = mEvictionMode;
+        }
+        if (idleTimeoutMs == IDLE_TIMEOUT_NEVER) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, Entry> e : mCached.entrySet()) {
+            if (e.getValue().isActive() && now - e.getValue().lastAccessTime >= idleTimeoutMs) {
+                evict(e.getKey(), e.getValue(), mode);
+            }
+        }
+    }
+
+    /**
+     * playing (or going to play) controllers are not evicted
+     *
+     * @return true if controller was evicted
+     */
+    private boolean evict(@NotNull String alias, @NotNull Entry entry, @NotNull EvictionMode mode) {
+        synchronized (entry) {
+            final MediaPlayerController mpc = entry.controller;
+            if (entry.removed || entry.suspended || entry.preloadTime != 0 || mpc == null || mpc.isReleased()) {
+                return false;
+            }
+            if (mpc.isPlaying() || mpc.getTargetState() == BaseMediaPlayerController.State.PLAYING) {
+                return false;
+            }
+            if (mode == EvictionMode.RELEASE && PlaylistManager.isBound(mpc)) {
+                // manager can't be moved to recreated controller
+                logger.d("controller \"" + alias + "\" is bound to " + PlaylistManager.class.getSimpleName() + ", suspending instead of release");
+                mode = EvictionMode.SUSPEND;
+            }
+            logger.d("evicting controller \"" + alias + "\", mode: " + mode);
+            switch (mode) {
+                case SUSPEND:
+                    suspendOnMediaThread(entry, mpc);
+                    break;
+                case RELEASE:
+                    entry.snapshot = new Snapshot(mpc);
+                    mpc.getStateChangedObservable().unregisterObserver(entry);
+                    entry.controller = null;
+                    // detaching of media controller and state observers require media thread
+                    mpc.runOnMediaThread(() -> {
+                        if (!mpc.isReleased()) {
+                            mpc.release();
+                        }
+                    });
+                    break;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * entry is marked suspended immediately, player is released on media thread of controller,
+     * unless controller was accessed (and so resumed) or started meanwhile; called under lock of entry
+     */
+    private static void suspendOnMediaThread(@NotNull Entry entry, @NotNull MediaPlayerController mpc) {
+        entry.suspended = true;
+        mpc.runOnMediaThread(() -> {
+            synchronized (entry) {
+                if (!entry.suspended || entry.controller != mpc) {
+                    return;
+                }
+            }
+            if (!mpc.isReleased() && !mpc.isPlaying() && mpc.getTargetState() != BaseMediaPlayerController.State.PLAYING) {
+                mpc.suspend();
+            }
+        });
+    }
+
+    public enum EvictionMode {
+
+        /**
+         * native player is released, controller object is kept and resumed on next access
+         */
+        SUSPEND,
+
+        /**
+         * controller is released and new one with same content is created on next access;
+         * observers of old controller should be moved in {@link OnControllerRecreatedListener};
+         * controllers used by {@link PlaylistManager} are suspended instead
+         */
+        RELEASE
+    }
+
+    public interface OnControllerRecreatedListener {
+
+        void onControllerRecreated(@NotNull String alias, @NotNull MediaPlayerController controller);
+    }
+
+    private static class OnControllerRecreatedObservable extends Observable<OnControllerRecreatedListener> {
+
+        private void dispatchControllerRecreated(@NotNull String alias, @NotNull MediaPlayerController controller) {
+            synchronized (observers) {
+                for (OnControllerRecreatedListener l : copyOfObservers()) {
+                    l.onControllerRecreated(alias, controller);
+                }
+            }
+        }
+    }
+
+    /**
+     * guarded by own monitor, except {@link #lastAccessTime}
+     */
+    private static class Entry implements BaseMediaPlayerController.OnStateChangedListener {
+
+        @Nullable
+        MediaPlayerController controller;
+
+        /**
+         * content of controller released by eviction
+         */
+        @Nullable
+        Snapshot snapshot;
+
+        boolean suspended = false;
+
+        boolean removed = false;
+
+        volatile long lastAccessTime = SystemClock.elapsedRealtime();
+
+        /**
+         * time of last {@link #preload(String, BaseMediaPlayerController.PlayMode, Uri)}, 0 if not preloaded or already started
+         */
+        volatile long preloadTime = 0;
+
+        void touch() {
+            lastAccessTime = SystemClock.elapsedRealtime();
+        }
+
+        synchronized boolean isActive() {
+            return !removed && !suspended && controller != null && !controller.isReleased();
+        }
+
+        @Override
+        public void onBeforeOpenDataSource() {
+            touch();
+        }
+
+        @Override
+        public void onCurrentStateChanged(@NotNull BaseMediaPlayerController.State currentState, @NotNull BaseMediaPlayerController.State previousState) {
+            touch();
+            if (currentState == BaseMediaPlayerController.State.PLAYING || currentState == BaseMediaPlayerController.State.RELEASED) {
+                preloadTime = 0;
+            }
+        }
+
+        @Override
+        public void onTargetStateChanged(@NotNull BaseMediaPlayerController.State targetState) {
+            touch();
+        }
+    }
+
+    private static class Snapshot {
+
+        @NotNull
+        final Looper looper;
+
+        @NotNull
+        final BaseMediaPlayerController.PlayMode playMode;
+
+        @Nullable
+        final Uri contentUri;
+
+        @NotNull
+        final Map<String, String> headers;
+
+        @Nullable
+        final AssetFileDescriptor contentFd;
+
+        final boolean looping;
+
+        final int position;
+
+        @NotNull
+        final Pair<Float, Float> volume;
+
+        Snapshot(@NotNull MediaPlayerController mpc) {
+            looper = mpc.getMediaLooper();
+            playMode = mpc.getPlayMode();
+            contentUri = mpc.getContentUri();
+            headers = new HashMap<>(mpc.getHeaders());
+            contentFd = mpc.getContentAssetFileDescriptor();
+            looping = mpc.isLooping();
+            position = mpc.isInPlaybackState() ? mpc.getCurrentPosition() : BaseMediaPlayerController.POSITION_NO;
+            volume = mpc.getPreparedVolume();
+        }
+
+        void restore(@NotNull MediaPlayerController mpc) {
+            mpc.setLooping(looping);
+            if (volume.first != BaseMediaPlayerController.VOLUME_NOT_SET || volume.second != BaseMediaPlayerController.VOLUME_NOT_SET) {
+                mpc.setVolume(volume.first, volume.second);
+            }
+            if (contentUri != null) {
+                mpc.setContentUri(playMode, contentUri, headers);
+            } else if (contentFd != null) {
+                mpc.setContentFd(playMode, contentFd);
+            }
+            if (position != BaseMediaPlayerController.POSITION_NO) {
+                mpc.seekTo(position);
+            }
+        }
+    }
 }
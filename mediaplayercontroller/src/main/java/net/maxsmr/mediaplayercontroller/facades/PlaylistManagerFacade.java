@@ -1,9 +1,13 @@
 package net.maxsmr.mediaplayercontroller.facades;
 
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Pair;
 
 import net.maxsmr.commonutils.data.CompareUtils;
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
 import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
 import net.maxsmr.mediaplayercontroller.playlist.PlaylistManager;
 import net.maxsmr.mediaplayercontroller.playlist.item.BasePlaylistItem;
@@ -11,51 +15,96 @@ import net.maxsmr.mediaplayercontroller.playlist.item.BasePlaylistItem;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
+/**
+ * Thread-safe registry of {@link PlaylistManager}s by alias; aliases are indexed by current state of their controllers
+ * (updated by state observers), so state lookups don't query controllers
+ */
 public final class PlaylistManagerFacade {
 
-    private static PlaylistManagerFacade sInstance;
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(PlaylistManagerFacade.class);
+
+    private static final BaseMediaPlayerController.State[] PLAYBACK_STATES = {
+            BaseMediaPlayerController.State.PLAYING, BaseMediaPlayerController.State.PAUSED, BaseMediaPlayerController.State.PREPARED
+    };
+
+    private static volatile PlaylistManagerFacade sInstance;
 
     public static PlaylistManagerFacade getInstance() {
         if (sInstance == null) {
             synchronized (PlaylistManagerFacade.class) {
-                sInstance = new PlaylistManagerFacade();
+                if (sInstance == null) {
+                    sInstance = new PlaylistManagerFacade();
+                }
             }
         }
         return sInstance;
     }
 
     public static void releaseInstance() {
-        if (sInstance != null) {
-            for (String alias : sInstance.mCached.keySet()) {
-                sInstance.remove(alias);
+        synchronized (PlaylistManagerFacade.class) {
+            if (sInstance != null) {
+                for (String alias : new ArrayList<>(sInstance.mCached.keySet())) {
+                    sInstance.remove(alias);
+                }
+                sInstance.mCached.clear();
+                sInstance = null;
             }
-            sInstance.mCached.clear();
         }
     }
 
     @NotNull
-    private LinkedHashMap<String, PlaylistManager<?, ?>> mCached = new LinkedHashMap<>();
+    private final ConcurrentHashMap<String, Registration> mCached = new ConcurrentHashMap<>();
+
+    /**
+     * aliases by current state of controller
+     */
+    @NotNull
+    private final Map<BaseMediaPlayerController.State, Set<String>> mStateIndex = new EnumMap<>(BaseMediaPlayerController.State.class);
+
+    /**
+     * guards creation and removal, lookups are lock-free
+     */
+    private final Object mLock = new Object();
+
+    private PlaylistManagerFacade() {
+        for (BaseMediaPlayerController.State state : BaseMediaPlayerController.State.values()) {
+            mStateIndex.put(state, Collections.newSetFromMap(new ConcurrentHashMap<>()));
+        }
+    }
 
     @NotNull
     public <C extends BaseMediaPlayerController, I extends BasePlaylistItem> PlaylistManager<C, I> create(String alias, C mpc, Class<I> itemClass) {
-        PlaylistManager<C, I> manager = get(alias);
-        if (manager == null) {
-            manager = new PlaylistManager<>(mpc, itemClass);
-            manager.clearAcceptableFileMimeTypePrefixes();
+        synchronized (mLock) {
+            PlaylistManager<C, I> manager = get(alias);
+            if (manager == null) {
+                manager = new PlaylistManager<>(mpc, itemClass);
+                manager.clearAcceptableFileMimeTypePrefixes();
+                final Registration previous = mCached.put(alias, new Registration(alias, manager));
+                if (previous != null) {
+                    previous.unregister();
+                }
+            }
+            return manager;
         }
-        mCached.put(alias, manager);
-        return manager;
     }
 
     @SuppressWarnings("unchecked")
     @Nullable
     public <C extends BaseMediaPlayerController, I extends BasePlaylistItem> PlaylistManager<C, I> get(String alias) throws ClassCastException {
-        PlaylistManager<?, ?> manager = mCached.get(alias);
-        if (manager!= null && manager.isReleased()) {
+        final Registration registration = mCached.get(alias);
+        PlaylistManager<?, ?> manager = registration != null ? registration.manager : null;
+        if (manager != null && manager.isReleased()) {
             manager = null;
         }
         return (PlaylistManager<C, I>) manager;
@@ -63,74 +112,262 @@ public final class PlaylistManagerFacade {
 
     @Nullable
     public PlaylistManager<?, ?> remove(String alias) {
-        PlaylistManager<?, ?> manager = mCached.remove(alias);
-        if (manager != null && !manager.isReleased()) {
+        final Registration registration;
+        synchronized (mLock) {
+            registration = mCached.remove(alias);
+            if (registration == null) {
+                return null;
+            }
+            registration.unregister();
+        }
+        final PlaylistManager<?, ?> manager = registration.manager;
+        if (!manager.isReleased()) {
             manager.release();
         }
         return manager;
     }
 
     /**
-     *
+     * @return aliases of managers which controllers are in specified state
+     */
+    @NotNull
+    public Set<String> getAliasesInState(@NotNull BaseMediaPlayerController.State state) {
+        //noinspection ConstantConditions
+        return Collections.unmodifiableSet(mStateIndex.get(state));
+    }
+
+    /**
      * @return null if no managers in "playback" state
      */
     @Nullable
-    private Pair<String, ? extends PlaylistManager<?, ?>> findFirstManagerInPlaybackState() {
-        for (Map.Entry<String, PlaylistManager<?, ?>> entry : mCached.entrySet()) {
-            if (entry.getValue().isInPlaybackState()) {
-                return new Pair<>(entry.getKey(), entry.getValue());
+    public Pair<String, ? extends PlaylistManager<?, ?>> findFirstManagerInPlaybackState() {
+        for (BaseMediaPlayerController.State state : PLAYBACK_STATES) {
+            //noinspection ConstantConditions
+            for (String alias : mStateIndex.get(state)) {
+                final PlaylistManager<?, ?> manager = get(alias);
+                if (manager != null && manager.isInPlaybackState()) {
+                    return new Pair<>(alias, manager);
+                }
             }
         }
         return null;
     }
 
+    /**
+     * @param alias compared ignoring case
+     */
     @Nullable
-    private Pair<String, ? extends PlaylistManager<?, ?>> findManagerInPlaybackStateByAlias(String alias) {
-        for (Map.Entry<String, PlaylistManager<?, ?>> entry : mCached.entrySet()) {
-            if (CompareUtils.stringsEqual(entry.getKey(), alias, true) && entry.getValue().isInPlaybackState()) {
-                return new Pair<>(entry.getKey(), entry.getValue());
+    public Pair<String, ? extends PlaylistManager<?, ?>> findManagerInPlaybackStateByAlias(String alias) {
+        for (Map.Entry<String, Registration> e : mCached.entrySet()) {
+            if (CompareUtils.stringsEqual(e.getKey(), alias, true)) {
+                final PlaylistManager<?, ?> manager = get(e.getKey());
+                if (manager != null && manager.isInPlaybackState()) {
+                    return new Pair<>(e.getKey(), manager);
+                }
             }
         }
         return null;
     }
 
     /**
-     *
      * @return null if no managers in specified state
      */
     @Nullable
-    private Pair<String, ? extends PlaylistManager<?, ?>> findFirstManagerInState(@NotNull BaseMediaPlayerController.State state) {
-        for (Map.Entry<String, PlaylistManager<?, ?>> entry : mCached.entrySet()) {
-            if (entry.getValue().getPlayerController().getCurrentState() == state) {
-                return new Pair<>(entry.getKey(), entry.getValue());
+    public Pair<String, ? extends PlaylistManager<?, ?>> findFirstManagerInState(@NotNull BaseMediaPlayerController.State state) {
+        //noinspection ConstantConditions
+        for (String alias : mStateIndex.get(state)) {
+            final PlaylistManager<?, ?> manager = get(alias);
+            if (manager != null) {
+                return new Pair<>(alias, manager);
             }
         }
         return null;
     }
 
+    /**
+     * @param alias compared ignoring case
+     */
     @Nullable
-    private Pair<String, ? extends PlaylistManager<?, ?>> findFirstManagerInStateByAlias(@NotNull BaseMediaPlayerController.State state, String alias) {
-        for (Map.Entry<String, PlaylistManager<?, ?>> entry : mCached.entrySet()) {
-            if (CompareUtils.stringsEqual(entry.getKey(), alias, true) && entry.getValue().getPlayerController().getCurrentState() == state) {
-                return new Pair<>(entry.getKey(), entry.getValue());
+    public Pair<String, ? extends PlaylistManager<?, ?>> findFirstManagerInStateByAlias(@NotNull BaseMediaPlayerController.State state, String alias) {
+        for (Map.Entry<String, Registration> e : mCached.entrySet()) {
+            if (CompareUtils.stringsEqual(e.getKey(), alias, true) && e.getValue().state == state) {
+                final PlaylistManager<?, ?> manager = get(e.getKey());
+                if (manager != null) {
+                    return new Pair<>(e.getKey(), manager);
+                }
             }
         }
         return null;
     }
 
-    private void clearAllTracks() {
-        for (PlaylistManager<?, ?> manager : mCached.values()) {
-            manager.clearTracks();
-        }
+    public void clearAllTracks() {
+        runInParallel(mCached.keySet(), PlaylistManager::clearTracks);
     }
 
     public void clearAllTracksByAlias(String... aliases) {
         if (aliases != null) {
-            for (Map.Entry<String, PlaylistManager<?, ?>> entry : mCached.entrySet()) {
-                 if (Arrays.binarySearch(aliases, entry.getKey()) > -1) {
-                    entry.getValue().clearTracks();
+            final Set<String> unique = new LinkedHashSet<>();
+            Collections.addAll(unique, aliases);
+            runInParallel(unique, PlaylistManager::clearTracks);
+        }
+    }
+
+    /**
+     * runs action for each manager on its media thread and waits for completion:
+     * managers on different media threads are processed in parallel;
+     * failure of one action doesn't affect others
+     */
+    public void runInParallel(@NotNull Collection<String> aliases, @NotNull ManagerAction action) {
+        final List<PlaylistManager<?, ?>> managers = new ArrayList<>();
+        for (String alias : aliases) {
+            final PlaylistManager<?, ?> manager = get(alias);
+            if (manager != null) {
+                managers.add(manager);
+            }
+        }
+        if (managers.isEmpty()) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(managers.size());
+        final List<Runnable> ownThreadTasks = new ArrayList<>();
+        for (PlaylistManager<?, ?> manager : managers) {
+            final Runnable task = () -> {
+                try {
+                    if (!manager.isReleased()) {
+                        action.run(manager);
+                    }
+                } catch (RuntimeException e) {
+                    logger.e("a RuntimeException occurred during run()", e);
+                } finally {
+                    latch.countDown();
                 }
+            };
+            final Looper looper;
+            try {
+                looper = manager.getMediaLooper();
+            } catch (IllegalStateException e) {
+                // released meanwhile
+                latch.countDown();
+                continue;
+            }
+            if (Looper.myLooper() == looper) {
+                // waiting for own thread would never end, run after others are posted
+                ownThreadTasks.add(task);
+            } else {
+                new Handler(looper).post(task);
             }
         }
+        for (Runnable task : ownThreadTasks) {
+            task.run();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.e("an InterruptedException occurred during await()", e);
+        }
+    }
+
+    private void moveInIndex(@NotNull String alias, @Nullable BaseMediaPlayerController.State from, @Nullable BaseMediaPlayerController.State to) {
+        if (from != null) {
+            //noinspection ConstantConditions
+            mStateIndex.get(from).remove(alias);
+        }
+        if (to != null) {
+            //noinspection ConstantConditions
+            mStateIndex.get(to).add(alias);
+        }
+    }
+
+    public interface ManagerAction {
+
+        void run(@NotNull PlaylistManager<?, ?> manager);
+    }
+
+    /**
+     * keeps {@link #mStateIndex} in sync with controller of manager, including controller swaps by crossfade
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private class Registration implements BaseMediaPlayerController.OnStateChangedListener, PlaylistManager.OnPlayerControllerChangedListener {
+
+        @NotNull
+        final String alias;
+
+        @NotNull
+        final PlaylistManager<?, ?> manager;
+
+        @Nullable
+        BaseMediaPlayerController<?> controller;
+
+        /**
+         * last indexed state, null if unregistered
+         */
+        @Nullable
+        volatile BaseMediaPlayerController.State state;
+
+        Registration(@NotNull String alias, @NotNull PlaylistManager<?, ?> manager) {
+            this.alias = alias;
+            this.manager = manager;
+            manager.getPlayerControllerChangedObservable().registerObserver((PlaylistManager.OnPlayerControllerChangedListener) this);
+            attach(manager.getPlayerController());
+        }
+
+        /**
+         * controllers are not called under own monitor: they dispatch state under their locks
+         */
+        private void attach(@NotNull BaseMediaPlayerController<?> newController) {
+            final BaseMediaPlayerController<?> oldController;
+            synchronized (this) {
+                oldController = controller;
+                controller = newController;
+            }
+            if (oldController != null) {
+                oldController.getStateChangedObservable().unregisterObserver(this);
+            }
+            newController.getStateChangedObservable().registerObserver(this);
+            update(newController.getCurrentState());
+        }
+
+        void unregister() {
+            final BaseMediaPlayerController<?> oldController;
+            synchronized (this) {
+                oldController = controller;
+                controller = null;
+                moveInIndex(alias, state, null);
+                state = null;
+            }
+            manager.getPlayerControllerChangedObservable().unregisterObserver((PlaylistManager.OnPlayerControllerChangedListener) this);
+            if (oldController != null) {
+                oldController.getStateChangedObservable().unregisterObserver(this);
+            }
+        }
+
+        private synchronized void update(@NotNull BaseMediaPlayerController.State newState) {
+            if (controller == null || newState == state) {
+                return;
+            }
+            moveInIndex(alias, state, newState);
+            state = newState;
+        }
+
+        @Override
+        public void onPlayerControllerChanged(@NotNull BaseMediaPlayerController current, @NotNull BaseMediaPlayerController previous) {
+            attach(current);
+        }
+
+        @Override
+        public void onBeforeOpenDataSource() {
+
+        }
+
+        @Override
+        public void onCurrentStateChanged(@NotNull BaseMediaPlayerController.State currentState, @NotNull BaseMediaPlayerController.State previousState) {
+            update(currentState);
+        }
+
+        @Override
+        public void onTargetStateChanged(@NotNull BaseMediaPlayerController.State targetState) {
+
+        }
     }
 }
@@ -1,15 +1,12 @@
 package net.maxsmr.mediaplayercontroller.mpc;
 
-import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
-import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Pair;
@@ -18,7 +15,7 @@ import android.widget.MediaController;
 import androidx.annotation.CallSuper;
 import androidx.annotation.IntDef;
 import androidx.annotation.RawRes;
-import androidx.core.content.ContextCompat;
+import androidx.annotation.WorkerThread;
 
 import net.maxsmr.commonutils.android.media.MediaStoreInfoRetriever;
 import net.maxsmr.commonutils.android.media.MetadataRetriever;
@@ -27,9 +24,9 @@ import net.maxsmr.commonutils.data.FileHelper;
 import net.maxsmr.commonutils.data.Observable;
 import net.maxsmr.commonutils.logger.BaseLogger;
 import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
-import net.maxsmr.mediaplayercontroller.mpc.receivers.AudioFocusChangeReceiver;
-import net.maxsmr.mediaplayercontroller.mpc.receivers.HeadsetPlugBroadcastReceiver;
-import net.maxsmr.mediaplayercontroller.mpc.receivers.NoisyAudioBroadcastReceiver;
+import net.maxsmr.mediaplayercontroller.cache.MediaCacheProxy;
+import net.maxsmr.mediaplayercontroller.cache.SegmentedDownloader;
+import net.maxsmr.mediaplayercontroller.mpc.receivers.SystemEventHub;
 import net.maxsmr.tasksutils.ScheduledThreadPoolExecutorManager;
 
 import org.jetbrains.annotations.NotNull;
@@ -46,10 +43,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerController.OnErrorListener.MediaError> implements MediaController.MediaPlayerControl {
@@ -60,6 +56,13 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
 
     public final static long DEFAULT_NOTIFY_PLAYBACK_TIME_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
 
+    public final static long DEFAULT_IDLE_RELEASE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * resources are kept until {@link #release()}
+     */
+    public final static long IDLE_RELEASE_NEVER = 0;
+
     public static final int AUDIO_SESSION_EMPTY = -1;
 
     public static final int POSITION_NO = -1;
@@ -69,6 +72,13 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
     public static final float VOLUME_MIN = 0.0f;
     public static final int VOLUME_NOT_SET = -1;
 
+    /**
+     * gain while other app holds transient focus with ducking allowed
+     */
+    public static final float VOLUME_DUCK = 0.1f;
+
+    public static final long DEFAULT_DUCK_RAMP_MS = 250;
+
 
     @NotNull
     protected final Object mLock = new Object();
@@ -83,7 +93,19 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
 
     private final ScheduledThreadPoolExecutorManager mPlaybackTimeTask = new ScheduledThreadPoolExecutorManager(ScheduledThreadPoolExecutorManager.ScheduleMode.FIXED_RATE, "PlaybackTimeTask");
 
-    private ScheduledExecutorService mExecutorService;
+    /**
+     * lifecycle of executor is guarded by own lock, not by mLock: it's used from arbitrary threads,
+     * including tasks, which wait for mLock
+     */
+    private final Object mExecutorLock = new Object();
+
+    @Nullable
+    private volatile ScheduledThreadPoolExecutor mExecutorService;
+
+    /**
+     * set on release under executor lock, so nothing is submitted after that
+     */
+    private boolean mExecutorReleased = false;
 
     protected boolean mLoopWhenPreparing = false; // set looping property while preparing
 
@@ -124,6 +146,21 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
     @NotNull
     protected Map<String, String> mContentHeaders = new LinkedHashMap<>();
 
+    /**
+     * if set, http/https content will be routed through it
+     */
+    @Nullable
+    protected MediaCacheProxy mCacheProxy;
+
+    /**
+     * if set (and caching is enabled), whole http/https content will be downloaded into cache over several connections
+     */
+    @Nullable
+    protected SegmentedDownloader mSegmentedDownloader;
+
+    @NotNull
+    protected DataSourceMode mDataSourceMode = DataSourceMode.DEFAULT;
+
     protected boolean mCanPause = true;
 
     protected boolean mCanSeekBack = false;
@@ -133,22 +170,45 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
     protected float mVolumeLeftWhenPrepared = VOLUME_NOT_SET;
     protected float mVolumeRightWhenPrepared = VOLUME_NOT_SET;
 
+    @NotNull
+    protected final VolumeRamp mVolumeRamp = new VolumeRamp(this);
+
+    protected long mDuckRampMs = DEFAULT_DUCK_RAMP_MS;
+
     protected long mPrepareResetTimeoutMs = DEFAULT_PREPARE_RESET_TIMEOUT_MS;
 
-    private Future<?> mResetFuture;
+    @Nullable
+    private TimerWheel.Timeout mResetTimeout;
+
+    /**
+     * incremented on each resolve and cancel, so stale results are ignored
+     */
+    private int mResolveGeneration = 0;
+
+    @Nullable
+    private Future<?> mResolveFuture;
+
+    /**
+     * proxy, which serves {@link #mPinnedDataSourceUri} until it's released with player
+     */
+    @Nullable
+    private MediaCacheProxy mPinnedCacheProxy;
+
+    @Nullable
+    private Uri mPinnedDataSourceUri;
 
     private boolean mReactOnExternalEvents = true;
 
-    private boolean mInterrupted = false;
+    /**
+     * true if receivers are registered and executor is started
+     */
+    private boolean mResourcesAcquired = false;
 
-    @NotNull
-    private final AudioFocusChangeReceiver mAudioFocusChangeReceiver = new AudioFocusChangeReceiver();
+    private long mIdleReleaseTimeoutMs = DEFAULT_IDLE_RELEASE_TIMEOUT_MS;
 
-    @NotNull
-    private final HeadsetPlugBroadcastReceiver mHeadsetPlugBroadcastReceiver = new HeadsetPlugBroadcastReceiver();
+    private final Runnable mIdleReleaseRunnable = this::releaseResourcesIfIdle;
 
-    @NotNull
-    private final NoisyAudioBroadcastReceiver mNoisyBroadcastReceiver = new NoisyAudioBroadcastReceiver();
+    private boolean mInterrupted = false;
 
     @NotNull
     protected final OnStateChangedObservable mStateChangedObservable = new OnStateChangedObservable();
@@ -172,14 +232,18 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
         this.init();
     }
 
+    /**
+     * receives events from {@link SystemEventHub}, shared by all controllers
+     */
     @NotNull
-    private final AudioFocusChangeReceiver.OnAudioFocusChangeListener mAudioFocusChangeListener = new AudioFocusChangeReceiver.OnAudioFocusChangeListener() {
+    private final SystemEventHub.Subscriber mSystemEventSubscriber = new SystemEventHub.Subscriber() {
+
         @Override
         public void onAudioFocusGain() {
             logger.d("onAudioFocusGain()");
             // resume playback
-            if (mVolumeLeftWhenPrepared != VOLUME_NOT_SET && mVolumeRightWhenPrepared != VOLUME_NOT_SET) {
-                setVolume(mVolumeLeftWhenPrepared, mVolumeRightWhenPrepared);
+            if (mVolumeRamp.isRunning() || mVolumeRamp.getCurrentLeft(VOLUME_NOT_SET) != VOLUME_NOT_SET) {
+                mVolumeRamp.rampTo(getEffectiveVolumeLeft(), getEffectiveVolumeRight(), mDuckRampMs, VolumeRamp.Curve.LINEAR, null);
             }
             handleInterruptEventEnd();
         }
@@ -214,19 +278,12 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
             if (mReactOnExternalEvents) {
                 // Lost focus for a short time, but it's ok to keep playing
                 // at an attenuated level
-                float previousVolumeLeft = mVolumeLeftWhenPrepared != VOLUME_NOT_SET ? mVolumeLeftWhenPrepared : getAverageVolume();
-                float previousVolumeRight = mVolumeRightWhenPrepared != VOLUME_NOT_SET ? mVolumeRightWhenPrepared : getAverageVolume();
-                setVolume(0.1f, 0.1f);
-                mVolumeLeftWhenPrepared = previousVolumeLeft;
-                mVolumeRightWhenPrepared = previousVolumeRight;
+                mVolumeRamp.rampTo(Math.min(VOLUME_DUCK, getEffectiveVolumeLeft()), Math.min(VOLUME_DUCK, getEffectiveVolumeRight()),
+                        mDuckRampMs, VolumeRamp.Curve.LINEAR, null);
             } else {
                 logger.d("reacting on external events is disabled");
             }
         }
-    };
-
-    @NotNull
-    private final NoisyAudioBroadcastReceiver.OnNoisyAudioListener mNoisyAudioListener = new NoisyAudioBroadcastReceiver.OnNoisyAudioListener() {
 
         @Override
         public void onNoisyAudio() {
@@ -237,10 +294,6 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
                 logger.d("reacting on external events is disabled");
             }
         }
-    };
-
-    @NotNull
-    private final HeadsetPlugBroadcastReceiver.OnHeadsetStateChangedListener mHeadsetStateChangeListener = new HeadsetPlugBroadcastReceiver.OnHeadsetStateChangedListener() {
 
         @Override
         public void onHeadphonesPlugged(boolean hasMicrophone) {
@@ -257,10 +310,6 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
                 logger.d("reacting on external events is disabled");
             }
         }
-    };
-
-    @NotNull
-    private final PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
 
         @Override
         public void onCallStateChanged(int state, String incomingNumber) {
@@ -279,40 +328,100 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
         }
     };
 
+    /**
+     * receivers and executor are not acquired here, see {@link #acquireResources()}
+     */
     @CallSuper
     protected void init() {
-        startExecutor();
-        registerReceivers();
+
     }
 
-    private void registerReceivers() {
-        mAudioFocusChangeReceiver.getAudioFocusChangeObservable().registerObserver(mAudioFocusChangeListener);
-        mNoisyBroadcastReceiver.register(mContext);
-        mNoisyBroadcastReceiver.getNoisyAudioObservable().registerObserver(mNoisyAudioListener);
-        mHeadsetPlugBroadcastReceiver.register(mContext);
-        mHeadsetPlugBroadcastReceiver.getHeadsetStateChangedObservable().registerObserver(mHeadsetStateChangeListener);
-        if (ContextCompat.checkSelfPermission(mContext, "android.permission.READ_PHONE_STATE") == PackageManager.PERMISSION_GRANTED) {
-            final TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Activity.TELEPHONY_SERVICE);
-            if (telephonyManager != null) {
-                telephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+    /**
+     * registers receivers and starts executor, if it wasn't done yet;
+     * must be called by implementations at the beginning of {@link #openDataSource()} and {@link #start()}
+     */
+    protected final void acquireResources() {
+        synchronized (mLock) {
+            checkReleased();
+            mMediaHandler.removeCallbacks(mIdleReleaseRunnable);
+            synchronized (mExecutorLock) {
+                startExecutor();
+            }
+            if (!mResourcesAcquired) {
+                logger.d("acquiring resources...");
+                registerReceivers();
+                mResourcesAcquired = true;
             }
         }
     }
 
-    private void unregisterReceivers() {
-        mAudioFocusChangeReceiver.getAudioFocusChangeObservable().unregisterObserver(mAudioFocusChangeListener);
-        mNoisyBroadcastReceiver.getNoisyAudioObservable().unregisterObserver(mNoisyAudioListener);
-        mNoisyBroadcastReceiver.unregister(mContext);
-        mHeadsetPlugBroadcastReceiver.getHeadsetStateChangedObservable().unregisterObserver(mHeadsetStateChangeListener);
-        mHeadsetPlugBroadcastReceiver.unregister(mContext);
-        if (ContextCompat.checkSelfPermission(mContext, "android.permission.READ_PHONE_STATE") == PackageManager.PERMISSION_GRANTED) {
-            final TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Activity.TELEPHONY_SERVICE);
-            if (telephonyManager != null) {
-                telephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+    /**
+     * @param force false to keep executor, if it has pending or scheduled tasks
+     */
+    private void releaseResources(boolean force) {
+        mMediaHandler.removeCallbacks(mIdleReleaseRunnable);
+        if (mResourcesAcquired) {
+            unregisterReceivers();
+            mResourcesAcquired = false;
+        }
+        if (!stopExecutor(force)) {
+            logger.d("executor has pending tasks, it will be stopped later");
+            scheduleIdleRelease();
+        }
+    }
+
+    private void releaseResourcesIfIdle() {
+        synchronized (mLock) {
+            if (!isReleased() && mCurrentState == State.IDLE && (mResourcesAcquired || isExecutorRunning())) {
+                logger.d("idle for " + mIdleReleaseTimeoutMs + " ms, releasing resources...");
+                releaseResources(false);
+            }
+        }
+    }
+
+    private void scheduleIdleRelease() {
+        mMediaHandler.removeCallbacks(mIdleReleaseRunnable);
+        if (mIdleReleaseTimeoutMs != IDLE_RELEASE_NEVER) {
+            mMediaHandler.postDelayed(mIdleReleaseRunnable, mIdleReleaseTimeoutMs);
+        }
+    }
+
+    public long getIdleReleaseTimeoutMs() {
+        synchronized (mLock) {
+            return mIdleReleaseTimeoutMs;
+        }
+    }
+
+    /**
+     * @param idleReleaseTimeoutMs receivers are unregistered and executor is stopped after this time in {@link State#IDLE};
+     *                             {@link #IDLE_RELEASE_NEVER} to keep them
+     */
+    public void setIdleReleaseTimeoutMs(long idleReleaseTimeoutMs) {
+        synchronized (mLock) {
+            checkReleased();
+            if (idleReleaseTimeoutMs < 0) {
+                throw new IllegalArgumentException("incorrect idleReleaseTimeoutMs: " + idleReleaseTimeoutMs);
+            }
+            mIdleReleaseTimeoutMs = idleReleaseTimeoutMs;
+            if (mCurrentState == State.IDLE) {
+                scheduleIdleRelease();
+            } else if (idleReleaseTimeoutMs == IDLE_RELEASE_NEVER) {
+                mMediaHandler.removeCallbacks(mIdleReleaseRunnable);
             }
         }
     }
 
+    private void registerReceivers() {
+        SystemEventHub.getInstance().subscribe(mContext, mSystemEventSubscriber);
+    }
+
+    /**
+     * audio focus held by this controller is abandoned as well
+     */
+    private void unregisterReceivers() {
+        SystemEventHub.getInstance().unsubscribe(mSystemEventSubscriber);
+    }
+
     @NotNull
     public final Context getContext() {
         checkReleased();
@@ -352,6 +461,18 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
         }
     }
 
+    public long getDuckRampMs() {
+        return mDuckRampMs;
+    }
+
+    public void setDuckRampMs(long duckRampMs) {
+        checkReleased();
+        if (duckRampMs < 0) {
+            throw new IllegalArgumentException("incorrect duckRampMs: " + duckRampMs);
+        }
+        this.mDuckRampMs = duckRampMs;
+    }
+
     public void setReactOnExternalEvents(boolean reactOnExternalEvents) {
         checkReleased();
         this.mReactOnExternalEvents = reactOnExternalEvents;
@@ -359,12 +480,12 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
 
     protected final boolean requestAudioFocus() {
         checkReleased();
-        return mAudioFocusChangeReceiver.requestFocus(mContext);
+        return SystemEventHub.getInstance().requestFocus(mContext, mSystemEventSubscriber);
     }
 
     protected final boolean abandonAudioFocus() {
         checkReleased();
-        return mAudioFocusChangeReceiver.abandonFocus(mContext);
+        return SystemEventHub.getInstance().abandonFocus(mContext, mSystemEventSubscriber);
     }
 
     @NotNull
@@ -381,6 +502,11 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
                 State oldState = mCurrentState;
                 mCurrentState = newState;
                 logger.i("current state: " + mCurrentState);
+                if (newState == State.IDLE) {
+                    scheduleIdleRelease();
+                } else {
+                    mMediaHandler.removeCallbacks(mIdleReleaseRunnable);
+                }
                 mStateChangedObservable.dispatchCurrentStateChanged(mCurrentState, oldState);
             }
         }
@@ -427,6 +553,261 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
             }
             mVolumeLeftWhenPrepared = left;
             mVolumeRightWhenPrepared = right;
+            mVolumeRamp.reset();
+        }
+    }
+
+    /**
+     * @return volume set by {@link #setVolume(float, float)} or {@link #VOLUME_MAX}, if it wasn't set
+     */
+    public float getEffectiveVolumeLeft() {
+        synchronized (mLock) {
+            return mVolumeLeftWhenPrepared != VOLUME_NOT_SET ? mVolumeLeftWhenPrepared : VOLUME_MAX;
+        }
+    }
+
+    public float getEffectiveVolumeRight() {
+        synchronized (mLock) {
+            return mVolumeRightWhenPrepared != VOLUME_NOT_SET ? mVolumeRightWhenPrepared : VOLUME_MAX;
+        }
+    }
+
+    /**
+     * for ducking, fades and crossfades
+     */
+    @NotNull
+    public VolumeRamp getVolumeRamp() {
+        return mVolumeRamp;
+    }
+
+    /**
+     * sets gain of underlying player without changing volume, specified by {@link #setVolume(float, float)};
+     * called by {@link VolumeRamp} on its thread, so implementation must not wait for mLock
+     * or for executor and must tolerate released player, does nothing by default
+     */
+    protected void applyVolume(float left, float right) {
+
+    }
+
+    /**
+     * starts playback from silence and ramps gain up to volume from {@link #setVolume(float, float)};
+     * if player is not in playback state yet, it's just started
+     */
+    public void startWithFadeIn(long durationMs, @NotNull VolumeRamp.Curve curve) {
+        synchronized (mLock) {
+            checkReleased();
+            if (!isInPlaybackState()) {
+                start();
+                return;
+            }
+            // silence is applied by ramp before start, so there is no burst of full gain
+            mVolumeRamp.start(VOLUME_MIN, VOLUME_MIN, getEffectiveVolumeLeft(), getEffectiveVolumeRight(), durationMs, curve, null);
+            start();
+        }
+    }
+
+    /**
+     * ramps gain down to silence and pauses, then gain is restored, so next {@link #start()} is not silent
+     */
+    public void pauseWithFadeOut(long durationMs, @NotNull VolumeRamp.Curve curve) {
+        fadeOut(durationMs, curve, () -> {
+            pause();
+            applyVolume(getEffectiveVolumeLeft(), getEffectiveVolumeRight());
+            mVolumeRamp.reset();
+        });
+    }
+
+    /**
+     * ramps gain down to silence and stops
+     */
+    public void stopWithFadeOut(long durationMs, @NotNull VolumeRamp.Curve curve) {
+        fadeOut(durationMs, curve, () -> {
+            stop();
+            mVolumeRamp.reset();
+        });
+    }
+
+    private void fadeOut(long durationMs, @NotNull VolumeRamp.Curve curve, @NotNull Runnable then) {
+        synchronized (mLock) {
+            checkReleased();
+            if (!isPlaying()) {
+                then.run();
+                return;
+            }
+        }
+        // completion is on ramp thread: controller methods must be called on media thread
+        mVolumeRamp.rampTo(VOLUME_MIN, VOLUME_MIN, durationMs, curve, () -> postOnMediaHandler(() -> {
+            if (!isReleased()) {
+                then.run();
+            }
+        }));
+    }
+
+    public boolean isCachingEnabled() {
+        synchronized (mLock) {
+            return mCacheProxy != null && mCacheProxy.isRunning();
+        }
+    }
+
+    @Nullable
+    public MediaCacheProxy getCacheProxy() {
+        synchronized (mLock) {
+            return mCacheProxy;
+        }
+    }
+
+    /**
+     * @param cacheProxy started proxy to route http/https content through or null to disable caching;
+     *                   takes effect on next {@link #openDataSource()}
+     */
+    public void setCacheProxy(@Nullable MediaCacheProxy cacheProxy) {
+        synchronized (mLock) {
+            checkReleased();
+            mCacheProxy = cacheProxy;
+        }
+    }
+
+    @Nullable
+    public SegmentedDownloader getSegmentedDownloader() {
+        synchronized (mLock) {
+            return mSegmentedDownloader;
+        }
+    }
+
+    /**
+     * @param segmentedDownloader used only when caching is enabled, see {@link #setCacheProxy(MediaCacheProxy)}
+     */
+    public void setSegmentedDownloader(@Nullable SegmentedDownloader segmentedDownloader) {
+        synchronized (mLock) {
+            checkReleased();
+            mSegmentedDownloader = segmentedDownloader;
+        }
+    }
+
+    /**
+     * @return true if {@link #mContentUri} is routed through cache, so data source uri should be looked up
+     * by {@link #resolveDataSourceAsync(boolean, OnDataSourceResolvedCallback)}
+     */
+    protected boolean isCachedDataSource() {
+        synchronized (mLock) {
+            return mContentUri != null && isCachingEnabled() && MediaCacheProxy.isProxySupported(mContentUri);
+        }
+    }
+
+    /**
+     * performs I/O, so is called on executor without holding lock
+     *
+     * @return local copy of uri (if fully cached) or its proxied variant, null if cache file can't be opened
+     */
+    @Nullable
+    private static Uri lookupCachedDataSource(@NotNull MediaCacheProxy cacheProxy, @Nullable SegmentedDownloader segmentedDownloader,
+                                              @NotNull Uri uri, @NotNull Map<String, String> headers) {
+        final Uri cachedFileUri = cacheProxy.getCachedFileUri(uri);
+        if (cachedFileUri != null) {
+            return cachedFileUri;
+        }
+        final Uri proxyUri = cacheProxy.getProxyUri(uri, headers);
+        if (proxyUri != null && segmentedDownloader != null && !segmentedDownloader.isShutdown()) {
+            cacheProxy.prefetch(uri, headers, segmentedDownloader);
+        }
+        return proxyUri;
+    }
+
+    /**
+     * proxy uri obtained by last {@link #resolveDataSourceAsync(boolean, OnDataSourceResolvedCallback)} is not served anymore
+     */
+    private void releasePinnedDataSource() {
+        synchronized (mLock) {
+            if (mPinnedCacheProxy != null && mPinnedDataSourceUri != null) {
+                mPinnedCacheProxy.releaseProxyUri(mPinnedDataSourceUri);
+            }
+            mPinnedCacheProxy = null;
+            mPinnedDataSourceUri = null;
+        }
+    }
+
+    /**
+     * @return content type of {@link #mContentUri} from cache or by name (without I/O), null if not known
+     */
+    @Nullable
+    protected String peekContentType() {
+        synchronized (mLock) {
+            return mContentUri != null ? ContentTypeResolver.getInstance().peek(mContentUri) : null;
+        }
+    }
+
+    /**
+     * resolves content type of {@link #mContentUri} by {@link ContentTypeResolver} and, if requested and content is routed through cache,
+     * its data source uri on executor without holding lock;
+     * callback is run on media thread under lock, only if controller is still preparing
+     * and resolve wasn't cancelled or restarted meanwhile
+     *
+     * @param lookupDataSource proxy uri passed to callback is served until player is released
+     */
+    protected final void resolveDataSourceAsync(boolean lookupDataSource, @NotNull OnDataSourceResolvedCallback callback) {
+        synchronized (mLock) {
+            cancelDataSourceResolve();
+            final Uri uri = mContentUri;
+            if (uri == null) {
+                return;
+            }
+            final Map<String, String> headers = new LinkedHashMap<>(mContentHeaders);
+            final MediaCacheProxy cacheProxy = lookupDataSource && isCachedDataSource() ? mCacheProxy : null;
+            final SegmentedDownloader segmentedDownloader = mSegmentedDownloader;
+            final int generation = mResolveGeneration;
+            logger.d("resolving content type of " + uri + "...");
+            mResolveFuture = submitOnExecutor(() -> {
+                final String contentType = ContentTypeResolver.getInstance().resolve(mContext, uri, headers);
+                final Uri dataSourceUri = cacheProxy != null ? lookupCachedDataSource(cacheProxy, segmentedDownloader, uri, headers) : null;
+                postOnMediaHandler(() -> {
+                    synchronized (mLock) {
+                        if (generation != mResolveGeneration || isReleased() || !isPreparing()) {
+                            logger.d("ignoring content type of " + uri + ": opening was cancelled");
+                            if (cacheProxy != null && dataSourceUri != null) {
+                                cacheProxy.releaseProxyUri(dataSourceUri);
+                            }
+                            return;
+                        }
+                        mResolveFuture = null;
+                        releasePinnedDataSource();
+                        if (cacheProxy != null && dataSourceUri != null) {
+                            mPinnedCacheProxy = cacheProxy;
+                            mPinnedDataSourceUri = dataSourceUri;
+                        }
+                        callback.onDataSourceResolved(uri, contentType, dataSourceUri);
+                    }
+                });
+            });
+        }
+    }
+
+    /**
+     * pending result of {@link #resolveDataSourceAsync(boolean, OnDataSourceResolvedCallback)} is dropped
+     */
+    protected final void cancelDataSourceResolve() {
+        synchronized (mLock) {
+            mResolveGeneration++;
+            if (mResolveFuture != null) {
+                mResolveFuture.cancel(true);
+                mResolveFuture = null;
+            }
+        }
+    }
+
+    @NotNull
+    public DataSourceMode getDataSourceMode() {
+        synchronized (mLock) {
+            return mDataSourceMode;
+        }
+    }
+
+    /**
+     * @param dataSourceMode takes effect on next {@link #openDataSource()}
+     */
+    public void setDataSourceMode(@NotNull DataSourceMode dataSourceMode) {
+        synchronized (mLock) {
+            checkReleased();
+            mDataSourceMode = dataSourceMode;
         }
     }
 
@@ -476,6 +857,13 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
         }
     }
 
+    @NotNull
+    public PlayMode getPlayMode() {
+        synchronized (mLock) {
+            return mPlayMode;
+        }
+    }
+
     @Nullable
     public Uri getContentUri() {
         synchronized (mLock) {
@@ -532,7 +920,9 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
                 }
             }
 
-            if (mPlayMode != playMode || !CompareUtils.objectsEqual(contentUri, mContentUri) || !CompareUtils.objectsEqual(headers, mContentHeaders)) {
+            // stored headers are never null
+            final Map<String, String> newHeaders = headers != null ? headers : Collections.<String, String>emptyMap();
+            if (mPlayMode != playMode || !CompareUtils.objectsEqual(contentUri, mContentUri) || !CompareUtils.objectsEqual(newHeaders, mContentHeaders)) {
 
                 if (mContentFileDescriptor != null) {
                     try {
@@ -543,7 +933,7 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
                     mContentFileDescriptor = null;
                 }
                 mContentUri = contentUri;
-                mContentHeaders = headers != null ? new LinkedHashMap<>(headers) : new LinkedHashMap<String, String>();
+                mContentHeaders = new LinkedHashMap<>(newHeaders);
 
                 if (mContentUri != null || mContentFileDescriptor != null) {
                     mPlayMode = playMode;
@@ -635,18 +1025,19 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
                 (mContentFileDescriptor != null ? MetadataRetriever.extractMetadata(mContentFileDescriptor.getFileDescriptor()) : null));
     }
 
+    /**
+     * prepare timeout is tracked by shared {@link TimerWheel}, reset runnable should only post to media handler
+     */
     protected final void scheduleResetCallback() {
         cancelResetCallback();
-        mResetFuture = scheduleOnExecutor(getResetRunnable(), mPrepareResetTimeoutMs);
+        mResetTimeout = TimerWheel.getInstance().schedule(getResetRunnable(), mPrepareResetTimeoutMs);
     }
 
     protected final void cancelResetCallback() {
-        if (mResetFuture != null) {
-            if (!mResetFuture.isCancelled() && !mResetFuture.isDone()) {
-//                logger.d("cancelling reset callback (prepare timeout)...");
-                mResetFuture.cancel(true);
-            }
-            mResetFuture = null;
+        if (mResetTimeout != null) {
+//            logger.d("cancelling reset callback (prepare timeout)...");
+            mResetTimeout.cancel();
+            mResetTimeout = null;
         }
     }
 
@@ -794,6 +1185,8 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
     protected void releasePlayer(boolean clearTargetState) {
         synchronized (mLock) {
             checkReleased();
+            cancelDataSourceResolve();
+            releasePinnedDataSource();
             onBufferingUpdate(0);
             setControlsToDefault();
         }
@@ -806,9 +1199,14 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
             if (isReleased()) {
                 throw new IllegalStateException(BaseMediaPlayerController.class.getSimpleName() + " was already released");
             }
+            mVolumeRamp.cancel();
             releasePlayer(true);
-            unregisterReceivers();
-            stopExecutor();
+            // player may be already released, while data source is still pinned after aborted preparing
+            releasePinnedDataSource();
+            synchronized (mExecutorLock) {
+                mExecutorReleased = true;
+            }
+            releaseResources(true);
         }
     }
 
@@ -919,27 +1317,47 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
     }
 
     protected final boolean isExecutorRunning() {
-        checkReleased();
-        return mExecutorService != null && !mExecutorService.isShutdown() && !mExecutorService.isTerminated();
+        final ScheduledThreadPoolExecutor executor = mExecutorService;
+        return executor != null && !executor.isShutdown();
     }
 
-    private void startExecutor() {
-        if (!isExecutorRunning()) {
-            restartExecutor();
+    /**
+     * executor is started on demand and may be stopped after idle timeout;
+     * must be called under executor lock, so returned executor is not stopped before task is submitted
+     */
+    @NotNull
+    private ScheduledThreadPoolExecutor startExecutor() {
+        if (mExecutorReleased) {
+            throw new IllegalStateException(getClass().getSimpleName() + " was released");
         }
+        ScheduledThreadPoolExecutor executor = mExecutorService;
+        if (executor == null || executor.isShutdown()) {
+            executor = new ScheduledThreadPoolExecutor(1);
+            mExecutorService = executor;
+        }
+        return executor;
     }
 
-    private void restartExecutor() {
-        checkReleased();
-        stopExecutor();
-        mExecutorService = Executors.newSingleThreadScheduledExecutor();
-    }
-
-    private void stopExecutor() {
-        checkReleased();
-        if (isExecutorRunning()) {
-            mExecutorService.shutdown();
+    /**
+     * @param force false to keep executor, if it has pending or scheduled tasks
+     * @return true if executor was stopped or not running
+     */
+    private boolean stopExecutor(boolean force) {
+        synchronized (mExecutorLock) {
+            final ScheduledThreadPoolExecutor executor = mExecutorService;
+            if (executor == null) {
+                return true;
+            }
+            if (!force) {
+                // cancelled tasks are kept in queue until purged
+                executor.purge();
+                if (!executor.getQueue().isEmpty() || executor.getActiveCount() > 0) {
+                    return false;
+                }
+            }
+            executor.shutdown();
             mExecutorService = null;
+            return true;
         }
     }
 
@@ -1073,38 +1491,34 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
 
     @NotNull
     public final Future<?> submitOnExecutor(@NotNull Runnable r) {
-        if (!isExecutorRunning()) {
-            throw new IllegalStateException("not running");
+        synchronized (mExecutorLock) {
+            return startExecutor().submit(r);
         }
-        return mExecutorService.submit(r);
     }
 
     @SuppressWarnings("unchecked")
     @NotNull
     public final <T> Future<T> submitOnExecutor(@NotNull Callable<T> c) {
-        if (!isExecutorRunning()) {
-            throw new IllegalStateException("not running");
+        synchronized (mExecutorLock) {
+            return startExecutor().submit(c);
         }
-        return mExecutorService.submit(c);
     }
 
     @NotNull
     public final ScheduledFuture<?> scheduleOnExecutor(@NotNull Runnable r, long delay) {
-        if (!isExecutorRunning()) {
-            throw new IllegalStateException("not running");
-        }
         if (delay <= 0) {
             throw new IllegalArgumentException("delay <= 0");
         }
-        return mExecutorService.schedule(r, delay, TimeUnit.MILLISECONDS);
+        synchronized (mExecutorLock) {
+            return startExecutor().schedule(r, delay, TimeUnit.MILLISECONDS);
+        }
     }
 
     @NotNull
     protected final <T> ScheduledFuture<T> scheduleOnExecutor(@NotNull Callable<T> c, long delay) {
-        if (!isExecutorRunning()) {
-            throw new IllegalStateException("not running");
+        synchronized (mExecutorLock) {
+            return startExecutor().schedule(c, delay, TimeUnit.MILLISECONDS);
         }
-        return mExecutorService.schedule(c, delay, TimeUnit.MILLISECONDS);
     }
 
     public interface OnPlaybackTimeUpdateTimeListener {
@@ -1148,6 +1562,15 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
     }
 
 
+    protected interface OnDataSourceResolvedCallback {
+
+        /**
+         * @param contentType   null if not resolved
+         * @param dataSourceUri null if content is not routed through cache (or not requested), original uri should be used then
+         */
+        void onDataSourceResolved(@NotNull Uri uri, @Nullable String contentType, @Nullable Uri dataSourceUri);
+    }
+
     public interface OnStateChangedListener {
 
         void onBeforeOpenDataSource();
@@ -1164,6 +1587,22 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
         IDLE, PREPARING, PREPARED, PLAYING, PAUSED, RELEASED
     }
 
+    /**
+     * how local content (file uri or descriptor) is passed to the underlying player
+     */
+    public enum DataSourceMode {
+
+        /**
+         * as uri or descriptor, player reads it by itself
+         */
+        DEFAULT,
+
+        /**
+         * via memory-mapped source with read-ahead, if supported by player and platform (falls back to {@link #DEFAULT} otherwise)
+         */
+        MEMORY_MAPPED
+    }
+
     public enum PlayMode {
 
         NONE("", false),
@@ -1187,6 +1626,15 @@ public abstract class BaseMediaPlayerController<E extends BaseMediaPlayerControl
             return Arrays.asList(mimeTypeParts.split(","));
         }
 
+        /**
+         * may perform disk or network I/O, see {@link ContentTypeResolver#resolve(Context, Uri, Map)}
+         */
+        @WorkerThread
+        @NotNull
+        public static PlayMode fromContentType(@NotNull Context context, @NotNull Uri uri, @Nullable Map<String, String> headers) {
+            return fromContentType(ContentTypeResolver.getInstance().resolve(context, uri, headers));
+        }
+
         @NotNull
         public static PlayMode fromContentType(@Nullable String type) {
             if (type != null) {
@@ -0,0 +1,352 @@
+package net.maxsmr.mediaplayercontroller.mpc;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import androidx.annotation.WorkerThread;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves content type of uri: by name, by {@link ContentResolver#getType(Uri)} for content uris,
+ * by HEAD (or ranged GET) for http/https and by magic bytes, if nothing else helped;
+ * results are kept in bounded cache
+ */
+public class ContentTypeResolver {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(ContentTypeResolver.class);
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    public static final int DEFAULT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * enough for all known signatures (MPEG-TS needs second sync byte at 188)
+     */
+    private static final int SNIFF_LENGTH = 192;
+
+    private static final String TYPE_OCTET_STREAM = "application/octet-stream";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static ContentTypeResolver sInstance;
+
+    public static ContentTypeResolver getInstance() {
+        if (sInstance == null) {
+            synchronized (ContentTypeResolver.class) {
+                if (sInstance == null) {
+                    sInstance = new ContentTypeResolver(DEFAULT_CACHE_SIZE);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    @NotNull
+    private final LruCache<String, String> mCache;
+
+    private volatile int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    public ContentTypeResolver(int cacheSize) {
+        mCache = new LruCache<>(cacheSize);
+    }
+
+    public void setTimeoutMs(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("incorrect timeoutMs: " + timeoutMs);
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    public void invalidate(@NotNull Uri uri) {
+        mCache.remove(uri.toString());
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * resolves without any I/O: from cache or by name
+     *
+     * @return null if can't be resolved this way
+     */
+    @Nullable
+    public String peek(@NotNull Uri uri) {
+        final String key = uri.toString();
+        String type = mCache.get(key);
+        if (TextUtils.isEmpty(type)) {
+            type = HttpURLConnection.guessContentTypeFromName(key);
+            if (!TextUtils.isEmpty(type)) {
+                mCache.put(key, type);
+            }
+        }
+        return !TextUtils.isEmpty(type) ? type : null;
+    }
+
+    /**
+     * may perform disk or network I/O, so must not be called on main thread
+     *
+     * @param headers used for http/https requests
+     * @return null if can't be resolved
+     */
+    @WorkerThread
+    @Nullable
+    public String resolve(@NotNull Context context, @NotNull Uri uri, @Nullable Map<String, String> headers) {
+        String type = peek(uri);
+        if (type != null) {
+            return type;
+        }
+        final long startTime = System.currentTimeMillis();
+        final String scheme = uri.getScheme();
+        try {
+            if (TextUtils.isEmpty(scheme) || ContentResolver.SCHEME_FILE.equalsIgnoreCase(scheme)) {
+                type = resolveFile(uri);
+            } else if (ContentResolver.SCHEME_CONTENT.equalsIgnoreCase(scheme) || ContentResolver.SCHEME_ANDROID_RESOURCE.equalsIgnoreCase(scheme)) {
+                type = resolveContent(context, uri);
+            } else if ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) {
+                type = resolveHttp(uri, headers);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.e("can't resolve content type of " + uri, e);
+        }
+        logger.d("resolved content type of " + uri + ": " + type + ", time: " + (System.currentTimeMillis() - startTime) + " ms");
+        if (!TextUtils.isEmpty(type)) {
+            mCache.put(uri.toString(), type);
+            return type;
+        }
+        return null;
+    }
+
+    /**
+     * local-only variant of {@link #resolve(Context, Uri, Map)}, reads only file header
+     */
+    @WorkerThread
+    @Nullable
+    public String resolve(@NotNull File file) {
+        final Uri uri = Uri.fromFile(file);
+        String type = peek(uri);
+        if (type == null) {
+            try {
+                type = resolveFile(uri);
+            } catch (IOException e) {
+                logger.e("can't resolve content type of " + file, e);
+            }
+            if (!TextUtils.isEmpty(type)) {
+                mCache.put(uri.toString(), type);
+            }
+        }
+        return type;
+    }
+
+    @Nullable
+    private String resolveFile(@NotNull Uri uri) throws IOException {
+        final String path = uri.getPath();
+        if (TextUtils.isEmpty(path)) {
+            return null;
+        }
+        final File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return sniff(in);
+        }
+    }
+
+    @Nullable
+    private String resolveContent(@NotNull Context context, @NotNull Uri uri) throws IOException {
+        final ContentResolver resolver = context.getContentResolver();
+        final String type = resolver.getType(uri);
+        if (!TextUtils.isEmpty(type) && !TYPE_OCTET_STREAM.equalsIgnoreCase(type)) {
+            return type;
+        }
+        final InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            return type;
+        }
+        try {
+            final String sniffed = sniff(in);
+            return sniffed != null ? sniffed : type;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Nullable
+    private String resolveHttp(@NotNull Uri uri, @Nullable Map<String, String> headers) throws IOException {
+        String type = null;
+        HttpURLConnection connection = openConnection(uri, headers);
+        try {
+            connection.setRequestMethod("HEAD");
+            if (connection.getResponseCode() / 100 == 2) {
+                type = stripParameters(connection.getContentType());
+            }
+        } catch (IOException e) {
+            // some servers don't support HEAD
+            logger.w("HEAD request to " + uri + " failed: " + e.getMessage());
+        } finally {
+            connection.disconnect();
+        }
+        if (!TextUtils.isEmpty(type) && !TYPE_OCTET_STREAM.equalsIgnoreCase(type)) {
+            return type;
+        }
+        connection = openConnection(uri, headers);
+        try {
+            connection.setRequestProperty("Range", "bytes=0-" + (SNIFF_LENGTH - 1));
+            final int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                return type;
+            }
+            if (TextUtils.isEmpty(type)) {
+                type = stripParameters(connection.getContentType());
+            }
+            final String sniffed = sniff(connection.getInputStream());
+            return sniffed != null ? sniffed : type;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @NotNull
+    private HttpURLConnection openConnection(@NotNull Uri uri, @Nullable Map<String, String> headers) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        return connection;
+    }
+
+    @Nullable
+    private static String stripParameters(@Nullable String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        final int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim();
+    }
+
+    @Nullable
+    private static String sniff(@NotNull InputStream in) throws IOException {
+        final byte[] header = new byte[SNIFF_LENGTH];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+            length += read;
+        }
+        return sniff(header, length);
+    }
+
+    /**
+     * @return content type by magic bytes or null if signature is unknown
+     */
+    @Nullable
+    public static String sniff(@NotNull byte[] data, int length) {
+        if (length >= 12 && matches(data, 4, "ftyp")) {
+            final String brand = new String(data, 8, 4, ASCII);
+            if (brand.startsWith("qt")) {
+                return "video/quicktime";
+            } else if (brand.startsWith("M4A") || brand.startsWith("M4B")) {
+                return "audio/mp4";
+            } else if (brand.startsWith("3gp") || brand.startsWith("3g2")) {
+                return "video/3gpp";
+            }
+            return "video/mp4";
+        }
+        if (length >= 4 && (data[0] & 0xFF) == 0x1A && (data[1] & 0xFF) == 0x45 && (data[2] & 0xFF) == 0xDF && (data[3] & 0xFF) == 0xA3) {
+            return indexOf(data, length, "webm") >= 0 ? "video/webm" : "video/x-matroska";
+        }
+        if (length >= 12 && matches(data, 0, "RIFF")) {
+            if (matches(data, 8, "WAVE")) {
+                return "audio/wav";
+            } else if (matches(data, 8, "AVI ")) {
+                return "video/avi";
+            } else if (matches(data, 8, "WEBP")) {
+                return "image/webp";
+            }
+        }
+        if (length >= 4 && matches(data, 0, "OggS")) {
+            return "audio/ogg";
+        }
+        if (length >= 4 && matches(data, 0, "fLaC")) {
+            return "audio/flac";
+        }
+        if (length >= 3 && matches(data, 0, "ID3")) {
+            return "audio/mpeg";
+        }
+        if (length >= 189 && (data[0] & 0xFF) == 0x47 && (data[188] & 0xFF) == 0x47) {
+            return "video/mp2t";
+        }
+        if (length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (length >= 8 && (data[0] & 0xFF) == 0x89 && matches(data, 1, "PNG")) {
+            return "image/png";
+        }
+        if (length >= 4 && matches(data, 0, "GIF8")) {
+            return "image/gif";
+        }
+        if (length >= 2 && (data[0] & 0xFF) == 0xFF && ((data[1] & 0xFF) & 0xF6) == 0xF0) {
+            // ADTS sync word, layer 0
+            return "audio/aac";
+        }
+        if (length >= 2 && (data[0] & 0xFF) == 0xFF && ((data[1] & 0xFF) & 0xE0) == 0xE0) {
+            // MPEG audio frame sync
+            return "audio/mpeg";
+        }
+        if (length >= 7 && matches(data, 0, "#EXTM3U")) {
+            return "application/x-mpegURL";
+        }
+        final String text = new String(data, 0, Math.min(length, 64), ASCII).trim().toLowerCase(Locale.US);
+        if (text.startsWith("<!doctype html") || text.startsWith("<html")) {
+            return "text/html";
+        }
+        if (length >= 2 && matches(data, 0, "BM")) {
+            return "image/bmp";
+        }
+        return null;
+    }
+
+    private static boolean matches(@NotNull byte[] data, int offset, @NotNull String signature) {
+        if (offset + signature.length() > data.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length(); i++) {
+            if (data[offset + i] != (byte) signature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(@NotNull byte[] data, int length, @NotNull String signature) {
+        for (int i = 0; i + signature.length() <= length; i++) {
+            if (matches(data, i, signature)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,275 @@
+package net.maxsmr.mediaplayercontroller.mpc;
+
+import android.os.SystemClock;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for coarse timeouts (prepare timeouts, track durations): scheduling and cancelling
+ * are O(1) list operations, expired tasks are run in batches on single daemon thread,
+ * which sleeps while there are no timeouts; tasks should be short (e.g. post to other handler)
+ */
+public final class TimerWheel {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(TimerWheel.class);
+
+    public static final long DEFAULT_TICK_MS = 50;
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static volatile TimerWheel sInstance;
+
+    /**
+     * @return wheel shared by all controllers and managers in process
+     */
+    @NotNull
+    public static TimerWheel getInstance() {
+        if (sInstance == null) {
+            synchronized (TimerWheel.class) {
+                if (sInstance == null) {
+                    sInstance = new TimerWheel(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private final long mTickMs;
+
+    /**
+     * bucket heads, size is power of 2
+     */
+    @NotNull
+    private final Timeout[] mWheel;
+
+    private final int mMask;
+
+    private final Object mLock = new Object();
+
+    /**
+     * time of tick 0
+     */
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    /**
+     * next tick to process
+     */
+    private long mTick = 0;
+
+    private int mPendingCount = 0;
+
+    @Nullable
+    private Thread mWorker;
+
+    /**
+     * @param tickMs    resolution: timeouts expire up to this time late
+     * @param wheelSize number of buckets, rounded up to power of 2; longer delays take several rotations
+     */
+    public TimerWheel(long tickMs, int wheelSize) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("incorrect tickMs: " + tickMs);
+        }
+        if (wheelSize <= 0 || wheelSize > 1 << 16) {
+            throw new IllegalArgumentException("incorrect wheelSize: " + wheelSize);
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        mTickMs = tickMs;
+        mWheel = new Timeout[size];
+        mMask = size - 1;
+    }
+
+    public long getTickMs() {
+        return mTickMs;
+    }
+
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingCount;
+        }
+    }
+
+    /**
+     * @param task run on wheel thread, exceptions are logged
+     */
+    @NotNull
+    public Timeout schedule(@NotNull Runnable task, long delayMs) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException("incorrect delayMs: " + delayMs);
+        }
+        final Timeout timeout = new Timeout(this, task);
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime() - mStartTime;
+            if (mPendingCount == 0) {
+                // wheel was sleeping, skip passed ticks
+                mTick = Math.max(mTick, now / mTickMs);
+            }
+            // round up, so task doesn't run before delay
+            final long deadlineTick = Math.max(mTick, (now + delayMs + mTickMs - 1) / mTickMs);
+            timeout.rounds = (deadlineTick - mTick) / mWheel.length;
+            timeout.bucket = (int) (deadlineTick & mMask);
+            link(timeout);
+            mPendingCount++;
+            if (mWorker == null) {
+                mWorker = new Thread(this::work, TimerWheel.class.getSimpleName());
+                mWorker.setDaemon(true);
+                mWorker.start();
+            } else if (mPendingCount == 1) {
+                mLock.notifyAll();
+            }
+        }
+        return timeout;
+    }
+
+    private boolean cancel(@NotNull Timeout timeout) {
+        synchronized (mLock) {
+            if (timeout.state != Timeout.STATE_PENDING) {
+                return false;
+            }
+            timeout.state = Timeout.STATE_CANCELLED;
+            unlink(timeout);
+            mPendingCount--;
+            return true;
+        }
+    }
+
+    private void link(@NotNull Timeout timeout) {
+        final Timeout head = mWheel[timeout.bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        mWheel[timeout.bucket] = timeout;
+    }
+
+    private void unlink(@NotNull Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            mWheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private void work() {
+        final List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            synchronized (mLock) {
+                try {
+                    while (mPendingCount == 0) {
+                        mLock.wait();
+                    }
+                    final long waitMs = mTick * mTickMs - (SystemClock.elapsedRealtime() - mStartTime);
+                    if (waitMs > 0) {
+                        mLock.wait(waitMs);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.e("interrupted", e);
+                    mWorker = null;
+                    return;
+                }
+                final long currentTick = (SystemClock.elapsedRealtime() - mStartTime) / mTickMs;
+                // process all ticks passed since last wakeup
+                while (mTick <= currentTick && mPendingCount > 0) {
+                    Timeout t = mWheel[(int) (mTick & mMask)];
+                    while (t != null) {
+                        final Timeout next = t.next;
+                        if (t.rounds <= 0) {
+                            unlink(t);
+                            t.state = Timeout.STATE_EXPIRED;
+                            mPendingCount--;
+                            expired.add(t);
+                        } else {
+                            t.rounds--;
+                        }
+                        t = next;
+                    }
+                    mTick++;
+                }
+                mTick = Math.max(mTick, currentTick + 1);
+            }
+            for (Timeout t : expired) {
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    logger.e("an Exception occurred during run()", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * handle of scheduled task, guarded by wheel lock
+     */
+    public static final class Timeout {
+
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        @NotNull
+        private final TimerWheel wheel;
+
+        @NotNull
+        private final Runnable task;
+
+        private int state = STATE_PENDING;
+
+        private int bucket;
+
+        private long rounds;
+
+        @Nullable
+        private Timeout prev;
+
+        @Nullable
+        private Timeout next;
+
+        private Timeout(@NotNull TimerWheel wheel, @NotNull Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * @return false if already expired or cancelled
+         */
+        public boolean cancel() {
+            return wheel.cancel(this);
+        }
+
+        public boolean isPending() {
+            synchronized (wheel.mLock) {
+                return state == STATE_PENDING;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (wheel.mLock) {
+                return state == STATE_CANCELLED;
+            }
+        }
+
+        public boolean isExpired() {
+            synchronized (wheel.mLock) {
+                return state == STATE_EXPIRED;
+            }
+        }
+    }
+}
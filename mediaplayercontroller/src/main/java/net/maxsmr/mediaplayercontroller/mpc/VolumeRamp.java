@@ -0,0 +1,289 @@
+package net.maxsmr.mediaplayercontroller.mpc;
+
+import android.os.SystemClock;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpolates left/right gain of {@link BaseMediaPlayerController} over time on shared ramp thread;
+ * gain is applied via {@link BaseMediaPlayerController#applyVolume(float, float)},
+ * so volume set by {@link BaseMediaPlayerController#setVolume(float, float)} stays unchanged.
+ * Same object is rescheduled for each step, new ramp replaces current one (starting from current gain)
+ */
+public class VolumeRamp implements Runnable {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(VolumeRamp.class);
+
+    public static final long DEFAULT_STEP_MS = 20;
+
+    /**
+     * steps of all ramps are run here, not on controller executor: step never waits for controller lock,
+     * so controller may start ramp under its lock and then wait for own executor
+     */
+    private static ScheduledExecutorService sStepExecutor;
+
+    @NotNull
+    private final BaseMediaPlayerController<?> mController;
+
+    private final Object mLock = new Object();
+
+    private long mStepMs = DEFAULT_STEP_MS;
+
+    @NotNull
+    private Curve mCurve = Curve.LINEAR;
+
+    private float mFromLeft;
+    private float mFromRight;
+
+    private float mToLeft;
+    private float mToRight;
+
+    /**
+     * last applied gain, NaN if nothing was applied yet
+     */
+    private float mCurrentLeft = Float.NaN;
+    private float mCurrentRight = Float.NaN;
+
+    private long mStartTime;
+
+    private long mDurationMs;
+
+    @Nullable
+    private Runnable mOnComplete;
+
+    private boolean mRunning = false;
+
+    /**
+     * true while step is scheduled or being executed; cancelled ramp lets scheduled step run idle,
+     * so there is never more than one chain of steps
+     */
+    private boolean mStepActive = false;
+
+    VolumeRamp(@NotNull BaseMediaPlayerController<?> controller) {
+        mController = controller;
+    }
+
+    public long getStepMs() {
+        synchronized (mLock) {
+            return mStepMs;
+        }
+    }
+
+    public void setStepMs(long stepMs) {
+        if (stepMs <= 0) {
+            throw new IllegalArgumentException("incorrect stepMs: " + stepMs);
+        }
+        synchronized (mLock) {
+            mStepMs = stepMs;
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning;
+        }
+    }
+
+    /**
+     * @return last applied left gain or specified default, if ramp didn't run yet
+     */
+    public float getCurrentLeft(float defaultValue) {
+        synchronized (mLock) {
+            return Float.isNaN(mCurrentLeft) ? defaultValue : mCurrentLeft;
+        }
+    }
+
+    public float getCurrentRight(float defaultValue) {
+        synchronized (mLock) {
+            return Float.isNaN(mCurrentRight) ? defaultValue : mCurrentRight;
+        }
+    }
+
+    /**
+     * ramps from current gain (or from fallback, if nothing was applied yet)
+     *
+     * @param onComplete called on ramp thread, only if ramp wasn't cancelled or replaced
+     */
+    public void rampTo(float toLeft, float toRight, long durationMs, @NotNull Curve curve, @Nullable Runnable onComplete) {
+        final float fallbackLeft = mController.getEffectiveVolumeLeft();
+        final float fallbackRight = mController.getEffectiveVolumeRight();
+        synchronized (mLock) {
+            start(getCurrentLeft(fallbackLeft), getCurrentRight(fallbackRight), toLeft, toRight, durationMs, curve, onComplete);
+        }
+    }
+
+    /**
+     * initial gain is applied before return
+     */
+    public void start(float fromLeft, float fromRight, float toLeft, float toRight, long durationMs, @NotNull Curve curve, @Nullable Runnable onComplete) {
+        checkVolume(fromLeft);
+        checkVolume(fromRight);
+        checkVolume(toLeft);
+        checkVolume(toRight);
+        if (durationMs < 0) {
+            throw new IllegalArgumentException("incorrect durationMs: " + durationMs);
+        }
+        final boolean schedule;
+        synchronized (mLock) {
+            mFromLeft = fromLeft;
+            mFromRight = fromRight;
+            mToLeft = toLeft;
+            mToRight = toRight;
+            mDurationMs = durationMs;
+            mCurve = curve;
+            mOnComplete = onComplete;
+            mStartTime = SystemClock.elapsedRealtime();
+            mRunning = true;
+            mCurrentLeft = fromLeft;
+            mCurrentRight = fromRight;
+            // otherwise active step continues with new parameters
+            schedule = !mStepActive;
+            mStepActive = true;
+        }
+        // initial gain is applied inline: caller may start playback right after this call,
+        // before first step is run on ramp thread
+        mController.applyVolume(fromLeft, fromRight);
+        if (schedule) {
+            scheduleStep(0);
+        }
+    }
+
+    /**
+     * stops at current gain, completion callback is not called
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mRunning = false;
+            mOnComplete = null;
+        }
+    }
+
+    /**
+     * forgets last applied gain, e.g. when gain was reset by setting volume
+     */
+    void reset() {
+        synchronized (mLock) {
+            cancel();
+            mCurrentLeft = Float.NaN;
+            mCurrentRight = Float.NaN;
+        }
+    }
+
+    @Override
+    public void run() {
+        final float left;
+        final float right;
+        final long nextStepMs;
+        Runnable onComplete = null;
+        synchronized (mLock) {
+            if (!mRunning) {
+                mStepActive = false;
+                return;
+            }
+            final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+            final float t = mDurationMs > 0 ? Math.min(1f, (float) elapsed / mDurationMs) : 1f;
+            left = interpolate(mFromLeft, mToLeft, t);
+            right = interpolate(mFromRight, mToRight, t);
+            mCurrentLeft = left;
+            mCurrentRight = right;
+            if (t >= 1f) {
+                mRunning = false;
+                mStepActive = false;
+                onComplete = mOnComplete;
+                mOnComplete = null;
+                nextStepMs = 0;
+            } else {
+                nextStepMs = mStepMs;
+            }
+        }
+        mController.applyVolume(left, right);
+        if (nextStepMs > 0) {
+            scheduleStep(nextStepMs);
+        }
+        if (onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    /**
+     * controller is not called under own lock: controller may call ramp under its lock
+     */
+    private void scheduleStep(long delayMs) {
+        try {
+            getStepExecutor().schedule(this, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.e("can't schedule ramp step", e);
+            synchronized (mLock) {
+                mRunning = false;
+                mStepActive = false;
+            }
+        }
+    }
+
+    @NotNull
+    private static synchronized ScheduledExecutorService getStepExecutor() {
+        if (sStepExecutor == null) {
+            sStepExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, VolumeRamp.class.getSimpleName());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return sStepExecutor;
+    }
+
+    private float interpolate(float from, float to, float t) {
+        return from + (to - from) * mCurve.apply(t, to >= from);
+    }
+
+    private static void checkVolume(float volume) {
+        if (volume < BaseMediaPlayerController.VOLUME_MIN || volume > BaseMediaPlayerController.VOLUME_MAX) {
+            throw new IllegalArgumentException("incorrect volume: " + volume);
+        }
+    }
+
+    public enum Curve {
+
+        LINEAR {
+            @Override
+            float apply(float t, boolean rising) {
+                return t;
+            }
+        },
+
+        /**
+         * sine/cosine shaped: sum of powers of two opposite ramps is constant, suitable for crossfades
+         */
+        EQUAL_POWER {
+            @Override
+            float apply(float t, boolean rising) {
+                return rising ? (float) Math.sin(t * Math.PI / 2) : 1f - (float) Math.cos(t * Math.PI / 2);
+            }
+        },
+
+        /**
+         * slow start of rise and fast start of fall, closer to perceived loudness than linear
+         */
+        EXPONENTIAL {
+            @Override
+            float apply(float t, boolean rising) {
+                return rising ? t * t : 1f - (1f - t) * (1f - t);
+            }
+        };
+
+        /**
+         * @param t progress in [0, 1]
+         * @return progress of value in [0, 1]
+         */
+        abstract float apply(float t, boolean rising);
+    }
+}
@@ -0,0 +1,109 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import androidx.annotation.MainThread;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Preloads and decodes images on page of {@link JsMediaPlayer}, so following "openImage" is served from memory;
+ * page side keeps LRU of loaded images and evicts least recent ones, when their decoded size exceeds budget
+ * (real size is known only after decode, so accounting is on page side)
+ */
+@MainThread
+public class ImagePrefetcher {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(ImagePrefetcher.class);
+
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    private static final String OBJECT_NAME = "__mpcImages";
+
+    /**
+     * entries are kept from least to most recently requested; most recent is never evicted
+     */
+    private static final String HELPER_SCRIPT = "if(!window." + OBJECT_NAME + "){window." + OBJECT_NAME + "=(function(){" +
+            "var entries=[],budget=0;" +
+            "function total(){var t=0;for(var i=0;i<entries.length;i++){t+=entries[i].bytes;}return t;}" +
+            "function trim(){while(entries.length>1&&total()>budget){entries.shift();}}" +
+            "function load(u){var e={url:u,img:new Image(),bytes:0};" +
+            "e.img.onload=function(){e.bytes=e.img.naturalWidth*e.img.naturalHeight*4;" +
+            "if(e.img.decode){e.img.decode().catch(function(){});}trim();};" +
+            "e.img.onerror=function(){var j=entries.indexOf(e);if(j>=0){entries.splice(j,1);}};" +
+            "e.img.src=u;return e;}" +
+            "return{" +
+            "prefetch:function(urls,b){budget=b;" +
+            "for(var i=urls.length-1;i>=0;i--){var e=null;" +
+            "for(var j=0;j<entries.length;j++){if(entries[j].url===urls[i]){e=entries.splice(j,1)[0];break;}}" +
+            "entries.push(e||load(urls[i]));}" +
+            "trim();}," +
+            "clear:function(){entries=[];}" +
+            "};})();}";
+
+    @NotNull
+    private final JsMediaPlayer mPlayer;
+
+    private long mMemoryBudget = DEFAULT_MEMORY_BUDGET_BYTES;
+
+    private int mInstalledPageGeneration = -1;
+
+    @NotNull
+    private List<String> mLastUrls = new ArrayList<>();
+
+    ImagePrefetcher(@NotNull JsMediaPlayer player) {
+        mPlayer = player;
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("incorrect memoryBudget: " + memoryBudget);
+        }
+        mMemoryBudget = memoryBudget;
+        mLastUrls = new ArrayList<>();
+    }
+
+    /**
+     * @param urls nearest first, previously prefetched images not in this list become first candidates for eviction
+     */
+    public void prefetch(@NotNull List<String> urls) {
+        if (!mPlayer.isPageLoaded() || mPlayer.isReleased()) {
+            logger.w("can't prefetch: page is not loaded");
+            return;
+        }
+        final int pageGeneration = mPlayer.getPageGeneration();
+        if (pageGeneration == mInstalledPageGeneration && urls.equals(mLastUrls)) {
+            return;
+        }
+        if (pageGeneration != mInstalledPageGeneration) {
+            mPlayer.mScriptBatcher.enqueue(HELPER_SCRIPT);
+            mInstalledPageGeneration = pageGeneration;
+        }
+        final StringBuilder array = new StringBuilder("[");
+        for (int i = 0; i < urls.size(); i++) {
+            if (i > 0) {
+                array.append(',');
+            }
+            array.append(JavaScriptExecutor.quote(urls.get(i)));
+        }
+        array.append(']');
+        logger.d("prefetching " + urls.size() + " image(s)");
+        mPlayer.mScriptBatcher.enqueue(OBJECT_NAME + ".prefetch(" + array + "," + mMemoryBudget + ")");
+        mLastUrls = new ArrayList<>(urls);
+    }
+
+    public void clear() {
+        if (mInstalledPageGeneration == mPlayer.getPageGeneration() && !mPlayer.isReleased()) {
+            mPlayer.mScriptBatcher.enqueue("if(window." + OBJECT_NAME + "){" + OBJECT_NAME + ".clear();}");
+        }
+        mLastUrls = new ArrayList<>();
+    }
+}
@@ -0,0 +1,265 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import android.os.Build;
+import android.text.TextUtils;
+import android.view.Choreographer;
+import android.webkit.WebView;
+
+import androidx.annotation.MainThread;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Accumulates JS commands for specified {@link WebView} within one frame
+ * and sends them as single script evaluation; order of commands is preserved,
+ * failure of one command doesn't affect others;
+ * any number of in-flight queries are multiplexed into the same evaluation,
+ * their results are parsed and delivered on shared background thread
+ */
+public class JavaScriptBatcher {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(JavaScriptBatcher.class);
+
+    /**
+     * completes futures (parsing included) and fires their timeouts, so main thread isn't loaded with it
+     */
+    private static final ScheduledExecutorService sResultExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, JavaScriptBatcher.class.getSimpleName() + "-Results");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * raw JSON of expression value
+     */
+    public static final JavaScriptFuture.ResultParser<String> RAW_PARSER = json -> json;
+
+    @NotNull
+    private final WebView mWebView;
+
+    private final boolean mUseLoadUrl;
+
+    @NotNull
+    private final List<Command> mPending = new ArrayList<>();
+
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> flush();
+
+    private boolean mFlushScheduled = false;
+
+    public JavaScriptBatcher(@NotNull WebView webView) {
+        this(webView, false);
+    }
+
+    /**
+     * @param useLoadUrl results are not available in this mode
+     */
+    public JavaScriptBatcher(@NotNull WebView webView, boolean useLoadUrl) {
+        mWebView = webView;
+        mUseLoadUrl = useLoadUrl;
+    }
+
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * @param script must be already declared JS function call or JS statement
+     */
+    public void enqueue(@Nullable String script) {
+        if (TextUtils.isEmpty(script)) {
+            logger.e("script is empty");
+            return;
+        }
+        enqueue(new Command(script, null));
+    }
+
+    /**
+     * @param expression JS expression, which value will be passed to returned future as JSON
+     */
+    @NotNull
+    public JavaScriptFuture<String> enqueueForResult(@NotNull String expression) {
+        return enqueueForResult(expression, RAW_PARSER, 0);
+    }
+
+    /**
+     * @param expression JS expression, its value must be JSON-serializable
+     * @param parser     converts JSON of value to result, called on background thread
+     * @param timeoutMs  if > 0, future fails with {@link TimeoutException} when result isn't received within this time;
+     *                   cancelled or timed out query is removed from batch, if it wasn't sent yet
+     */
+    @NotNull
+    public <V> JavaScriptFuture<V> enqueueForResult(@NotNull String expression, @NotNull JavaScriptFuture.ResultParser<V> parser, long timeoutMs) {
+        if (TextUtils.isEmpty(expression)) {
+            throw new IllegalArgumentException("expression is empty");
+        }
+        if (timeoutMs < 0) {
+            throw new IllegalArgumentException("incorrect timeoutMs: " + timeoutMs);
+        }
+        final JavaScriptFuture<V> future = new JavaScriptFuture<>(parser, sResultExecutor);
+        if (!isResultSupported()) {
+            future.fail(new UnsupportedOperationException("results are not supported with loadUrl()"));
+            return future;
+        }
+        final Command command = new Command(expression, future);
+        future.setOnCancel(() -> remove(command));
+        enqueue(command);
+        if (timeoutMs > 0) {
+            sResultExecutor.schedule(() -> {
+                if (!future.isDone()) {
+                    remove(command);
+                    future.fail(new TimeoutException("no result of '" + expression + "' within " + timeoutMs + " ms"));
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * sends pending commands immediately, without waiting for next frame
+     */
+    public void flush() {
+        JavaScriptExecutor.runOnMainThread(this::flushInternal);
+    }
+
+    /**
+     * drops pending commands, their futures are cancelled
+     */
+    public void cancel() {
+        final List<Command> commands;
+        synchronized (mPending) {
+            commands = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        for (Command command : commands) {
+            if (command.result != null) {
+                command.result.cancel(false);
+            }
+        }
+    }
+
+    private void remove(@NotNull Command command) {
+        synchronized (mPending) {
+            mPending.remove(command);
+        }
+    }
+
+    private boolean isResultSupported() {
+        return !mUseLoadUrl && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    private void enqueue(@NotNull Command command) {
+        final boolean schedule;
+        synchronized (mPending) {
+            mPending.add(command);
+            schedule = !mFlushScheduled;
+            mFlushScheduled = true;
+        }
+        if (schedule) {
+            JavaScriptExecutor.runOnMainThread(() -> Choreographer.getInstance().postFrameCallback(mFrameCallback));
+        }
+    }
+
+    @MainThread
+    private void flushInternal() {
+        final List<Command> commands;
+        synchronized (mPending) {
+            commands = new ArrayList<>(mPending);
+            mPending.clear();
+            if (mFlushScheduled) {
+                mFlushScheduled = false;
+                Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            }
+        }
+        boolean hasResults = false;
+        for (Iterator<Command> it = commands.iterator(); it.hasNext(); ) {
+            final Command command = it.next();
+            if (command.result != null) {
+                if (command.result.isDone()) {
+                    // cancelled or timed out meanwhile
+                    it.remove();
+                } else {
+                    hasResults = true;
+                }
+            }
+        }
+        if (commands.isEmpty()) {
+            return;
+        }
+
+        if (commands.size() == 1 && !hasResults) {
+            JavaScriptExecutor.execute(mWebView, commands.get(0).script, null, mUseLoadUrl);
+            return;
+        }
+
+        final StringBuilder script = new StringBuilder("(function(){var r={};");
+        for (int i = 0; i < commands.size(); i++) {
+            final Command command = commands.get(i);
+            if (command.result == null) {
+                script.append("try{").append(command.script).append(";}catch(e){console.error(e);}");
+            } else {
+                script.append("try{r[").append(i).append("]=(").append(command.script).append(");}catch(e){console.error(e);r[").append(i).append("]=null;}");
+            }
+        }
+        script.append(hasResults ? "return JSON.stringify(r);})()" : "})()");
+
+        logger.d("flushing " + commands.size() + " command(s)");
+        if (hasResults) {
+            JavaScriptExecutor.execute(mWebView, script.toString(), value -> sResultExecutor.execute(() -> onResults(commands, value)), false);
+        } else {
+            JavaScriptExecutor.execute(mWebView, script.toString(), null, mUseLoadUrl);
+        }
+    }
+
+    private void onResults(@NotNull List<Command> commands, @Nullable String value) {
+        JSONObject results = null;
+        if (value != null) {
+            try {
+                // evaluateJavascript returns JSON-encoded string of JSON.stringify() result
+                final Object decoded = new JSONTokener(value).nextValue();
+                if (decoded instanceof String) {
+                    results = new JSONObject((String) decoded);
+                }
+            } catch (JSONException e) {
+                logger.e("can't parse results: " + value, e);
+            }
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            final JavaScriptFuture<?> future = commands.get(i).result;
+            if (future != null && !future.isDone()) {
+                final String key = String.valueOf(i);
+                future.complete(results != null && results.has(key) && !results.isNull(key) ? String.valueOf(results.opt(key)) : null);
+            }
+        }
+    }
+
+    private static class Command {
+
+        @NotNull
+        final String script;
+
+        @Nullable
+        final JavaScriptFuture<?> result;
+
+        Command(@NotNull String script, @Nullable JavaScriptFuture<?> result) {
+            this.script = script;
+            this.result = result;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
 
 import java.util.concurrent.Executor;
 
@@ -19,6 +20,8 @@ public class JavaScriptExecutor {
 
     private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(Executor.class);
 
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     public static void execute(@NotNull WebView webView, final String script) {
         execute(webView, script, null, false);
     }
@@ -43,11 +46,25 @@ public class JavaScriptExecutor {
             }
 
         };
-        final Looper mainLooper = Looper.getMainLooper();
-        if (mainLooper == Looper.myLooper()) {
+        runOnMainThread(run);
+    }
+
+    /**
+     * runs immediately if called from main thread, otherwise posts to shared main handler
+     */
+    public static void runOnMainThread(@NotNull Runnable run) {
+        if (Looper.getMainLooper() == Looper.myLooper()) {
             run.run();
         } else {
-            new Handler(mainLooper).post(run);
+            sMainHandler.post(run);
         }
     }
+
+    /**
+     * @return JS string literal with escaped quotes and control characters
+     */
+    @NotNull
+    public static String quote(@Nullable String value) {
+        return value != null ? JSONObject.quote(value) : "null";
+    }
 }
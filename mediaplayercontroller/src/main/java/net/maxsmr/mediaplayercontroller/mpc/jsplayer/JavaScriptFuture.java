@@ -0,0 +1,184 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of JS expression evaluated by {@link JavaScriptBatcher}: raw JSON value is parsed
+ * and listener is notified on result executor (not on main thread)
+ */
+public class JavaScriptFuture<V> implements Future<V> {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(JavaScriptFuture.class);
+
+    @NotNull
+    private final ResultParser<V> mParser;
+
+    @NotNull
+    private final Executor mResultExecutor;
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+
+    @Nullable
+    private V mValue;
+
+    @Nullable
+    private Throwable mException;
+
+    private boolean mCancelled = false;
+
+    @Nullable
+    private OnResultListener<V> mListener;
+
+    @Nullable
+    private Runnable mOnCancel;
+
+    JavaScriptFuture(@NotNull ResultParser<V> parser, @NotNull Executor resultExecutor) {
+        mParser = parser;
+        mResultExecutor = resultExecutor;
+    }
+
+    /**
+     * @param listener called once on result executor, immediately scheduled if already done
+     */
+    public void setOnResultListener(@Nullable OnResultListener<V> listener) {
+        final boolean done;
+        synchronized (this) {
+            mListener = listener;
+            done = isDone();
+        }
+        if (done && listener != null) {
+            mResultExecutor.execute(this::notifyListener);
+        }
+    }
+
+    synchronized void setOnCancel(@Nullable Runnable onCancel) {
+        mOnCancel = onCancel;
+    }
+
+    /**
+     * parses raw JSON on result executor
+     */
+    void complete(@Nullable final String json) {
+        mResultExecutor.execute(() -> {
+            try {
+                finish(mParser.parse(json), null);
+            } catch (JSONException | RuntimeException e) {
+                logger.e("can't parse result: " + json, e);
+                finish(null, e);
+            }
+        });
+    }
+
+    void fail(@NotNull Throwable exception) {
+        mResultExecutor.execute(() -> finish(null, exception));
+    }
+
+    private void finish(@Nullable V value, @Nullable Throwable exception) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            mValue = value;
+            mException = exception;
+            mLatch.countDown();
+        }
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        final OnResultListener<V> listener;
+        final V value;
+        final Throwable exception;
+        synchronized (this) {
+            listener = mListener;
+            mListener = null;
+            value = mValue;
+            exception = mCancelled ? new CancellationException() : mException;
+        }
+        if (listener != null) {
+            listener.onResult(value, exception);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final Runnable onCancel;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mCancelled = true;
+            mLatch.countDown();
+            onCancel = mOnCancel;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+        mResultExecutor.execute(this::notifyListener);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mValue;
+    }
+
+    public interface ResultParser<V> {
+
+        /**
+         * @param json JSON representation of expression value (strings are passed unquoted) or null, if it was null/undefined
+         */
+        @Nullable
+        V parse(@Nullable String json) throws JSONException;
+    }
+
+    public interface OnResultListener<V> {
+
+        /**
+         * @param exception not null if evaluation failed, timed out ({@link TimeoutException}) or was cancelled
+         */
+        void onResult(@Nullable V result, @Nullable Throwable exception);
+    }
+}
@@ -0,0 +1,214 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import android.text.TextUtils;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact protocol of events from page scripts to {@link JsMediaPlayer#dispatch(String)}:
+ * batch of messages separated by '\n', each is "type|session|generation|sequence|position|duration";
+ * session identifies injected shim instance, generation - open request, sequence grows within session
+ */
+public final class JsBridgeProtocol {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(JsBridgeProtocol.class);
+
+    public static final int POSITION_UNKNOWN = -1;
+
+    public static final String SHIM_OBJECT_NAME = "__mpcBridge";
+
+    public static final long DEFAULT_TIME_UPDATE_INTERVAL_MS = 250;
+
+    private static final char MESSAGE_SEPARATOR = '\n';
+
+    private static final char FIELD_SEPARATOR = '|';
+
+    private static final int FIELDS_COUNT = 6;
+
+    private JsBridgeProtocol() {
+        throw new AssertionError("no instances.");
+    }
+
+    @NotNull
+    public static String makeShimScript(@NotNull String interfaceName, int session) {
+        return makeShimScript(interfaceName, session, DEFAULT_TIME_UPDATE_INTERVAL_MS);
+    }
+
+    /**
+     * @param interfaceName        name of {@link JsMediaPlayer} passed to {@link android.webkit.WebView#addJavascriptInterface(Object, String)}
+     * @param timeUpdateIntervalMs min interval between "timeupdate" samples sent by "postTimeUpdate(mediaElement)"
+     * @return script, which declares {@link #SHIM_OBJECT_NAME} object for page scripts: "post(type, positionMs, durationMs)",
+     * "postFromMedia(type, mediaElement)", "postTimeUpdate(mediaElement)" and "setGeneration(generation)";
+     * posted messages are sent in batch on next tick
+     */
+    @NotNull
+    public static String makeShimScript(@NotNull String interfaceName, int session, long timeUpdateIntervalMs) {
+        if (TextUtils.isEmpty(interfaceName)) {
+            throw new IllegalArgumentException("interfaceName is empty");
+        }
+        if (timeUpdateIntervalMs < 0) {
+            throw new IllegalArgumentException("incorrect timeUpdateIntervalMs: " + timeUpdateIntervalMs);
+        }
+        return "(function(){" +
+                "var q=[],seq=0,gen=0,scheduled=false,lastTu=0;" +
+                "function n(v){return (typeof v==='number'&&isFinite(v)&&v>=0)?Math.round(v):" + POSITION_UNKNOWN + ";}" +
+                "function flush(){scheduled=false;if(q.length){var b=q.join('\\n');q=[];" + interfaceName + ".dispatch(b);}}" +
+                "window." + SHIM_OBJECT_NAME + "={" +
+                "setGeneration:function(g){gen=g;}," +
+                "post:function(type,pos,dur){" +
+                "q.push(type+'|" + session + "|'+gen+'|'+(++seq)+'|'+n(pos)+'|'+n(dur));" +
+                "if(!scheduled){scheduled=true;setTimeout(flush,0);}}," +
+                "postFromMedia:function(type,m){this.post(type,m?m.currentTime*1000:-1,m?m.duration*1000:-1);}," +
+                "postTimeUpdate:function(m){var t=Date.now();if(t-lastTu>=" + timeUpdateIntervalMs + "){lastTu=t;this.postFromMedia('" + EventType.TIME_UPDATE.code + "',m);}}" +
+                "};" +
+                "})();";
+    }
+
+    /**
+     * @return script for passing current open generation to shim
+     */
+    @NotNull
+    public static String makeSetGenerationScript(int generation) {
+        return "if(window." + SHIM_OBJECT_NAME + "){" + SHIM_OBJECT_NAME + ".setGeneration(" + generation + ");}";
+    }
+
+    /**
+     * malformed messages are skipped
+     */
+    @NotNull
+    public static List<Message> parse(@Nullable String batch) {
+        if (TextUtils.isEmpty(batch)) {
+            return Collections.emptyList();
+        }
+        final List<Message> result = new ArrayList<>();
+        int start = 0;
+        while (start < batch.length()) {
+            int end = batch.indexOf(MESSAGE_SEPARATOR, start);
+            if (end < 0) {
+                end = batch.length();
+            }
+            if (end > start) {
+                final Message message = parseMessage(batch, start, end);
+                if (message != null) {
+                    result.add(message);
+                } else {
+                    logger.w("incorrect message: " + batch.substring(start, end));
+                }
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    @Nullable
+    private static Message parseMessage(@NotNull String batch, int start, int end) {
+        final String[] fields = new String[FIELDS_COUNT];
+        int fieldStart = start;
+        for (int i = 0; i < FIELDS_COUNT; i++) {
+            int fieldEnd = i < FIELDS_COUNT - 1 ? batch.indexOf(FIELD_SEPARATOR, fieldStart) : end;
+            if (fieldEnd < 0 || fieldEnd > end) {
+                return null;
+            }
+            fields[i] = batch.substring(fieldStart, fieldEnd);
+            fieldStart = fieldEnd + 1;
+        }
+        final EventType type = EventType.fromCode(fields[0]);
+        if (type == null) {
+            return null;
+        }
+        try {
+            return new Message(type,
+                    Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]),
+                    Long.parseLong(fields[3]),
+                    Long.parseLong(fields[4]),
+                    Long.parseLong(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public enum EventType {
+
+        /**
+         * page scripts were inserted
+         */
+        READY("ready"),
+        PLAY("play"),
+        PLAYING("playing"),
+        PAUSED("paused"),
+        ENDED("ended"),
+        PREPARED("prepared"),
+        ERROR("error"),
+        TIME_UPDATE("timeupdate");
+
+        @NotNull
+        public final String code;
+
+        EventType(@NotNull String code) {
+            this.code = code;
+        }
+
+        @Nullable
+        public static EventType fromCode(@Nullable String code) {
+            for (EventType t : values()) {
+                if (t.code.equals(code)) {
+                    return t;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final class Message {
+
+        @NotNull
+        public final EventType type;
+
+        public final int session;
+
+        public final int generation;
+
+        public final long sequence;
+
+        /**
+         * ms or {@link #POSITION_UNKNOWN}
+         */
+        public final long position;
+
+        /**
+         * ms or {@link #POSITION_UNKNOWN}
+         */
+        public final long duration;
+
+        public Message(@NotNull EventType type, int session, int generation, long sequence, long position, long duration) {
+            this.type = type;
+            this.session = session;
+            this.generation = generation;
+            this.sequence = sequence;
+            this.position = position;
+            this.duration = duration;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "Message{" +
+                    "type=" + type +
+                    ", session=" + session +
+                    ", generation=" + generation +
+                    ", sequence=" + sequence +
+                    ", position=" + position +
+                    ", duration=" + duration +
+                    '}';
+        }
+    }
+}
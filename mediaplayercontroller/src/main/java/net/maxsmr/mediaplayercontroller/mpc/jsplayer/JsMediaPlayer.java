@@ -2,6 +2,7 @@ package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
 
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.net.Uri;
 import android.os.Looper;
 import android.text.TextUtils;
@@ -17,17 +18,40 @@ import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.List;
 
-import java.net.HttpURLConnection;
 
 public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPlayer.MediaError> implements ScriptCallback {
 
+    /**
+     * set on page after script insert to version from {@link ScriptCache}
+     */
+    public static final String SCRIPT_VERSION_VAR_NAME = "__mpcScriptVersion";
+
+    public static final int READY_STATE_HAVE_NOTHING = 0;
+    public static final int READY_STATE_HAVE_METADATA = 1;
+    public static final int READY_STATE_HAVE_CURRENT_DATA = 2;
+    public static final int READY_STATE_HAVE_FUTURE_DATA = 3;
+    public static final int READY_STATE_HAVE_ENOUGH_DATA = 4;
+
     @NotNull
     protected final WebView mWebView;
-    
+
+    /**
+     * commands to page scripts are sent through it, so calls within one frame cost single evaluation
+     */
+    @NotNull
+    protected final JavaScriptBatcher mScriptBatcher;
+
     @NotNull
     protected final PageLoadSuccessObservable mPageLoadSuccessObservable = new PageLoadSuccessObservable();
 
+    @Nullable
+    private final WebViewPool.PooledWebView mPooledWebView;
+
     private final Runnable mResetRunnable = () -> {
         logger.d("mResetRunnable :: run()");
         postOnMediaHandler(() -> {
@@ -54,9 +78,55 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
 
     protected boolean mPageLoaded = false;
 
+    /**
+     * identifies injected bridge shim, messages from other sessions (previous pages) are dropped
+     */
+    private int mBridgeSession = 0;
+
+    private long mLastBridgeSequence = 0;
+
+    /**
+     * incremented on each open / clear of data source, events of previous generations are dropped
+     */
+    private int mOpenGeneration = 0;
+
+    /**
+     * incremented on each page start, so late callbacks of previous page are ignored
+     */
+    private int mPageGeneration = 0;
+
+    /**
+     * fed by bridge samples, see {@link JsBridgeProtocol}
+     */
+    @NotNull
+    protected final PlaybackClock mPlaybackClock = new PlaybackClock();
+
+    @NotNull
+    private final ImagePrefetcher mImagePrefetcher = new ImagePrefetcher(this);
+
+    @Nullable
+    private PagePrerenderer mPagePrerenderer;
+
     public JsMediaPlayer(@NotNull WebView webView) {
+        this(webView, null);
+    }
+
+    /**
+     * @param pooledWebView acquired from {@link WebViewPool}: page is already loaded and scripts inserted,
+     *                      so player is usable immediately; returned to pool on {@link #release()}
+     */
+    public JsMediaPlayer(@NotNull WebViewPool.PooledWebView pooledWebView) {
+        this(pooledWebView.getWebView(), pooledWebView);
+        mBridgeSession = pooledWebView.getBridgeSession();
+        mPageLoaded = true;
+        pooledWebView.attach(this);
+    }
+
+    private JsMediaPlayer(@NotNull WebView webView, @Nullable WebViewPool.PooledWebView pooledWebView) {
         super(webView.getContext(), Looper.getMainLooper());
         mWebView = webView;
+        mPooledWebView = pooledWebView;
+        mScriptBatcher = new JavaScriptBatcher(webView);
     }
 
     @NotNull
@@ -81,8 +151,14 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         return TextUtils.isEmpty(mWebView.getUrl());
     }
 
-    @MainThread
+    /**
+     * url is checked only on main thread (WebView can't be accessed from others),
+     * so playback time task may use it
+     */
     public boolean isPageLoaded() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return mPageLoaded && !isReleased();
+        }
         boolean urlEmpty = isPageUrlEmpty();
         if (urlEmpty || isReleased()) {
             mPageLoaded = false;
@@ -92,11 +168,68 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
 
     protected abstract String makeScriptForUrl(String loadedUrl);
 
+    /**
+     * @return name, under which this player was added by {@link WebView#addJavascriptInterface(Object, String)};
+     * if not null, {@link JsBridgeProtocol} shim is injected before script from {@link #makeScriptForUrl(String)},
+     * so page scripts can report events via {@link #dispatch(String)}
+     */
+    @Nullable
+    protected String getBridgeInterfaceName() {
+        return mPooledWebView != null ? mPooledWebView.getPool().getInterfaceName() : null;
+    }
+
+    protected boolean isBridgeEnabled() {
+        return !TextUtils.isEmpty(getBridgeInterfaceName());
+    }
+
+    public int getOpenGeneration() {
+        synchronized (mLock) {
+            return mOpenGeneration;
+        }
+    }
+
+    int getPageGeneration() {
+        synchronized (mLock) {
+            return mPageGeneration;
+        }
+    }
+
+    @Nullable
+    public PagePrerenderer getPagePrerenderer() {
+        return mPagePrerenderer;
+    }
+
+    /**
+     * @param pagePrerenderer if set, {@link PlayMode#PAGE} content, which was prerendered there, is shown
+     *                        without "openPage" call; owner is responsible for its release
+     */
+    @MainThread
+    public void setPagePrerenderer(@Nullable PagePrerenderer pagePrerenderer) {
+        synchronized (mLock) {
+            checkReleased();
+            if (mPagePrerenderer != null && mPagePrerenderer != pagePrerenderer) {
+                mPagePrerenderer.hide();
+            }
+            mPagePrerenderer = pagePrerenderer;
+        }
+    }
+
+    /**
+     * for {@link PlayMode#PICTURE} slideshows
+     */
+    @NotNull
+    public ImagePrefetcher getImagePrefetcher() {
+        return mImagePrefetcher;
+    }
+
     @CallSuper
     public void onPageStarted(String url, Bitmap favicon) {
         synchronized (mLock) {
             logger.d("onPageStarted(), url=" + url);
             mPageLoaded = false;
+            mPageGeneration++;
+            // commands for previous page are meaningless now
+            mScriptBatcher.cancel();
         }
     }
 
@@ -108,26 +241,20 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             final String loadedUrl = mWebView.getUrl();
 
             if (!TextUtils.isEmpty(loadedUrl)) {
-                logger.d("page loaded, making script...");
-                String script = makeScriptForUrl(loadedUrl);
-                if (!TextUtils.isEmpty(script)) {
-                    mInsertDoneRunnable = () -> {
-                        JavaScriptExecutor.execute(mWebView, "addCallbacks()");
-                        mPageLoaded = true;
-                        if (!isReleased()) {
-                            boolean open = mScheduleOpenDataSource || mLastModeToOpen != PlayMode.NONE;
-                            clearDataSource(false);
-                            if (open) {
-                                mScheduleOpenDataSource = false;
-                                logger.d("openDataSource() was scheduled (after page loaded), opening...");
-                                openDataSource();
-                                mPageLoadSuccessObservable.dispatchPageWithScriptsReady(loadedUrl, true);
-                            } else {
-                                mPageLoadSuccessObservable.dispatchPageWithScriptsReady(loadedUrl, false);
-                            }
-                        }
-                    };
-                    JavaScriptExecutor.execute(mWebView, script);
+                final ScriptCache.Entry scriptEntry = getScriptForUrl(loadedUrl);
+                if (scriptEntry != null) {
+                    String shim = "";
+                    final String bridgeInterfaceName = getBridgeInterfaceName();
+                    if (!TextUtils.isEmpty(bridgeInterfaceName)) {
+                        mBridgeSession++;
+                        mLastBridgeSequence = 0;
+                        shim = JsBridgeProtocol.makeShimScript(bridgeInterfaceName, mBridgeSession);
+                    }
+                    // page was (re)loaded, so it never holds previously inserted script
+                    final String script = scriptEntry.script + ";window." + SCRIPT_VERSION_VAR_NAME + "=" + JavaScriptExecutor.quote(scriptEntry.version) + ";";
+                    logger.d("inserting script, length: " + script.length());
+                    mInsertDoneRunnable = makeInsertDoneRunnable(loadedUrl);
+                    JavaScriptExecutor.execute(mWebView, shim + script);
                 } else {
                     logger.e("can't make script, is empty");
                 }
@@ -142,6 +269,55 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         }
     }
 
+    /**
+     * @return cached (or made and cached) script for specified url
+     */
+    @Nullable
+    protected ScriptCache.Entry getScriptForUrl(@NotNull String loadedUrl) {
+        final String key = getClass().getName() + "|" + getScriptCacheKey(loadedUrl);
+        final ScriptCache cache = ScriptCache.getInstance();
+        ScriptCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            logger.d("making script for " + loadedUrl + "...");
+            final String script = makeScriptForUrl(loadedUrl);
+            if (TextUtils.isEmpty(script)) {
+                return null;
+            }
+            entry = cache.put(key, script);
+        }
+        return entry;
+    }
+
+    /**
+     * @return key, by which script from {@link #makeScriptForUrl(String)} is cached:
+     * url without query and fragment by default; override to origin, if script doesn't depend on path
+     */
+    @NotNull
+    protected String getScriptCacheKey(@NotNull String loadedUrl) {
+        final Uri uri = Uri.parse(loadedUrl);
+        return uri.getScheme() + "://" + uri.getEncodedAuthority() + uri.getEncodedPath();
+    }
+
+    @NotNull
+    private Runnable makeInsertDoneRunnable(final String loadedUrl) {
+        return () -> {
+            mScriptBatcher.enqueue("addCallbacks()");
+            mPageLoaded = true;
+            if (!isReleased()) {
+                boolean open = mScheduleOpenDataSource || mLastModeToOpen != PlayMode.NONE;
+                clearDataSource(false);
+                if (open) {
+                    mScheduleOpenDataSource = false;
+                    logger.d("openDataSource() was scheduled (after page loaded), opening...");
+                    openDataSource();
+                    mPageLoadSuccessObservable.dispatchPageWithScriptsReady(loadedUrl, true);
+                } else {
+                    mPageLoadSuccessObservable.dispatchPageWithScriptsReady(loadedUrl, false);
+                }
+            }
+        };
+    }
+
     @JavascriptInterface
     @CallSuper
     @Override
@@ -153,6 +329,80 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         }
     }
 
+    /**
+     * single entry point for page events, see {@link JsBridgeProtocol};
+     * whole batch is handled within one post to media handler
+     */
+    @JavascriptInterface
+    public void dispatch(String batch) {
+        final List<JsBridgeProtocol.Message> messages = JsBridgeProtocol.parse(batch);
+        if (!messages.isEmpty()) {
+            postOnMediaHandler(() -> handleBridgeMessages(messages));
+        }
+    }
+
+    @MainThread
+    private void handleBridgeMessages(@NotNull List<JsBridgeProtocol.Message> messages) {
+        synchronized (mLock) {
+            for (JsBridgeProtocol.Message message : messages) {
+                if (message.session != mBridgeSession) {
+                    logger.w("dropping message of other session: " + message);
+                    continue;
+                }
+                if (message.sequence <= mLastBridgeSequence) {
+                    logger.w("dropping out of order message: " + message + ", last sequence: " + mLastBridgeSequence);
+                    continue;
+                }
+                mLastBridgeSequence = message.sequence;
+                if (message.type != JsBridgeProtocol.EventType.READY && message.generation != mOpenGeneration) {
+                    logger.w("dropping stale message: " + message + ", current generation: " + mOpenGeneration);
+                    continue;
+                }
+                onBridgeMessage(message);
+            }
+        }
+    }
+
+    /**
+     * called on media handler for each actual message of current session and generation
+     */
+    @MainThread
+    @CallSuper
+    protected void onBridgeMessage(@NotNull JsBridgeProtocol.Message message) {
+        logger.d("onBridgeMessage(), message=" + message);
+        mPlaybackClock.update(message.position, message.duration);
+        switch (message.type) {
+            case READY:
+                if (mInsertDoneRunnable != null) {
+                    final Runnable insertDoneRunnable = mInsertDoneRunnable;
+                    mInsertDoneRunnable = null;
+                    insertDoneRunnable.run();
+                }
+                break;
+            case PLAYING:
+                mPlaybackClock.setPlaying(true);
+                handlePlaying();
+                break;
+            case PAUSED:
+                mPlaybackClock.setPlaying(false);
+                handlePaused();
+                break;
+            case ENDED:
+                mPlaybackClock.setPlaying(false);
+                handleEnded();
+                break;
+            case PREPARED:
+                handleDataPrepared();
+                break;
+            case ERROR:
+                mPlaybackClock.setPlaying(false);
+                handleError();
+                break;
+            default:
+                break;
+        }
+    }
+
 //        @JavascriptInterface
 //        public void onAbort() {
 //            logger.d("onAbort()");
@@ -170,13 +420,16 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
     @CallSuper
     public void onEnded() {
         logger.d("onEnded()");
-        postOnMediaHandler(() -> {
-            if (isPageLoaded() && !isPlayerReleased()) {
-                onCompletion();
-            } else {
-                logger.w("ended, but page is not loaded or player released");
-            }
-        });
+        postOnMediaHandler(this::handleEnded);
+    }
+
+    @MainThread
+    private void handleEnded() {
+        if (isPageLoaded() && !isPlayerReleased()) {
+            onCompletion();
+        } else {
+            logger.w("ended, but page is not loaded or player released");
+        }
     }
 
     @JavascriptInterface
@@ -189,56 +442,70 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
     @CallSuper
     public void onPlaying() {
         logger.d("onPlaying()");
-        postOnMediaHandler(() -> {
-            if (isPageLoaded() && !isPlayerReleased()) {
-                setCurrentState(State.PLAYING);
-                setTargetState(State.PLAYING);
-//                  startPlaybackTimeTask();
-            } else {
-                logger.w("playing, but page is not loaded or player released");
+        postOnMediaHandler(this::handlePlaying);
+    }
+
+    @MainThread
+    private void handlePlaying() {
+        if (isPageLoaded() && !isPlayerReleased()) {
+            setCurrentState(State.PLAYING);
+            setTargetState(State.PLAYING);
+            if (isBridgeEnabled()) {
+                startPlaybackTimeTask();
             }
-        });
+        } else {
+            logger.w("playing, but page is not loaded or player released");
+        }
     }
 
     @JavascriptInterface
     @CallSuper
     public void onPaused() {
         logger.d("onPaused()");
-        postOnMediaHandler(() -> {
-            if (isPageLoaded() && !isPlayerReleased()) {
-//                    stopPlaybackTimeTask();
-                setCurrentState(State.PAUSED);
-                setTargetState(State.PAUSED);
-            } else {
-                logger.w("paused, but page is not loaded or player released");
-            }
-        });
+        postOnMediaHandler(this::handlePaused);
+    }
+
+    @MainThread
+    private void handlePaused() {
+        if (isPageLoaded() && !isPlayerReleased()) {
+            stopPlaybackTimeTask();
+            setCurrentState(State.PAUSED);
+            setTargetState(State.PAUSED);
+        } else {
+            logger.w("paused, but page is not loaded or player released");
+        }
     }
 
     @JavascriptInterface
     @CallSuper
     public void onDataPrepared() {
         logger.d("onDataPrepared()");
-        postOnMediaHandler(() -> {
-            if (isPageLoaded()) {
-                onPrepared();
-            } else {
-                logger.w("data prepared, but page is not loaded");
-            }
-        });
+        postOnMediaHandler(this::handleDataPrepared);
+    }
+
+    @MainThread
+    private void handleDataPrepared() {
+        if (isPageLoaded()) {
+            onPrepared();
+        } else {
+            logger.w("data prepared, but page is not loaded");
+        }
     }
 
     @JavascriptInterface
     @CallSuper
     public void onError() {
         logger.e("onError()");
-        postOnMediaHandler(() -> {
-            if (isPageLoaded()) {
-                onError(new MediaError(OnErrorListener.MediaError.UNKNOWN));
-            } else {
-                logger.w("error, but page is not loaded");
-            }
-        });
+        postOnMediaHandler(this::handleError);
+    }
+
+    @MainThread
+    private void handleError() {
+        if (isPageLoaded()) {
+            onError(new MediaError(OnErrorListener.MediaError.UNKNOWN));
+        } else {
+            logger.w("error, but page is not loaded");
+        }
     }
 
     @MainThread
@@ -362,7 +629,7 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             if (!isPageLoaded()) {
                 setCurrentState(State.IDLE);
             }
-            return isVideoSpecified() ? mCurrentState == State.PLAYING : mCurrentState == State.PREPARED;
+            return isAudioSpecified() || isVideoSpecified() ? mCurrentState == State.PLAYING : mCurrentState == State.PREPARED;
         }
     }
 
@@ -385,7 +652,7 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             super.setLooping(toggle);
             if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO) {
                 if (isInPlaybackState()) {
-                    JavaScriptExecutor.execute(mWebView,"setLoop(" + mLoopWhenPreparing + ")");
+                    mScriptBatcher.enqueue("setLoop(" + mLoopWhenPreparing + ")");
                 }
             }
         }
@@ -401,9 +668,9 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
                     if (isInPlaybackState()) {
                         float volume = Math.min(left, right);
                         if (Float.compare(volume, VOLUME_MIN) == 0) {
-                            JavaScriptExecutor.execute(mWebView,"setMute(" + true + ")");
+                            mScriptBatcher.enqueue("setMute(" + true + ")");
                         } else if (Float.compare(volume, VOLUME_MAX) == 0) {
-                            JavaScriptExecutor.execute(mWebView, "setMute(" + false + ")");
+                            mScriptBatcher.enqueue("setMute(" + false + ")");
                         }
                     }
                 }
@@ -411,6 +678,16 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         }
     }
 
+    /**
+     * page may declare "setVolume(volume)" to support ramps, otherwise only mute via {@link #setVolume(float, float)} works
+     */
+    @Override
+    protected void applyVolume(float left, float right) {
+        if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO) {
+            mScriptBatcher.enqueue("if(typeof setVolume==='function'){setVolume(" + Math.min(left, right) + ");}");
+        }
+    }
+
     @Override
     @MainThread
     public void seekTo(int msec) {
@@ -426,7 +703,9 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO) {
                 if (isInPlaybackState()) {
                     if (msec >= POSITION_START) {
-                        JavaScriptExecutor.execute(mWebView,"seekTo(" + msec + ")");
+                        mScriptBatcher.enqueue("seekTo(" + msec + ")");
+                        // until next sample arrives
+                        mPlaybackClock.update(msec, PlaybackClock.UNKNOWN);
                     }
                     mSeekWhenPrepared = POSITION_NO;
                 } else {
@@ -465,14 +744,91 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         return playMode == PlayMode.AUDIO || playMode == PlayMode.VIDEO || playMode == PlayMode.PICTURE || playMode == PlayMode.PAGE;
     }
 
+    /**
+     * @return position interpolated from last bridge sample, without WebView round-trip
+     */
     @Override
     public int getCurrentPosition() {
-        throw new UnsupportedOperationException("getCurrentPosition() is not supported");
+        synchronized (mLock) {
+            if (isInPlaybackState()) {
+                final long position = mPlaybackClock.getPosition();
+                if (position != PlaybackClock.UNKNOWN) {
+                    return (int) position;
+                }
+            }
+            return POSITION_NO;
+        }
     }
 
     @Override
     public int getDuration() {
-        throw new UnsupportedOperationException("getDuration() is not supported");
+        synchronized (mLock) {
+            if (isInPlaybackState()) {
+                final long duration = mPlaybackClock.getDuration();
+                if (duration != PlaybackClock.UNKNOWN) {
+                    return (int) duration;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @return JS expression for media element of current page, used by queries
+     */
+    @NotNull
+    protected String getMediaElementExpression() {
+        return "document.querySelector('video,audio')";
+    }
+
+    /**
+     * @return buffered time ranges of media element as [start, end] pairs in ms; null if there is no element
+     */
+    @NotNull
+    public JavaScriptFuture<List<long[]>> queryBufferedRanges(long timeoutMs) {
+        return mScriptBatcher.enqueueForResult(makeMediaQuery("var b=m.buffered,r=[];" +
+                        "for(var i=0;i<b.length;i++){r.push([Math.round(b.start(i)*1000),Math.round(b.end(i)*1000)]);}return r;"),
+                json -> {
+                    if (json == null) {
+                        return null;
+                    }
+                    final JSONArray array = new JSONArray(json);
+                    final List<long[]> ranges = new ArrayList<>(array.length());
+                    for (int i = 0; i < array.length(); i++) {
+                        final JSONArray range = array.getJSONArray(i);
+                        ranges.add(new long[]{range.getLong(0), range.getLong(1)});
+                    }
+                    return ranges;
+                }, timeoutMs);
+    }
+
+    /**
+     * @return HTMLMediaElement.readyState (one of READY_STATE_ constants); null if there is no element
+     */
+    @NotNull
+    public JavaScriptFuture<Integer> queryReadyState(long timeoutMs) {
+        return mScriptBatcher.enqueueForResult(makeMediaQuery("return m.readyState;"),
+                json -> json != null ? Integer.valueOf(json) : null, timeoutMs);
+    }
+
+    /**
+     * @return intrinsic video width and height; null if there is no element or dimensions are not known yet
+     */
+    @NotNull
+    public JavaScriptFuture<Point> queryVideoSize(long timeoutMs) {
+        return mScriptBatcher.enqueueForResult(makeMediaQuery("return m.videoWidth>0?[m.videoWidth,m.videoHeight]:null;"),
+                json -> {
+                    if (json == null) {
+                        return null;
+                    }
+                    final JSONArray array = new JSONArray(json);
+                    return new Point(array.getInt(0), array.getInt(1));
+                }, timeoutMs);
+    }
+
+    @NotNull
+    private String makeMediaQuery(@NotNull String body) {
+        return "(function(m){if(!m){return null;}" + body + "})(" + getMediaElementExpression() + ")";
     }
 
     @Override
@@ -488,6 +844,7 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             logger.d("openDataSource(), content: " + (mContentUri != null ? mContentUri : mContentFileDescriptor) + ", current state: " + mCurrentState);
 
             checkReleased();
+            acquireResources();
 
             if (!isContentSpecified()) {
                 logger.e("can't open data source: content is not specified");
@@ -502,37 +859,19 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
 
                     if (uri != null) {
 
-                        setCurrentState(State.PREPARING);
-
-                        String contentType = HttpURLConnection.guessContentTypeFromName(uri.toString());
-                        logger.i("uri content type: " + contentType);
-
-                        if (mNoCheckMediaContentType || !TextUtils.isEmpty(contentType)) {
-                            beforeOpenDataSource();
-                            if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO) {
-                                if (!requestAudioFocus()) {
-                                    logger.e("failed to request audio focus");
-                                }
-                                JavaScriptExecutor.execute(mWebView, "openDataSource('" + uri.toString() + "', '" + contentType + "')");
-                            } else {
-                                if (!abandonAudioFocus()) {
-                                    logger.e("failed to abandon audio focus");
-                                }
-                                switch (mPlayMode) {
-                                    case PICTURE:
-                                        JavaScriptExecutor.execute(mWebView, "openImage('" + uri.toString() + "')");
-                                        break;
-                                    case PAGE:
-                                        JavaScriptExecutor.execute(mWebView, "openPage('" + uri.toString() + "')");
-                                        break;
-                                    default:
-                                        throw new IllegalStateException("unsupported " + PlayMode.class.getSimpleName() + ": " + mPlayMode);
-                                }
-                            }
+                        final String contentType = peekContentType();
+                        if (contentType == null && !mNoCheckMediaContentType) {
+                            // old content is cleared first (events of it are dropped by generation),
+                            // so its completion or error can't interrupt preparing;
+                            // resolving may perform I/O: data source is opened on main thread when it's done,
+                            // prepare timeout covers resolving
+                            clearDataSource(false);
+                            setCurrentState(State.PREPARING);
                             scheduleResetCallback();
+                            resolveDataSourceAsync(false, this::onDataSourceResolved);
                         } else {
-                            logger.e("empty uri content type");
-                            onError(new MediaError(MediaError.PREPARE_EMPTY_CONTENT_TYPE));
+                            setCurrentState(State.PREPARING);
+                            openUri(uri, contentType);
                         }
 
                     } else {
@@ -550,15 +889,105 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         }
     }
 
+    @MainThread
+    private void onDataSourceResolved(@NotNull Uri uri, @Nullable String contentType, @Nullable Uri dataSourceUri) {
+        synchronized (mLock) {
+            cancelResetCallback();
+            final Uri current = mContentUri;
+            if (current == null) {
+                clearDataSource(true);
+                return;
+            }
+            if (!isPageLoaded()) {
+                logger.w("page is currently not loaded, openDataSource() scheduled");
+                setCurrentState(State.IDLE);
+                mScheduleOpenDataSource = true;
+                return;
+            }
+            if (!current.equals(uri)) {
+                logger.d("content was changed while resolving content type of " + uri);
+                contentType = peekContentType();
+                if (contentType == null && !mNoCheckMediaContentType) {
+                    scheduleResetCallback();
+                    resolveDataSourceAsync(false, this::onDataSourceResolved);
+                    return;
+                }
+            }
+            openUri(current, contentType);
+        }
+    }
+
+    /**
+     * called in {@link State#PREPARING} when content type is known
+     */
+    @MainThread
+    private void openUri(@NotNull Uri uri, @Nullable String contentType) {
+        synchronized (mLock) {
+            logger.i("uri content type: " + contentType);
+            if (mNoCheckMediaContentType || !TextUtils.isEmpty(contentType)) {
+                beforeOpenDataSource();
+                mOpenGeneration++;
+                if (isBridgeEnabled()) {
+                    mScriptBatcher.enqueue(JsBridgeProtocol.makeSetGenerationScript(mOpenGeneration));
+                }
+                if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO) {
+                    if (!requestAudioFocus()) {
+                        logger.e("failed to request audio focus");
+                    }
+                    mScriptBatcher.enqueue("openDataSource(" + JavaScriptExecutor.quote(uri.toString()) + ", " + JavaScriptExecutor.quote(contentType) + ")");
+                } else {
+                    if (!abandonAudioFocus()) {
+                        logger.e("failed to abandon audio focus");
+                    }
+                    switch (mPlayMode) {
+                        case PICTURE:
+                            mScriptBatcher.enqueue("openImage(" + JavaScriptExecutor.quote(uri.toString()) + ")");
+                            break;
+                        case PAGE:
+                            if (mPagePrerenderer != null && mPagePrerenderer.show(uri.toString())) {
+                                // page is already rendered in buffer: prepared without openPage()
+                                mScriptBatcher.enqueue("clearImage()");
+                                final int generation = mOpenGeneration;
+                                postOnMediaHandler(() -> {
+                                    synchronized (mLock) {
+                                        if (generation == mOpenGeneration && isPreparing()) {
+                                            handleDataPrepared();
+                                        }
+                                    }
+                                });
+                            } else {
+                                mScriptBatcher.enqueue("openPage(" + JavaScriptExecutor.quote(uri.toString()) + ")");
+                            }
+                            break;
+                        default:
+                            throw new IllegalStateException("unsupported " + PlayMode.class.getSimpleName() + ": " + mPlayMode);
+                    }
+                }
+                scheduleResetCallback();
+            } else {
+                logger.e("empty uri content type");
+                onError(new MediaError(MediaError.PREPARE_EMPTY_CONTENT_TYPE));
+            }
+        }
+    }
+
     @MainThread
     protected void clearDataSource(final boolean clearTargetState) {
         synchronized (mLock) {
             logger.d("clearDataSource(), clearTargetState=" + clearTargetState);
             cancelResetCallback();
-//          stopPlaybackTimeTask();
-            JavaScriptExecutor.execute(mWebView, "clearDataSource()");
-            JavaScriptExecutor.execute(mWebView, "clearImage()");
-            JavaScriptExecutor.execute(mWebView, "clearPage()");
+            stopPlaybackTimeTask();
+            mPlaybackClock.reset();
+            if (mPagePrerenderer != null) {
+                mPagePrerenderer.hide();
+            }
+            mOpenGeneration++;
+            if (isBridgeEnabled()) {
+                mScriptBatcher.enqueue(JsBridgeProtocol.makeSetGenerationScript(mOpenGeneration));
+            }
+            mScriptBatcher.enqueue("clearDataSource()");
+            mScriptBatcher.enqueue("clearImage()");
+            mScriptBatcher.enqueue("clearPage()");
             mLastContentUriToOpen = null;
             mLastAssetFileDescriptorToOpen = null;
             mLastModeToOpen = PlayMode.NONE;
@@ -575,9 +1004,10 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
         synchronized (mLock) {
             logger.d("start(), current state: " + mCurrentState);
             checkReleased();
+            acquireResources();
             if (!isPlaying()) {
                 if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO && isInPlaybackState()) {
-                    JavaScriptExecutor.execute(mWebView, "play()");
+                    mScriptBatcher.enqueue("play()");
 //                  startPlaybackTimeTask();
                 }
             }
@@ -593,7 +1023,7 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             checkReleased();
             if (mCurrentState != State.IDLE) {
                 if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO && isInPlaybackState()) {
-                    JavaScriptExecutor.execute(mWebView, "stop()");
+                    mScriptBatcher.enqueue("stop()");
                 }
             }
             if (!isPlayerReleased()) {
@@ -610,7 +1040,7 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
             checkReleased();
             if (mCurrentState != State.PAUSED) {
                 if (mPlayMode == PlayMode.AUDIO || mPlayMode == PlayMode.VIDEO && isInPlaybackState()) {
-                    JavaScriptExecutor.execute(mWebView, "pause()");
+                    mScriptBatcher.enqueue("pause()");
                 }
             }
             setTargetState(State.PAUSED);
@@ -653,9 +1083,14 @@ public abstract class JsMediaPlayer extends BaseMediaPlayerController<JsMediaPla
     @MainThread
     public void release() {
         synchronized (mLock) {
+            mImagePrefetcher.clear();
             super.release();
             setContentUri(PlayMode.NONE, null);
             setCurrentState(State.RELEASED);
+            mScriptBatcher.flush();
+            if (mPooledWebView != null) {
+                mPooledWebView.getPool().recycle(mPooledWebView);
+            }
             mContext = null;
         }
     }
@@ -0,0 +1,191 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import android.annotation.SuppressLint;
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import androidx.annotation.MainThread;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Double buffer for PAGE items of {@link JsMediaPlayer}: next page is loaded into hidden {@link WebView}
+ * (laid out over player's one in the same container), and at switch time it's shown instead of "openPage" in player;
+ * two views are alternated, so consecutive pages are prerendered too
+ */
+@MainThread
+public class PagePrerenderer {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(PagePrerenderer.class);
+
+    @NotNull
+    private final ViewGroup mContainer;
+
+    @NotNull
+    private final Buffer[] mBuffers = new Buffer[2];
+
+    /**
+     * index of buffer currently shown or -1
+     */
+    private int mShownIndex = -1;
+
+    private boolean mReleased = false;
+
+    /**
+     * @param container parent of player's WebView, buffers are added on top of it
+     */
+    public PagePrerenderer(@NotNull ViewGroup container, @Nullable WebViewPool.WebViewInitializer initializer) {
+        mContainer = container;
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = new Buffer(createWebView(initializer));
+        }
+    }
+
+    public boolean isShowing() {
+        return mShownIndex >= 0;
+    }
+
+    /**
+     * @return true if page with such url is loaded (or being loaded) and can be shown
+     */
+    public boolean isPrerendered(@Nullable String url) {
+        return findBuffer(url) >= 0;
+    }
+
+    /**
+     * starts loading of specified url into hidden buffer, if it's not already there
+     */
+    public void prerender(@NotNull String url) {
+        checkReleased();
+        if (TextUtils.isEmpty(url)) {
+            throw new IllegalArgumentException("url is empty");
+        }
+        if (findBuffer(url) >= 0) {
+            return;
+        }
+        final Buffer buffer = mBuffers[getBackIndex()];
+        logger.d("prerendering " + url + "...");
+        buffer.url = url;
+        buffer.loaded = false;
+        buffer.loadTime = System.currentTimeMillis();
+        buffer.webView.loadUrl(url);
+    }
+
+    /**
+     * shows buffer with specified url over player (previously shown buffer is hidden after that)
+     *
+     * @return false if url wasn't prerendered
+     */
+    public boolean show(@Nullable String url) {
+        checkReleased();
+        final int index = findBuffer(url);
+        if (index < 0) {
+            return false;
+        }
+        if (index == mShownIndex) {
+            return true;
+        }
+        final Buffer buffer = mBuffers[index];
+        logger.d("showing " + url + (buffer.loaded ? "" : " (still loading)"));
+        buffer.webView.setVisibility(View.VISIBLE);
+        buffer.webView.bringToFront();
+        if (mShownIndex >= 0) {
+            mBuffers[mShownIndex].webView.setVisibility(View.INVISIBLE);
+        }
+        mShownIndex = index;
+        return true;
+    }
+
+    /**
+     * hides shown buffer, page stays loaded and may be shown again
+     */
+    public void hide() {
+        if (mShownIndex >= 0) {
+            mBuffers[mShownIndex].webView.setVisibility(View.INVISIBLE);
+            mShownIndex = -1;
+        }
+    }
+
+    public void release() {
+        if (!mReleased) {
+            mReleased = true;
+            mShownIndex = -1;
+            for (Buffer buffer : mBuffers) {
+                mContainer.removeView(buffer.webView);
+                buffer.webView.destroy();
+            }
+        }
+    }
+
+    private void checkReleased() {
+        if (mReleased) {
+            throw new IllegalStateException(PagePrerenderer.class.getSimpleName() + " was released");
+        }
+    }
+
+    private int findBuffer(@Nullable String url) {
+        if (!TextUtils.isEmpty(url)) {
+            for (int i = 0; i < mBuffers.length; i++) {
+                if (url.equals(mBuffers[i].url)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return buffer, which is not shown (the one with older content, if nothing is shown)
+     */
+    private int getBackIndex() {
+        if (mShownIndex >= 0) {
+            return (mShownIndex + 1) % mBuffers.length;
+        }
+        return mBuffers[0].loadTime <= mBuffers[1].loadTime ? 0 : 1;
+    }
+
+    @SuppressLint("SetJavaScriptEnabled")
+    @NotNull
+    private WebView createWebView(@Nullable WebViewPool.WebViewInitializer initializer) {
+        final WebView webView = new WebView(mContainer.getContext());
+        webView.getSettings().setJavaScriptEnabled(true);
+        if (initializer != null) {
+            initializer.onInitWebView(webView);
+        }
+        // INVISIBLE (not GONE): hidden buffer must be laid out to be rendered
+        webView.setVisibility(View.INVISIBLE);
+        mContainer.addView(webView, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        return webView;
+    }
+
+    private class Buffer {
+
+        @NotNull
+        final WebView webView;
+
+        @Nullable
+        String url;
+
+        boolean loaded;
+
+        long loadTime;
+
+        Buffer(@NotNull WebView webView) {
+            this.webView = webView;
+            webView.setWebViewClient(new WebViewClient() {
+                @Override
+                public void onPageFinished(WebView view, String finishedUrl) {
+                    loaded = true;
+                    logger.d("prerendered: " + finishedUrl);
+                }
+            });
+        }
+    }
+}
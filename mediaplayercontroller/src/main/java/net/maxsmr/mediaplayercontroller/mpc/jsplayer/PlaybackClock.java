@@ -0,0 +1,112 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Position source fed by sparse samples from page scripts:
+ * between samples position is extrapolated by elapsed time while playing,
+ * but not further than {@link #mMaxExtrapolationMs} after last sample (so stalls don't run it ahead)
+ */
+public class PlaybackClock {
+
+    public static final long UNKNOWN = -1;
+
+    public static final long DEFAULT_MAX_EXTRAPOLATION_MS = 2000;
+
+    private final long mMaxExtrapolationMs;
+
+    private long mSamplePosition = UNKNOWN;
+
+    private long mSampleTime = 0;
+
+    private long mDuration = UNKNOWN;
+
+    private boolean mPlaying = false;
+
+    public PlaybackClock() {
+        this(DEFAULT_MAX_EXTRAPOLATION_MS);
+    }
+
+    public PlaybackClock(long maxExtrapolationMs) {
+        if (maxExtrapolationMs < 0) {
+            throw new IllegalArgumentException("incorrect maxExtrapolationMs: " + maxExtrapolationMs);
+        }
+        mMaxExtrapolationMs = maxExtrapolationMs;
+    }
+
+    /**
+     * @param position ms or {@link #UNKNOWN} to keep current
+     * @param duration ms or {@link #UNKNOWN} to keep current
+     */
+    public synchronized void update(long position, long duration) {
+        if (position >= 0) {
+            mSamplePosition = position;
+            mSampleTime = SystemClock.elapsedRealtime();
+        }
+        if (duration > 0) {
+            mDuration = duration;
+        }
+    }
+
+    public synchronized void setPlaying(boolean playing) {
+        if (mPlaying != playing) {
+            // freezing or resuming from extrapolated position
+            if (mSamplePosition != UNKNOWN) {
+                mSamplePosition = getPositionInternal();
+                mSampleTime = SystemClock.elapsedRealtime();
+            }
+            mPlaying = playing;
+        }
+    }
+
+    public synchronized boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @return interpolated position in ms or {@link #UNKNOWN}
+     */
+    public synchronized long getPosition() {
+        return getPositionInternal();
+    }
+
+    /**
+     * @return duration in ms or {@link #UNKNOWN}
+     */
+    public synchronized long getDuration() {
+        return mDuration;
+    }
+
+    public synchronized void reset() {
+        mSamplePosition = UNKNOWN;
+        mSampleTime = 0;
+        mDuration = UNKNOWN;
+        mPlaying = false;
+    }
+
+    private long getPositionInternal() {
+        if (mSamplePosition == UNKNOWN) {
+            return UNKNOWN;
+        }
+        long position = mSamplePosition;
+        if (mPlaying) {
+            position += Math.min(SystemClock.elapsedRealtime() - mSampleTime, mMaxExtrapolationMs);
+        }
+        if (mDuration > 0 && position > mDuration) {
+            position = mDuration;
+        }
+        return position;
+    }
+
+    @NotNull
+    @Override
+    public synchronized String toString() {
+        return "PlaybackClock{" +
+                "mSamplePosition=" + mSamplePosition +
+                ", mDuration=" + mDuration +
+                ", mPlaying=" + mPlaying +
+                '}';
+    }
+}
@@ -0,0 +1,87 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import android.util.LruCache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Process-wide cache of generated player scripts with their versions (digest of script text),
+ * so script is made once per key; version is exposed to page after insert
+ */
+public final class ScriptCache {
+
+    public static final int DEFAULT_MAX_SIZE = 16;
+
+    private static ScriptCache sInstance;
+
+    public static ScriptCache getInstance() {
+        if (sInstance == null) {
+            synchronized (ScriptCache.class) {
+                if (sInstance == null) {
+                    sInstance = new ScriptCache(DEFAULT_MAX_SIZE);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    @NotNull
+    private final LruCache<String, Entry> mEntries;
+
+    public ScriptCache(int maxSize) {
+        mEntries = new LruCache<>(maxSize);
+    }
+
+    @Nullable
+    public Entry get(@NotNull String key) {
+        return mEntries.get(key);
+    }
+
+    @NotNull
+    public Entry put(@NotNull String key, @NotNull String script) {
+        final Entry entry = new Entry(script, makeVersion(script));
+        mEntries.put(key, entry);
+        return entry;
+    }
+
+    public void remove(@NotNull String key) {
+        mEntries.remove(key);
+    }
+
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+    @NotNull
+    private static String makeVersion(@NotNull String script) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(script.getBytes(Charset.forName("UTF-8")));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(script.hashCode()) + "-" + script.length();
+        }
+    }
+
+    public static final class Entry {
+
+        @NotNull
+        public final String script;
+
+        @NotNull
+        public final String version;
+
+        Entry(@NotNull String script, @NotNull String version) {
+            this.script = script;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package net.maxsmr.mediaplayercontroller.mpc.jsplayer;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.webkit.JavascriptInterface;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import androidx.annotation.MainThread;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps specified number of {@link WebView}s with loaded player page and inserted scripts,
+ * so {@link JsMediaPlayer} created on {@link PooledWebView} is usable immediately;
+ * WebView can be created only on main thread, so warming is performed one by one when main looper is idle
+ */
+@MainThread
+public class WebViewPool {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(WebViewPool.class);
+
+    public static final long DEFAULT_WARM_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    @NotNull
+    private final Context mContext;
+
+    @NotNull
+    private final String mPageUrl;
+
+    @NotNull
+    private final String mInterfaceName;
+
+    @NotNull
+    private final ScriptProvider mScriptProvider;
+
+    @Nullable
+    private final WebViewInitializer mWebViewInitializer;
+
+    @NotNull
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    @NotNull
+    private final List<PooledWebView> mEntries = new ArrayList<>();
+
+    private int mSize;
+
+    private long mWarmTimeoutMs = DEFAULT_WARM_TIMEOUT_MS;
+
+    private int mLastBridgeSession = 0;
+
+    private boolean mWarmScheduled = false;
+
+    private boolean mReleased = false;
+
+    /**
+     * @param pageUrl       player page to load into each WebView
+     * @param interfaceName name, under which bridge will be visible to page scripts
+     * @param size          count of ready (not acquired) instances to keep
+     */
+    public WebViewPool(@NotNull Context context, @NotNull String pageUrl, @NotNull String interfaceName, int size,
+                       @NotNull ScriptProvider scriptProvider, @Nullable WebViewInitializer webViewInitializer) {
+        if (TextUtils.isEmpty(pageUrl)) {
+            throw new IllegalArgumentException("pageUrl is empty");
+        }
+        if (TextUtils.isEmpty(interfaceName)) {
+            throw new IllegalArgumentException("interfaceName is empty");
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("incorrect size: " + size);
+        }
+        mContext = context.getApplicationContext();
+        mPageUrl = pageUrl;
+        mInterfaceName = interfaceName;
+        mSize = size;
+        mScriptProvider = scriptProvider;
+        mWebViewInitializer = webViewInitializer;
+        scheduleWarm();
+    }
+
+    @NotNull
+    public String getInterfaceName() {
+        return mInterfaceName;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public void setSize(int size) {
+        checkReleased();
+        if (size < 0) {
+            throw new IllegalArgumentException("incorrect size: " + size);
+        }
+        mSize = size;
+        trim();
+        scheduleWarm();
+    }
+
+    public void setWarmTimeoutMs(long warmTimeoutMs) {
+        if (warmTimeoutMs <= 0) {
+            throw new IllegalArgumentException("incorrect warmTimeoutMs: " + warmTimeoutMs);
+        }
+        mWarmTimeoutMs = warmTimeoutMs;
+    }
+
+    public int getReadyCount() {
+        return count(PooledWebView.State.READY);
+    }
+
+    /**
+     * @param context will be used as base context of WebView while acquired (for example, activity)
+     * @return ready instance or null, if there is no one at the moment
+     */
+    @Nullable
+    public PooledWebView acquire(@NotNull Context context) {
+        checkReleased();
+        PooledWebView result = null;
+        for (PooledWebView entry : mEntries) {
+            if (entry.mState == PooledWebView.State.READY) {
+                result = entry;
+                break;
+            }
+        }
+        if (result != null) {
+            result.mState = PooledWebView.State.ACQUIRED;
+            result.mContextWrapper.setBaseContext(context);
+            logger.d("acquired " + result);
+        } else {
+            logger.w("no ready instances");
+        }
+        scheduleWarm();
+        return result;
+    }
+
+    /**
+     * returns instance to pool (if there is room) after its player released
+     */
+    public void recycle(@NotNull PooledWebView pooled) {
+        if (pooled.mPool != this) {
+            throw new IllegalArgumentException("instance is not from this pool: " + pooled);
+        }
+        if (pooled.mState != PooledWebView.State.ACQUIRED) {
+            return;
+        }
+        pooled.mTarget = null;
+        detachFromParent(pooled.mWebView);
+        pooled.mContextWrapper.setBaseContext(mContext);
+        if (mReleased || count(PooledWebView.State.READY) >= mSize || !TextUtils.equals(pooled.mReadyUrl, pooled.mWebView.getUrl())) {
+            // page was changed while acquired
+            destroy(pooled);
+        } else {
+            JavaScriptExecutor.execute(pooled.mWebView, "clearDataSource();clearImage();clearPage();");
+            pooled.mState = PooledWebView.State.READY;
+            logger.d("recycled " + pooled);
+        }
+    }
+
+    public void release() {
+        if (!mReleased) {
+            mReleased = true;
+            mMainHandler.removeCallbacksAndMessages(null);
+            for (PooledWebView entry : new ArrayList<>(mEntries)) {
+                if (entry.mState != PooledWebView.State.ACQUIRED) {
+                    destroy(entry);
+                }
+            }
+        }
+    }
+
+    private void checkReleased() {
+        if (mReleased) {
+            throw new IllegalStateException(WebViewPool.class.getSimpleName() + " was released");
+        }
+    }
+
+    private int count(@NotNull PooledWebView.State state) {
+        int count = 0;
+        for (PooledWebView entry : mEntries) {
+            if (entry.mState == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void trim() {
+        final Iterator<PooledWebView> it = new ArrayList<>(mEntries).iterator();
+        int extra = count(PooledWebView.State.READY) + count(PooledWebView.State.WARMING) - mSize;
+        while (extra > 0 && it.hasNext()) {
+            final PooledWebView entry = it.next();
+            if (entry.mState != PooledWebView.State.ACQUIRED) {
+                destroy(entry);
+                extra--;
+            }
+        }
+    }
+
+    private void scheduleWarm() {
+        if (mReleased || mWarmScheduled || count(PooledWebView.State.WARMING) > 0
+                || count(PooledWebView.State.READY) >= mSize) {
+            return;
+        }
+        mWarmScheduled = true;
+        mMainHandler.post(() -> Looper.myQueue().addIdleHandler(() -> {
+            mWarmScheduled = false;
+            if (!mReleased && count(PooledWebView.State.WARMING) == 0 && count(PooledWebView.State.READY) < mSize) {
+                warm();
+            }
+            return false;
+        }));
+    }
+
+    @SuppressLint({"SetJavaScriptEnabled", "AddJavascriptInterface"})
+    private void warm() {
+        final long startTime = System.currentTimeMillis();
+        final MutableContextWrapper contextWrapper = new MutableContextWrapper(mContext);
+        final WebView webView;
+        try {
+            webView = new WebView(contextWrapper);
+        } catch (RuntimeException e) {
+            // missing or updating WebView provider
+            logger.e("can't create " + WebView.class.getSimpleName(), e);
+            return;
+        }
+        final PooledWebView entry = new PooledWebView(this, webView, contextWrapper, ++mLastBridgeSession);
+        mEntries.add(entry);
+        webView.getSettings().setJavaScriptEnabled(true);
+        if (mWebViewInitializer != null) {
+            mWebViewInitializer.onInitWebView(webView);
+        }
+        webView.addJavascriptInterface(entry.mBridge, mInterfaceName);
+        webView.setWebViewClient(entry.mClient);
+        logger.d("warming " + entry + ", creation time: " + (System.currentTimeMillis() - startTime) + " ms");
+        webView.loadUrl(mPageUrl);
+        mMainHandler.postDelayed(() -> {
+            if (entry.mState == PooledWebView.State.WARMING) {
+                logger.e("warm timeout exceeded for " + entry);
+                destroy(entry);
+                scheduleWarm();
+            }
+        }, mWarmTimeoutMs);
+    }
+
+    private void onPageFinished(@NotNull PooledWebView entry, @Nullable String url) {
+        if (entry.mState != PooledWebView.State.WARMING || TextUtils.isEmpty(url)) {
+            return;
+        }
+        final String key = WebViewPool.class.getName() + "|" + mPageUrl;
+        ScriptCache.Entry scriptEntry = ScriptCache.getInstance().get(key);
+        if (scriptEntry == null) {
+            final String script = mScriptProvider.makeScriptForUrl(url);
+            if (TextUtils.isEmpty(script)) {
+                logger.e("can't make script, is empty");
+                destroy(entry);
+                return;
+            }
+            scriptEntry = ScriptCache.getInstance().put(key, script);
+        }
+        JavaScriptExecutor.execute(entry.mWebView, JsBridgeProtocol.makeShimScript(mInterfaceName, entry.mBridgeSession) + scriptEntry.script
+                + ";window." + JsMediaPlayer.SCRIPT_VERSION_VAR_NAME + "=" + JavaScriptExecutor.quote(scriptEntry.version) + ";");
+    }
+
+    private void onScriptInsertDone(@NotNull PooledWebView entry) {
+        if (entry.mState == PooledWebView.State.WARMING) {
+            JavaScriptExecutor.execute(entry.mWebView, "addCallbacks()");
+            entry.mReadyUrl = entry.mWebView.getUrl();
+            entry.mState = PooledWebView.State.READY;
+            logger.d("ready: " + entry);
+            trim();
+            scheduleWarm();
+        }
+    }
+
+    private void destroy(@NotNull PooledWebView entry) {
+        mEntries.remove(entry);
+        entry.mState = PooledWebView.State.DESTROYED;
+        entry.mTarget = null;
+        detachFromParent(entry.mWebView);
+        entry.mWebView.removeJavascriptInterface(mInterfaceName);
+        entry.mWebView.destroy();
+        logger.d("destroyed " + entry);
+    }
+
+    private static void detachFromParent(@NotNull WebView webView) {
+        final ViewParent parent = webView.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(webView);
+        }
+    }
+
+    /**
+     * WebView with loaded page, inserted scripts and callbacks;
+     * page events and bridge calls are forwarded to attached {@link JsMediaPlayer}
+     */
+    public static final class PooledWebView {
+
+        enum State {
+            WARMING, READY, ACQUIRED, DESTROYED
+        }
+
+        @NotNull
+        private final WebViewPool mPool;
+
+        @NotNull
+        private final WebView mWebView;
+
+        @NotNull
+        private final MutableContextWrapper mContextWrapper;
+
+        private final int mBridgeSession;
+
+        @NotNull
+        private final Bridge mBridge = new Bridge();
+
+        @NotNull
+        private final WebViewClient mClient = new Client();
+
+        @NotNull
+        private volatile State mState = State.WARMING;
+
+        @Nullable
+        private volatile JsMediaPlayer mTarget;
+
+        @Nullable
+        private String mReadyUrl;
+
+        private PooledWebView(@NotNull WebViewPool pool, @NotNull WebView webView, @NotNull MutableContextWrapper contextWrapper, int bridgeSession) {
+            mPool = pool;
+            mWebView = webView;
+            mContextWrapper = contextWrapper;
+            mBridgeSession = bridgeSession;
+        }
+
+        @NotNull
+        public WebView getWebView() {
+            return mWebView;
+        }
+
+        @NotNull
+        public WebViewPool getPool() {
+            return mPool;
+        }
+
+        int getBridgeSession() {
+            return mBridgeSession;
+        }
+
+        void attach(@NotNull JsMediaPlayer player) {
+            if (mState != State.ACQUIRED) {
+                throw new IllegalStateException("instance is not acquired: " + this);
+            }
+            mTarget = player;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "PooledWebView{" +
+                    "mBridgeSession=" + mBridgeSession +
+                    ", mState=" + mState +
+                    '}';
+        }
+
+        private class Client extends WebViewClient {
+
+            @Override
+            public void onPageStarted(WebView view, String url, Bitmap favicon) {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onPageStarted(url, favicon);
+                }
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onPageFinished(url);
+                } else {
+                    mPool.onPageFinished(PooledWebView.this, url);
+                }
+            }
+
+            @Override
+            public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+                logger.e("render process gone for " + PooledWebView.this);
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onError();
+                } else if (mState != State.DESTROYED) {
+                    mPool.destroy(PooledWebView.this);
+                    mPool.scheduleWarm();
+                }
+                return true;
+            }
+        }
+
+        /**
+         * registered before page load, so page scripts see it regardless of player attached later
+         */
+        private class Bridge {
+
+            @JavascriptInterface
+            public void onScriptInsertDone() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onScriptInsertDone();
+                } else {
+                    mPool.mMainHandler.post(() -> mPool.onScriptInsertDone(PooledWebView.this));
+                }
+            }
+
+            @JavascriptInterface
+            public void dispatch(String batch) {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.dispatch(batch);
+                } else if (mState == State.WARMING) {
+                    for (JsBridgeProtocol.Message message : JsBridgeProtocol.parse(batch)) {
+                        if (message.type == JsBridgeProtocol.EventType.READY) {
+                            mPool.mMainHandler.post(() -> mPool.onScriptInsertDone(PooledWebView.this));
+                            break;
+                        }
+                    }
+                }
+            }
+
+            @JavascriptInterface
+            public void onEnded() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onEnded();
+                }
+            }
+
+            @JavascriptInterface
+            public void onPlay() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onPlay();
+                }
+            }
+
+            @JavascriptInterface
+            public void onPlaying() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onPlaying();
+                }
+            }
+
+            @JavascriptInterface
+            public void onPaused() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onPaused();
+                }
+            }
+
+            @JavascriptInterface
+            public void onDataPrepared() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onDataPrepared();
+                }
+            }
+
+            @JavascriptInterface
+            public void onError() {
+                final JsMediaPlayer target = mTarget;
+                if (target != null) {
+                    target.onError();
+                }
+            }
+        }
+    }
+
+    public interface ScriptProvider {
+
+        /**
+         * @return script with player functions, which must call "onScriptInsertDone()" of bridge after insert
+         */
+        @Nullable
+        String makeScriptForUrl(@NotNull String loadedUrl);
+    }
+
+    public interface WebViewInitializer {
+
+        /**
+         * called once after creation, before page load (settings, client for chrome, etc.)
+         */
+        void onInitWebView(@NotNull WebView webView);
+    }
+}
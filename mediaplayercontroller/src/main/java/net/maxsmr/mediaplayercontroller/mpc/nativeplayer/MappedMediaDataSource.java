@@ -0,0 +1,270 @@
+package net.maxsmr.mediaplayercontroller.mpc.nativeplayer;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.RequiresApi;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link MediaDataSource} backed by memory-mapped regions of local file or {@link AssetFileDescriptor} range:
+ * reads are served from page cache without read() syscalls; on sequential access
+ * next part of file is touched in background (read-ahead), so seeks and region switches don't block on I/O
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+public class MappedMediaDataSource extends MediaDataSource {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(MappedMediaDataSource.class);
+
+    public static final int DEFAULT_REGION_SIZE = 32 * 1024 * 1024;
+
+    public static final int DEFAULT_READ_AHEAD_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * limits address space used by single source (matters on 32-bit devices)
+     */
+    private static final int MAX_MAPPED_REGIONS = 4;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final ExecutorService sReadAheadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, MappedMediaDataSource.class.getSimpleName() + "-ReadAhead");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    @NotNull
+    private final FileChannel mChannel;
+
+    @NotNull
+    private final Closeable mOwner;
+
+    private final long mOffset;
+
+    private final long mLength;
+
+    private final int mRegionSize;
+
+    private final int mReadAheadSize;
+
+    @NotNull
+    private final Map<Integer, MappedByteBuffer> mRegions = new LinkedHashMap<Integer, MappedByteBuffer>(MAX_MAPPED_REGIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_REGIONS;
+        }
+    };
+
+    private long mLastReadEnd = -1;
+
+    private long mReadAheadEnd = -1;
+
+    private boolean mClosed = false;
+
+    private MappedMediaDataSource(@NotNull FileChannel channel, @NotNull Closeable owner, long offset, long length, int regionSize, int readAheadSize) {
+        if (regionSize <= 0) {
+            throw new IllegalArgumentException("incorrect regionSize: " + regionSize);
+        }
+        if (readAheadSize < 0) {
+            throw new IllegalArgumentException("incorrect readAheadSize: " + readAheadSize);
+        }
+        mChannel = channel;
+        mOwner = owner;
+        mOffset = offset;
+        mLength = length;
+        mRegionSize = regionSize;
+        mReadAheadSize = readAheadSize;
+    }
+
+    @NotNull
+    public static MappedMediaDataSource fromFile(@NotNull File file) throws IOException {
+        return fromFile(file, DEFAULT_REGION_SIZE, DEFAULT_READ_AHEAD_SIZE);
+    }
+
+    @NotNull
+    public static MappedMediaDataSource fromFile(@NotNull File file, int regionSize, int readAheadSize) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return new MappedMediaDataSource(channel, raf, 0, channel.size(), regionSize, readAheadSize);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param afd will not be closed by this source, its descriptor is duplicated
+     */
+    @NotNull
+    public static MappedMediaDataSource fromAssetFileDescriptor(@NotNull AssetFileDescriptor afd) throws IOException {
+        return fromAssetFileDescriptor(afd, DEFAULT_REGION_SIZE, DEFAULT_READ_AHEAD_SIZE);
+    }
+
+    @NotNull
+    public static MappedMediaDataSource fromAssetFileDescriptor(@NotNull AssetFileDescriptor afd, int regionSize, int readAheadSize) throws IOException {
+        final ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(afd.getFileDescriptor());
+        try {
+            final FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            final long offset = afd.getStartOffset();
+            final long length = afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH ? afd.getLength() : channel.size() - offset;
+            return new MappedMediaDataSource(channel, pfd, offset, length, regionSize, readAheadSize);
+        } catch (IOException | RuntimeException e) {
+            pfd.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (mClosed) {
+            throw new IOException(MappedMediaDataSource.class.getSimpleName() + " was closed");
+        }
+        if (position < 0) {
+            throw new IOException("incorrect position: " + position);
+        }
+        if (position >= mLength) {
+            return -1;
+        }
+        if (size <= 0) {
+            return 0;
+        }
+        final int toRead = (int) Math.min(size, mLength - position);
+        int read = 0;
+        while (read < toRead) {
+            final long current = position + read;
+            final int regionIndex = (int) (current / mRegionSize);
+            final ByteBuffer region = getRegion(regionIndex).duplicate();
+            region.position((int) (current - (long) regionIndex * mRegionSize));
+            final int count = Math.min(toRead - read, region.remaining());
+            region.get(buffer, offset + read, count);
+            read += count;
+        }
+        onRead(position, position + read);
+        return read;
+    }
+
+    @Override
+    public long getSize() {
+        return mLength;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            mRegions.clear();
+            try {
+                mChannel.close();
+            } finally {
+                mOwner.close();
+            }
+        }
+    }
+
+    @NotNull
+    private MappedByteBuffer getRegion(int index) throws IOException {
+        MappedByteBuffer region = mRegions.get(index);
+        if (region == null) {
+            final long start = (long) index * mRegionSize;
+            final long size = Math.min(mRegionSize, mLength - start);
+            region = mChannel.map(FileChannel.MapMode.READ_ONLY, mOffset + start, size);
+            mRegions.put(index, region);
+        }
+        return region;
+    }
+
+    /**
+     * schedules read-ahead of next part on sequential access
+     */
+    private void onRead(long start, long end) {
+        final boolean sequential = start == mLastReadEnd;
+        mLastReadEnd = end;
+        if (mReadAheadSize == 0 || !sequential) {
+            if (!sequential) {
+                mReadAheadEnd = -1;
+            }
+            return;
+        }
+        // start next read-ahead when half of previous one consumed
+        if (mReadAheadEnd < 0 || end + mReadAheadSize / 2 >= mReadAheadEnd) {
+            final long from = Math.max(end, mReadAheadEnd);
+            final long to = Math.min(end + mReadAheadSize, mLength);
+            if (from < to) {
+                mReadAheadEnd = to;
+                sReadAheadExecutor.execute(() -> touch(from, to));
+            }
+        }
+    }
+
+    private void touch(long from, long to) {
+        long position = from;
+        try {
+            while (position < to) {
+                final ByteBuffer region;
+                final int regionIndex = (int) (position / mRegionSize);
+                synchronized (this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    region = getRegion(regionIndex).duplicate();
+                }
+                final long regionStart = (long) regionIndex * mRegionSize;
+                final int regionEnd = (int) Math.min(region.capacity(), to - regionStart);
+                for (int i = (int) (position - regionStart); i < regionEnd; i += PAGE_SIZE) {
+                    // faulting page into memory
+                    region.get(i);
+                }
+                position = regionStart + regionEnd;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.e("read-ahead " + from + "-" + to + " failed", e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "MappedMediaDataSource{" +
+                "mOffset=" + mOffset +
+                ", mLength=" + mLength +
+                ", mRegionSize=" + mRegionSize +
+                ", mReadAheadSize=" + mReadAheadSize +
+                '}';
+    }
+
+    @Nullable
+    static MappedMediaDataSource createOrNull(@Nullable File file, @Nullable AssetFileDescriptor afd) {
+        try {
+            if (file != null) {
+                return fromFile(file);
+            } else if (afd != null) {
+                return fromAssetFileDescriptor(afd);
+            }
+        } catch (IOException e) {
+            logger.e("can't create " + MappedMediaDataSource.class.getSimpleName(), e);
+        }
+        return null;
+    }
+}
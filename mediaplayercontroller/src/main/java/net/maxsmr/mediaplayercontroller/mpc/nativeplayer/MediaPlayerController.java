@@ -5,6 +5,7 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Looper;
 import android.text.TextUtils;
 import android.view.SurfaceHolder;
@@ -22,8 +23,9 @@ import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.util.concurrent.TimeUnit;
 
 public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayerController.MediaError> {
@@ -70,23 +72,30 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
             };
 
     private final MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
-            (mp, percent) -> MediaPlayerController.this.onBufferingUpdate(percent);
+            (mp, percent) -> runForPlayer(mp, () -> MediaPlayerController.this.onBufferingUpdate(percent));
 
 
-    private final MediaPlayer.OnPreparedListener mPreparedListener = mp -> MediaPlayerController.this.onPrepared();
+    private final MediaPlayer.OnPreparedListener mPreparedListener = mp -> runForPlayer(mp, MediaPlayerController.this::onPrepared);
 
     private final MediaPlayer.OnCompletionListener mCompletionListener =
-            mp -> MediaPlayerController.this.onCompletion();
+            mp -> runForPlayer(mp, MediaPlayerController.this::onCompletion);
 
     private final MediaPlayer.OnInfoListener mInfoListener = (mp, what, extra) -> {
         logger.i("onInfo(), what=" + what + ", extra=" + extra);
         return true;
     };
 
+    /**
+     * if error is delivered not on media thread, it's handled asynchronously and reported as handled
+     */
     private final MediaPlayer.OnErrorListener mErrorListener =
             (mp, framework_err, impl_err) -> {
                 logger.e("onError(), framework_err=" + framework_err + ", impl_err=" + impl_err);
-                return MediaPlayerController.this.onError(new MediaError(framework_err, impl_err));
+                if (Looper.myLooper() == getMediaLooper()) {
+                    return MediaPlayerController.this.onError(new MediaError(framework_err, impl_err));
+                }
+                runForPlayer(mp, () -> MediaPlayerController.this.onError(new MediaError(framework_err, impl_err)));
+                return true;
             };
 
     private final SurfaceHolder.Callback mSHCallback = new SurfaceHolder.Callback() {
@@ -135,6 +144,28 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
 
     private MediaPlayer mMediaPlayer;
 
+    /**
+     * player events are delivered on thread which created it (see {@link #openDataSource()}),
+     * so they are moved to media thread; events of previous player are dropped
+     */
+    private void runForPlayer(@NotNull MediaPlayer mp, @NotNull Runnable r) {
+        runOnMediaThread(() -> {
+            synchronized (mLock) {
+                if (mp != mMediaPlayer) {
+                    logger.w("ignoring event of previous media player");
+                    return;
+                }
+                r.run();
+            }
+        });
+    }
+
+    /**
+     * {@link MappedMediaDataSource}, if it was used for current player
+     */
+    @Nullable
+    private Closeable mMappedDataSource;
+
     private boolean isSurfaceCreated = false;
 
     @Nullable
@@ -185,6 +216,18 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
         }
     }
 
+    @Override
+    protected void applyVolume(float left, float right) {
+        final MediaPlayer mediaPlayer = mMediaPlayer;
+        if (mediaPlayer != null) {
+            try {
+                mediaPlayer.setVolume(left, right);
+            } catch (IllegalStateException e) {
+                logger.e("can't apply volume", e);
+            }
+        }
+    }
+
     @Override
     public int getDuration() {
         synchronized (mLock) {
@@ -307,6 +350,70 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
         }
     }
 
+    /**
+     * seeks to closest frame (on API 26+), unlike {@link #seekTo(int)}, which goes to previous sync frame; slower
+     */
+    public void seekToClosest(int msec) {
+        synchronized (mLock) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || !isInPlaybackState()) {
+                seekTo(msec);
+                return;
+            }
+            logger.d("seekToClosest(), msec=" + msec);
+            checkReleased();
+            if (msec >= POSITION_START && msec <= mMediaPlayer.getDuration()) {
+                mMediaPlayer.seekTo(msec, MediaPlayer.SEEK_CLOSEST);
+            }
+            mSeekWhenPrepared = POSITION_NO;
+        }
+    }
+
+    /**
+     * @return 1 if not supported (below API 23) or not in playback state
+     */
+    public float getPlaybackSpeed() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 1f;
+        }
+        synchronized (mLock) {
+            if (isInPlaybackState()) {
+                try {
+                    return mMediaPlayer.getPlaybackParams().getSpeed();
+                } catch (IllegalStateException e) {
+                    logger.e("can't get playback speed", e);
+                }
+            }
+            return 1f;
+        }
+    }
+
+    /**
+     * applied only while playing: setting speed of paused player starts it;
+     * speed is kept by player until it's released
+     *
+     * @return false if not supported (below API 23), not playing or rejected by player
+     */
+    public boolean setPlaybackSpeed(float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("incorrect speed: " + speed);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        synchronized (mLock) {
+            if (!isPlaying()) {
+                return false;
+            }
+            try {
+                mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(speed));
+                return true;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                logger.e("can't set playback speed " + speed, e);
+                return false;
+            }
+        }
+    }
+
     @Override
     public int getAudioSessionId() {
         synchronized (mLock) {
@@ -390,6 +497,7 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
             logger.d("openDataSource(), content: " + (mContentUri != null ? mContentUri : mContentFileDescriptor) + ", current state: " + mCurrentState);
 
             checkReleased();
+            acquireResources();
 
             if (!isContentSpecified()) {
                 logger.e("can't open data source: content is not specified");
@@ -398,108 +506,203 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
 
             if (!isPreparing()) {
 
-                setCurrentState(State.PREPARING);
-
                 if (mContentUri != null) {
-
-                    String contentType = HttpURLConnection.guessContentTypeFromName(mContentUri.toString());
-                    logger.i("uri content type: " + contentType);
-
-                    if (!mNoCheckMediaContentType && TextUtils.isEmpty(contentType)) {
-                        logger.e("empty uri content type");
-                        onError(new MediaError(MediaError.PREPARE_EMPTY_CONTENT_TYPE, MediaError.UNKNOWN));
+                    final String contentType = peekContentType();
+                    if (contentType == null && !mNoCheckMediaContentType || isCachedDataSource()) {
+                        // old player is released first, so its completion or error can't interrupt preparing;
+                        // resolving and cache lookup may perform I/O: player is opened on media thread when it's done,
+                        // prepare timeout covers resolving
+                        suspend();
+                        setCurrentState(State.PREPARING);
+                        scheduleResetCallback();
+                        resolveDataSourceAsync(true, this::onDataSourceResolved);
                         return;
                     }
+                    logger.i("uri content type: " + contentType);
                 }
+                setCurrentState(State.PREPARING);
+                openPlayer(null);
+            } else {
+                logger.w("can't open data source: currently is preparing");
+            }
+        }
+    }
 
-                // we shouldn't clear the target state, because somebody might have
-                // called start() previously
-                suspend();
-
-                if (!requestAudioFocus()) {
-                    logger.e("failed to request audio focus");
+    private void onDataSourceResolved(@NotNull Uri uri, @Nullable String contentType, @Nullable Uri dataSourceUri) {
+        synchronized (mLock) {
+            cancelResetCallback();
+            if (!isContentSpecified()) {
+                logger.e("can't open data source: content is not specified");
+                if (!isPlayerReleased()) {
+                    releasePlayer(false);
+                } else {
+                    abortPreparing(false);
+                }
+                return;
+            }
+            if (mContentUri != null && !mContentUri.equals(uri)) {
+                logger.d("content was changed while resolving content type of " + uri);
+                contentType = peekContentType();
+                if (contentType == null && !mNoCheckMediaContentType || isCachedDataSource()) {
+                    scheduleResetCallback();
+                    resolveDataSourceAsync(true, this::onDataSourceResolved);
+                    return;
                 }
+                dataSourceUri = null;
+            }
+            logger.i("uri content type: " + contentType);
+            if (mContentUri != null && !mNoCheckMediaContentType && TextUtils.isEmpty(contentType)) {
+                logger.e("empty uri content type");
+                onError(new MediaError(MediaError.PREPARE_EMPTY_CONTENT_TYPE, MediaError.UNKNOWN));
+                return;
+            }
+            openPlayer(dataSourceUri);
+        }
+    }
 
-                boolean result;
-                final long startPreparingTime = System.currentTimeMillis();
+    /**
+     * creates and prepares player for current content, called in {@link State#PREPARING}
+     *
+     * @param dataSourceUri cached or proxied variant of {@link #mContentUri}, null to use it as is
+     */
+    private void openPlayer(@Nullable Uri dataSourceUri) {
+        synchronized (mLock) {
+            // we shouldn't clear the target state, because somebody might have
+            // called start() previously
+            suspend();
 
-                try {
-                    mMediaPlayer = new MediaPlayer();
+            if (!requestAudioFocus()) {
+                logger.e("failed to request audio focus");
+            }
+
+            boolean result;
+            final long startPreparingTime = System.currentTimeMillis();
+
+            try {
+                mMediaPlayer = new MediaPlayer();
+
+                mMediaPlayer.setOnPreparedListener(mPreparedListener);
+                mMediaPlayer.setOnCompletionListener(mCompletionListener);
+                mMediaPlayer.setOnErrorListener(mErrorListener);
+                mMediaPlayer.setOnInfoListener(mInfoListener);
+                mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
 
-                    mMediaPlayer.setOnPreparedListener(mPreparedListener);
-                    mMediaPlayer.setOnCompletionListener(mCompletionListener);
-                    mMediaPlayer.setOnErrorListener(mErrorListener);
-                    mMediaPlayer.setOnInfoListener(mInfoListener);
-                    mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
+                mCurrentBufferPercentage = 0;
 
-                    mCurrentBufferPercentage = 0;
+                final MappedMediaDataSource mappedDataSource = mDataSourceMode == DataSourceMode.MEMORY_MAPPED ? createMappedDataSource() : null;
 
-                    if (mContentUri != null) {
-                        logger.d("content data source: " + mContentUri);
+                if (mappedDataSource != null) {
+                    logger.d("content data source: " + (mContentUri != null ? mContentUri : mContentFileDescriptor) + " (memory-mapped)");
+                    mMappedDataSource = mappedDataSource;
+                    mMediaPlayer.setDataSource(mappedDataSource);
+                } else if (mContentUri != null) {
+                    if (dataSourceUri == null) {
+                        dataSourceUri = mContentUri;
+                    }
+                    logger.d("content data source: " + mContentUri + (!mContentUri.equals(dataSourceUri) ? " (via " + dataSourceUri + ")" : ""));
+                    if (mContentUri.equals(dataSourceUri)) {
                         mMediaPlayer.setDataSource(mContext, mContentUri, mContentHeaders);
-                    } else if (mContentFileDescriptor != null) {
-                        logger.d("content data source: " + mContentFileDescriptor);
-                        mMediaPlayer.setDataSource(mContentFileDescriptor.getFileDescriptor(), mContentFileDescriptor.getStartOffset(), mContentFileDescriptor.getLength());
                     } else {
-                        throw new AssertionError("content data source not specified");
+                        // headers are sent by proxy
+                        mMediaPlayer.setDataSource(mContext, dataSourceUri);
                     }
+                } else if (mContentFileDescriptor != null) {
+                    logger.d("content data source: " + mContentFileDescriptor);
+                    mMediaPlayer.setDataSource(mContentFileDescriptor.getFileDescriptor(), mContentFileDescriptor.getStartOffset(), mContentFileDescriptor.getLength());
+                } else {
+                    throw new AssertionError("content data source not specified");
+                }
 
-                    if (mPlayMode == PlayMode.AUDIO) {
-
-                        mMediaPlayer.setOnVideoSizeChangedListener(null);
-                        mMediaPlayer.setDisplay(null);
-
-                    } else if (mPlayMode == PlayMode.VIDEO) {
+                if (mPlayMode == PlayMode.AUDIO) {
 
-                        if (mVideoView == null || !isSurfaceCreated()) {
-                            throw new IllegalStateException("surface was not created");
-                        }
+                    mMediaPlayer.setOnVideoSizeChangedListener(null);
+                    mMediaPlayer.setDisplay(null);
 
-                        mMediaPlayer.setOnVideoSizeChangedListener(mVideoSizeChangedListener);
-                        mMediaPlayer.setDisplay(mVideoView.getHolder());
+                } else if (mPlayMode == PlayMode.VIDEO) {
 
-                    } else {
-                        throw new IllegalStateException("unsupported " + PlayMode.class.getSimpleName() + ": " + mPlayMode);
+                    if (mVideoView == null || !isSurfaceCreated()) {
+                        throw new IllegalStateException("surface was not created");
                     }
 
-                    mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                    mMediaPlayer.setScreenOnWhilePlaying(mPlayMode == PlayMode.VIDEO);
-                    mMediaPlayer.setLooping(mLoopWhenPreparing);
+                    mMediaPlayer.setOnVideoSizeChangedListener(mVideoSizeChangedListener);
+                    mMediaPlayer.setDisplay(mVideoView.getHolder());
 
-                    beforeOpenDataSource();
+                } else {
+                    throw new IllegalStateException("unsupported " + PlayMode.class.getSimpleName() + ": " + mPlayMode);
+                }
 
-                    try {
-                        result = submitOnExecutor(() -> {
-                            mMediaPlayer.prepareAsync();
-                            return true;
-                        }).get(EXECUTOR_CALL_TIMEOUT_S, TimeUnit.SECONDS);
+                mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                mMediaPlayer.setScreenOnWhilePlaying(mPlayMode == PlayMode.VIDEO);
+                mMediaPlayer.setLooping(mLoopWhenPreparing);
 
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        logger.e("an Exception occurred during get()", e);
-                        throw new RuntimeException(e);
-                    }
+                beforeOpenDataSource();
 
-                } catch (IOException | IllegalArgumentException | IllegalStateException ex) {
-                    ex.printStackTrace();
-                    logger.e("Unable to open content: " + (mContentUri != null ? mContentUri : mContentFileDescriptor), ex);
-                    result = false;
+                try {
+                    result = submitOnExecutor(() -> {
+                        mMediaPlayer.prepareAsync();
+                        return true;
+                    }).get(EXECUTOR_CALL_TIMEOUT_S, TimeUnit.SECONDS);
+
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    logger.e("an Exception occurred during get()", e);
+                    throw new RuntimeException(e);
                 }
 
-                if (result) {
-                    logger.d("media player preparing start success / time: " + (System.currentTimeMillis() - startPreparingTime) + " ms");
-                    // we don't set the target state here either, but preserve the
-                    // target state that was there before.
-                    toggleMediaControllerEnabled();
-                    scheduleResetCallback();
-                } else {
-                    logger.e("media player preparing start failed / time: " + (System.currentTimeMillis() - startPreparingTime) + " ms");
-                    onError(new MediaError(MediaError.PREPARE_UNKNOWN, MediaError.UNKNOWN));
+            } catch (IOException | IllegalArgumentException | IllegalStateException ex) {
+                ex.printStackTrace();
+                logger.e("Unable to open content: " + (mContentUri != null ? mContentUri : mContentFileDescriptor), ex);
+                result = false;
+            }
+
+            if (result) {
+                logger.d("media player preparing start success / time: " + (System.currentTimeMillis() - startPreparingTime) + " ms");
+                // we don't set the target state here either, but preserve the
+                // target state that was there before.
+                toggleMediaControllerEnabled();
+                scheduleResetCallback();
+            } else {
+                logger.e("media player preparing start failed / time: " + (System.currentTimeMillis() - startPreparingTime) + " ms");
+                onError(new MediaError(MediaError.PREPARE_UNKNOWN, MediaError.UNKNOWN));
+            }
+        }
+    }
+
+    /**
+     * leaves {@link State#PREPARING} while content type is being resolved (player is not created yet)
+     */
+    private void abortPreparing(boolean clearTargetState) {
+        synchronized (mLock) {
+            if (isPreparing() && mMediaPlayer == null) {
+                cancelDataSourceResolve();
+                cancelResetCallback();
+                setCurrentState(State.IDLE);
+                if (clearTargetState) {
+                    setTargetState(State.IDLE);
                 }
+            }
+        }
+    }
+
+    /**
+     * @return null if platform doesn't support {@link android.media.MediaDataSource} or content is not local
+     */
+    @Nullable
+    private MappedMediaDataSource createMappedDataSource() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            logger.w("memory-mapped data source is not supported on API " + Build.VERSION.SDK_INT);
+            return null;
+        }
+        File file = null;
+        if (mContentUri != null) {
+            final String scheme = mContentUri.getScheme();
+            if ((TextUtils.isEmpty(scheme) || scheme.equalsIgnoreCase(ContentResolver.SCHEME_FILE)) && !TextUtils.isEmpty(mContentUri.getPath())) {
+                file = new File(mContentUri.getPath());
             } else {
-                logger.w("can't open data source: currently is preparing");
+                return null;
             }
         }
+        return MappedMediaDataSource.createOrNull(file, mContentFileDescriptor);
     }
 
     @Override
@@ -508,6 +711,7 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
             logger.d("start(), current state: " + mCurrentState);
 
             checkReleased();
+            acquireResources();
 
             if (mCurrentState != State.PLAYING) {
                 if (isInPlaybackState()) {
@@ -603,6 +807,8 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
             }
             if (!isPlayerReleased()) {
                 releasePlayer(true);
+            } else {
+                abortPreparing(true);
             }
         }
     }
@@ -650,6 +856,15 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
 
                 mMediaPlayer = null;
 
+                if (mMappedDataSource != null) {
+                    try {
+                        mMappedDataSource.close();
+                    } catch (IOException e) {
+                        logger.e("an IOException occurred during close()", e);
+                    }
+                    mMappedDataSource = null;
+                }
+
                 setCurrentState(State.IDLE);
                 if (clearTargetState) {
                     setTargetState(State.IDLE);
@@ -804,6 +1019,8 @@ public class MediaPlayerController extends BaseMediaPlayerController<MediaPlayer
 
             if (!isPlayerReleased()) {
                 releasePlayer(true);
+            } else {
+                abortPreparing(true);
             }
             return super.onError(error);
         }
@@ -0,0 +1,906 @@
+package net.maxsmr.mediaplayercontroller.mpc.nativeplayer;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+import net.maxsmr.commonutils.data.Observable;
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps several {@link MediaPlayerController}s (e.g. panels of video wall) position-aligned:
+ * members are prepared paused and started together at same {@link SystemClock#uptimeMillis()} on their media handlers,
+ * when all of them are prepared; then positions are periodically sampled, normalized to common instant of
+ * {@link SystemClock#elapsedRealtime()} and compared with median. Small drift is corrected by playback speed nudge (API 23+),
+ * large one (or any drift below API 23) by frame-accurate seek. Members should have same content duration
+ * and preferably own media loopers, so their starts are not serialized.
+ * Controllers are never called under group lock: they dispatch state under their locks
+ */
+public class SyncGroup {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(SyncGroup.class);
+
+    public static final long DEFAULT_SAMPLE_INTERVAL_MS = 500;
+
+    /**
+     * drift within tolerance is not corrected; about one frame at 60 fps
+     */
+    public static final long DEFAULT_TOLERANCE_MS = 15;
+
+    /**
+     * drift above this is corrected by seek
+     */
+    public static final long DEFAULT_MAX_NUDGE_DRIFT_MS = 250;
+
+    /**
+     * nudged speed removes drift over this time
+     */
+    public static final long DEFAULT_CORRECTION_WINDOW_MS = 2000;
+
+    public static final float DEFAULT_MAX_SPEED_DELTA = 0.05f;
+
+    /**
+     * delay between scheduling and starting members, so all of them get start message before time comes
+     */
+    public static final long DEFAULT_START_LEAD_MS = 100;
+
+    /**
+     * member is not corrected after seek during this time
+     */
+    private static final long SEEK_SETTLE_MS = 1000;
+
+    @NotNull
+    private final Object mLock = new Object();
+
+    @NotNull
+    private final List<Member> mMembers = new ArrayList<>();
+
+    private final OnSyncObservable mSyncObservable = new OnSyncObservable();
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, SyncGroup.class.getSimpleName() + "-sampler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Nullable
+    private ScheduledFuture<?> mSampleFuture;
+
+    private long mSampleIntervalMs = DEFAULT_SAMPLE_INTERVAL_MS;
+
+    private long mToleranceMs = DEFAULT_TOLERANCE_MS;
+
+    private long mMaxNudgeDriftMs = DEFAULT_MAX_NUDGE_DRIFT_MS;
+
+    private long mCorrectionWindowMs = DEFAULT_CORRECTION_WINDOW_MS;
+
+    private float mMaxSpeedDelta = DEFAULT_MAX_SPEED_DELTA;
+
+    private long mStartLeadMs = DEFAULT_START_LEAD_MS;
+
+    private boolean mSpeedCorrectionEnabled = true;
+
+    /**
+     * start was requested, waiting for all members to be prepared
+     */
+    private boolean mStartRequested = false;
+
+    private boolean mRunning = false;
+
+    private boolean mReleased = false;
+
+    /**
+     * difference between most ahead and most behind members at last sample
+     */
+    private long mLastSpreadMs = 0;
+
+    private long mMaxSpreadMs = 0;
+
+    public SyncGroup() {
+    }
+
+    public SyncGroup(@NotNull Collection<MediaPlayerController> controllers) {
+        for (MediaPlayerController controller : controllers) {
+            addMember(controller);
+        }
+    }
+
+    public Observable<OnSyncListener> getSyncObservable() {
+        return mSyncObservable;
+    }
+
+    public long getSampleIntervalMs() {
+        synchronized (mLock) {
+            return mSampleIntervalMs;
+        }
+    }
+
+    /**
+     * applied on next start
+     */
+    public void setSampleIntervalMs(long sampleIntervalMs) {
+        if (sampleIntervalMs <= 0) {
+            throw new IllegalArgumentException("incorrect sampleIntervalMs: " + sampleIntervalMs);
+        }
+        synchronized (mLock) {
+            mSampleIntervalMs = sampleIntervalMs;
+        }
+    }
+
+    public long getToleranceMs() {
+        synchronized (mLock) {
+            return mToleranceMs;
+        }
+    }
+
+    public void setToleranceMs(long toleranceMs) {
+        if (toleranceMs < 0) {
+            throw new IllegalArgumentException("incorrect toleranceMs: " + toleranceMs);
+        }
+        synchronized (mLock) {
+            mToleranceMs = toleranceMs;
+        }
+    }
+
+    public long getMaxNudgeDriftMs() {
+        synchronized (mLock) {
+            return mMaxNudgeDriftMs;
+        }
+    }
+
+    public void setMaxNudgeDriftMs(long maxNudgeDriftMs) {
+        if (maxNudgeDriftMs < 0) {
+            throw new IllegalArgumentException("incorrect maxNudgeDriftMs: " + maxNudgeDriftMs);
+        }
+        synchronized (mLock) {
+            mMaxNudgeDriftMs = maxNudgeDriftMs;
+        }
+    }
+
+    public long getCorrectionWindowMs() {
+        synchronized (mLock) {
+            return mCorrectionWindowMs;
+        }
+    }
+
+    public void setCorrectionWindowMs(long correctionWindowMs) {
+        if (correctionWindowMs <= 0) {
+            throw new IllegalArgumentException("incorrect correctionWindowMs: " + correctionWindowMs);
+        }
+        synchronized (mLock) {
+            mCorrectionWindowMs = correctionWindowMs;
+        }
+    }
+
+    public float getMaxSpeedDelta() {
+        synchronized (mLock) {
+            return mMaxSpeedDelta;
+        }
+    }
+
+    public void setMaxSpeedDelta(float maxSpeedDelta) {
+        if (maxSpeedDelta <= 0 || maxSpeedDelta >= 1) {
+            throw new IllegalArgumentException("incorrect maxSpeedDelta: " + maxSpeedDelta);
+        }
+        synchronized (mLock) {
+            mMaxSpeedDelta = maxSpeedDelta;
+        }
+    }
+
+    public long getStartLeadMs() {
+        synchronized (mLock) {
+            return mStartLeadMs;
+        }
+    }
+
+    public void setStartLeadMs(long startLeadMs) {
+        if (startLeadMs < 0) {
+            throw new IllegalArgumentException("incorrect startLeadMs: " + startLeadMs);
+        }
+        synchronized (mLock) {
+            mStartLeadMs = startLeadMs;
+        }
+    }
+
+    public boolean isSpeedCorrectionEnabled() {
+        synchronized (mLock) {
+            return mSpeedCorrectionEnabled;
+        }
+    }
+
+    /**
+     * @param enabled false to correct any drift by seeks only
+     */
+    public void setSpeedCorrectionEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mSpeedCorrectionEnabled = enabled;
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning;
+        }
+    }
+
+    public boolean isStartRequested() {
+        synchronized (mLock) {
+            return mStartRequested;
+        }
+    }
+
+    @NotNull
+    public List<MediaPlayerController> getMembers() {
+        synchronized (mLock) {
+            final List<MediaPlayerController> result = new ArrayList<>();
+            for (Member m : mMembers) {
+                result.add(m.controller);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return false if already added
+     * @throws IllegalStateException if group is running
+     */
+    public boolean addMember(@NotNull MediaPlayerController controller) {
+        final Member member;
+        synchronized (mLock) {
+            checkReleased();
+            checkNotRunning();
+            if (indexOf(controller) >= 0) {
+                return false;
+            }
+            member = new Member(controller);
+            mMembers.add(member);
+        }
+        controller.getStateChangedObservable().registerObserver(member);
+        return true;
+    }
+
+    /**
+     * @throws IllegalStateException if group is running
+     */
+    public boolean removeMember(@NotNull MediaPlayerController controller) {
+        final Member member;
+        synchronized (mLock) {
+            checkReleased();
+            checkNotRunning();
+            final int index = indexOf(controller);
+            if (index < 0) {
+                return false;
+            }
+            member = mMembers.remove(index);
+        }
+        controller.getStateChangedObservable().unregisterObserver(member);
+        return true;
+    }
+
+    /**
+     * prepares members, which are not prepared yet, paused (content should be set);
+     * started members are paused
+     */
+    public void prepare() {
+        for (Member m : getMembersSnapshot()) {
+            final MediaPlayerController c = m.controller;
+            if (c.isReleased()) {
+                continue;
+            }
+            resetSpeed(m);
+            // target state becomes PAUSED, so prepared player is not started alone
+            c.pause();
+            if (!c.isInPlaybackState()) {
+                c.resume();
+            }
+        }
+    }
+
+    /**
+     * prepares members and starts them together, when all are prepared;
+     * if some member fails to prepare, group keeps waiting until {@link #start()} or {@link #stop()} is called again
+     */
+    public void start() {
+        synchronized (mLock) {
+            checkReleased();
+            if (mRunning || mStartRequested) {
+                return;
+            }
+            mStartRequested = true;
+        }
+        prepare();
+        executeOnSampler(this::startIfReady);
+    }
+
+    /**
+     * pauses all members, positions are kept aligned on next {@link #start()}
+     */
+    public void pause() {
+        final List<Member> members = stopSampling();
+        for (Member m : members) {
+            if (!m.controller.isReleased()) {
+                resetSpeed(m);
+                m.controller.pause();
+            }
+        }
+    }
+
+    public void stop() {
+        final List<Member> members = stopSampling();
+        for (Member m : members) {
+            if (!m.controller.isReleased()) {
+                resetSpeed(m);
+                m.controller.stop();
+            }
+        }
+    }
+
+    /**
+     * seeks all members to same position; group is restarted, if it was running
+     */
+    public void seekTo(int msec) {
+        final boolean wasRunning;
+        synchronized (mLock) {
+            checkReleased();
+            wasRunning = mRunning || mStartRequested;
+        }
+        pause();
+        for (Member m : getMembersSnapshot()) {
+            if (!m.controller.isReleased()) {
+                m.controller.seekToClosest(msec);
+            }
+        }
+        if (wasRunning) {
+            start();
+        }
+    }
+
+    /**
+     * stops correction and detaches from members, members are not released
+     */
+    public void release() {
+        final List<Member> members = stopSampling();
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mMembers.clear();
+        }
+        for (Member m : members) {
+            m.controller.getStateChangedObservable().unregisterObserver(m);
+            if (!m.controller.isReleased()) {
+                resetSpeed(m);
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public boolean isReleased() {
+        synchronized (mLock) {
+            return mReleased;
+        }
+    }
+
+    public long getLastSpreadMs() {
+        synchronized (mLock) {
+            return mLastSpreadMs;
+        }
+    }
+
+    public long getMaxSpreadMs() {
+        synchronized (mLock) {
+            return mMaxSpreadMs;
+        }
+    }
+
+    /**
+     * @return drift statistics of members in order of adding
+     */
+    @NotNull
+    public List<DriftStats> getStats() {
+        synchronized (mLock) {
+            final List<DriftStats> result = new ArrayList<>(mMembers.size());
+            for (Member m : mMembers) {
+                result.add(m.toStats());
+            }
+            return result;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mLastSpreadMs = 0;
+            mMaxSpreadMs = 0;
+            for (Member m : mMembers) {
+                m.resetStats();
+            }
+        }
+    }
+
+    private void startIfReady() {
+        final List<Member> members;
+        synchronized (mLock) {
+            if (!mStartRequested || mRunning || mReleased) {
+                return;
+            }
+            members = new ArrayList<>(mMembers);
+        }
+        if (members.isEmpty()) {
+            return;
+        }
+        for (Member m : members) {
+            if (m.controller.isReleased() || m.controller.isPreparing() || !m.controller.isInPlaybackState()) {
+                return;
+            }
+        }
+        final long startLeadMs;
+        final long sampleIntervalMs;
+        synchronized (mLock) {
+            if (!mStartRequested || mRunning || mReleased) {
+                return;
+            }
+            mStartRequested = false;
+            mRunning = true;
+            startLeadMs = mStartLeadMs;
+            sampleIntervalMs = mSampleIntervalMs;
+        }
+        alignPositions(members);
+        final long startAt = SystemClock.uptimeMillis() + startLeadMs;
+        for (Member m : members) {
+            final MediaPlayerController c = m.controller;
+            m.duration = c.getDuration();
+            c.getMediaHandler().postAtTime(() -> {
+                if (!c.isReleased()) {
+                    c.start();
+                }
+            }, startAt);
+        }
+        logger.i("starting " + members.size() + " members at " + startAt);
+        synchronized (mLock) {
+            if (mRunning) {
+                try {
+                    mSampleFuture = mExecutor.scheduleWithFixedDelay(this::sample, startLeadMs + SEEK_SETTLE_MS, sampleIntervalMs, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    logger.e("can't schedule sampling", e);
+                }
+            }
+        }
+        mSyncObservable.dispatchStarted(this);
+    }
+
+    /**
+     * seeks paused members, which positions differ from median, before start
+     */
+    private void alignPositions(@NotNull List<Member> members) {
+        final long[] positions = new long[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            positions[i] = Math.max(BaseMediaPlayerController.POSITION_START, members.get(i).controller.getCurrentPosition());
+        }
+        final long median = median(positions, positions.length);
+        final long toleranceMs = getToleranceMs();
+        for (int i = 0; i < members.size(); i++) {
+            if (Math.abs(positions[i] - median) > toleranceMs) {
+                members.get(i).controller.seekToClosest((int) median);
+            }
+        }
+    }
+
+    /**
+     * runs on sampler thread
+     */
+    private void sample() {
+        final Member[] members;
+        final long toleranceMs;
+        final long maxNudgeDriftMs;
+        final long correctionWindowMs;
+        final float maxSpeedDelta;
+        final boolean speedCorrection;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            members = mMembers.toArray(new Member[0]);
+            toleranceMs = mToleranceMs;
+            maxNudgeDriftMs = mMaxNudgeDriftMs;
+            correctionWindowMs = mCorrectionWindowMs;
+            maxSpeedDelta = mMaxSpeedDelta;
+            speedCorrection = mSpeedCorrectionEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        }
+
+        final long[] positions = new long[members.length];
+        final long[] sampleTimes = new long[members.length];
+        final boolean[] valid = new boolean[members.length];
+        int validCount = 0;
+        for (int i = 0; i < members.length; i++) {
+            final MediaPlayerController c = members[i].controller;
+            if (c.isReleased() || !c.isPlaying()) {
+                continue;
+            }
+            final long before = SystemClock.elapsedRealtime();
+            final int position = c.getCurrentPosition();
+            final long after = SystemClock.elapsedRealtime();
+            if (position != BaseMediaPlayerController.POSITION_NO) {
+                positions[i] = position;
+                // position was read somewhere within call
+                sampleTimes[i] = (before + after) / 2;
+                valid[i] = true;
+                validCount++;
+            }
+        }
+        if (validCount < 2) {
+            return;
+        }
+
+        // positions at common instant
+        final long now = SystemClock.elapsedRealtime();
+        final long[] normalized = new long[validCount];
+        for (int i = 0, j = 0; i < members.length; i++) {
+            if (valid[i]) {
+                positions[i] += Math.round((now - sampleTimes[i]) * members[i].speed);
+                normalized[j++] = positions[i];
+            }
+        }
+        final long reference = median(normalized, validCount);
+
+        final Action[] actions = new Action[members.length];
+        long minDrift = Long.MAX_VALUE;
+        long maxDrift = Long.MIN_VALUE;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            for (int i = 0; i < members.length; i++) {
+                if (!valid[i]) {
+                    continue;
+                }
+                final Member m = members[i];
+                final long drift = wrapDrift(positions[i] - reference, m.duration);
+                minDrift = Math.min(minDrift, drift);
+                maxDrift = Math.max(maxDrift, drift);
+                if (now < m.holdUntil) {
+                    // previous seek may be not completed yet
+                    continue;
+                }
+                m.addSample(drift);
+                final long absDrift = Math.abs(drift);
+                if (absDrift <= toleranceMs) {
+                    if (m.speed != 1f) {
+                        actions[i] = Action.speed(1f);
+                    }
+                } else if (absDrift <= maxNudgeDriftMs && speedCorrection && !m.speedUnsupported) {
+                    final float speed = Math.max(1f - maxSpeedDelta, Math.min(1f + maxSpeedDelta, 1f - (float) drift / correctionWindowMs));
+                    actions[i] = Action.speed(speed);
+                    m.nudgesCount++;
+                } else {
+                    actions[i] = Action.seek(reference);
+                    m.seeksCount++;
+                    m.holdUntil = now + SEEK_SETTLE_MS;
+                }
+            }
+            mLastSpreadMs = maxDrift - minDrift;
+            mMaxSpreadMs = Math.max(mMaxSpreadMs, mLastSpreadMs);
+        }
+
+        for (int i = 0; i < members.length; i++) {
+            final Action action = actions[i];
+            if (action != null) {
+                apply(members[i], action, now);
+            }
+        }
+        mSyncObservable.dispatchSampled(this, maxDrift - minDrift);
+    }
+
+    private void apply(@NotNull Member m, @NotNull Action action, long sampleTime) {
+        final MediaPlayerController c = m.controller;
+        if (c.isReleased()) {
+            return;
+        }
+        if (action.seekPosition != BaseMediaPlayerController.POSITION_NO) {
+            resetSpeed(m);
+            // reference keeps moving while we decide
+            long position = action.seekPosition + SystemClock.elapsedRealtime() - sampleTime;
+            if (m.duration > 0 && position >= m.duration) {
+                position = c.isLooping() ? position % m.duration : m.duration;
+            }
+            logger.d("seeking member " + c + " to " + position);
+            c.seekToClosest((int) position);
+        } else if (c.setPlaybackSpeed(action.speed)) {
+            m.speed = action.speed;
+        } else if (c.isPlaying()) {
+            // rejected by player, seeks will be used for this member
+            logger.w("playback speed is not supported by member " + c);
+            m.speedUnsupported = true;
+        }
+    }
+
+    /**
+     * speed can be set only while playing, otherwise it's reset when member is started again
+     */
+    private void resetSpeed(@NotNull Member m) {
+        if (m.speed != 1f && m.controller.setPlaybackSpeed(1f)) {
+            m.speed = 1f;
+        }
+    }
+
+    /**
+     * @return members to restore
+     */
+    @NotNull
+    private List<Member> stopSampling() {
+        synchronized (mLock) {
+            mStartRequested = false;
+            mRunning = false;
+            if (mSampleFuture != null) {
+                mSampleFuture.cancel(false);
+                mSampleFuture = null;
+            }
+            return new ArrayList<>(mMembers);
+        }
+    }
+
+    private void executeOnSampler(@NotNull Runnable r) {
+        try {
+            mExecutor.execute(r);
+        } catch (RejectedExecutionException e) {
+            logger.e("can't execute, group was released", e);
+        }
+    }
+
+    @NotNull
+    private List<Member> getMembersSnapshot() {
+        synchronized (mLock) {
+            return new ArrayList<>(mMembers);
+        }
+    }
+
+    private int indexOf(@NotNull MediaPlayerController controller) {
+        for (int i = 0; i < mMembers.size(); i++) {
+            if (mMembers.get(i).controller == controller) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkReleased() {
+        if (mReleased) {
+            throw new IllegalStateException(SyncGroup.class.getSimpleName() + " was released");
+        }
+    }
+
+    private void checkNotRunning() {
+        if (mRunning || mStartRequested) {
+            throw new IllegalStateException(SyncGroup.class.getSimpleName() + " is running");
+        }
+    }
+
+    private static long median(@NotNull long[] values, int count) {
+        final long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    /**
+     * looping members may be on different sides of loop point
+     */
+    private static long wrapDrift(long drift, long duration) {
+        if (duration > 0) {
+            if (drift > duration / 2) {
+                return drift - duration;
+            } else if (drift < -duration / 2) {
+                return drift + duration;
+            }
+        }
+        return drift;
+    }
+
+    private static class Action {
+
+        final int seekPosition;
+
+        final float speed;
+
+        private Action(int seekPosition, float speed) {
+            this.seekPosition = seekPosition;
+            this.speed = speed;
+        }
+
+        static Action seek(long position) {
+            return new Action((int) position, 1f);
+        }
+
+        static Action speed(float speed) {
+            return new Action(BaseMediaPlayerController.POSITION_NO, speed);
+        }
+    }
+
+    /**
+     * member state, guarded by group lock, except speed fields used on sampler thread
+     */
+    private class Member implements BaseMediaPlayerController.OnStateChangedListener {
+
+        @NotNull
+        final MediaPlayerController controller;
+
+        volatile long duration;
+
+        volatile float speed = 1f;
+
+        volatile boolean speedUnsupported;
+
+        long holdUntil;
+
+        int samplesCount;
+
+        long lastDriftMs;
+
+        long maxAbsDriftMs;
+
+        double sumAbsDrift;
+
+        double sumSquaredDrift;
+
+        int nudgesCount;
+
+        int seeksCount;
+
+        Member(@NotNull MediaPlayerController controller) {
+            this.controller = controller;
+        }
+
+        void addSample(long drift) {
+            samplesCount++;
+            lastDriftMs = drift;
+            maxAbsDriftMs = Math.max(maxAbsDriftMs, Math.abs(drift));
+            sumAbsDrift += Math.abs(drift);
+            sumSquaredDrift += (double) drift * drift;
+        }
+
+        void resetStats() {
+            samplesCount = 0;
+            lastDriftMs = 0;
+            maxAbsDriftMs = 0;
+            sumAbsDrift = 0;
+            sumSquaredDrift = 0;
+            nudgesCount = 0;
+            seeksCount = 0;
+        }
+
+        @NotNull
+        DriftStats toStats() {
+            return new DriftStats(controller, samplesCount, lastDriftMs, maxAbsDriftMs,
+                    samplesCount > 0 ? sumAbsDrift / samplesCount : 0,
+                    samplesCount > 0 ? Math.sqrt(sumSquaredDrift / samplesCount) : 0,
+                    nudgesCount, seeksCount, speed);
+        }
+
+        @Override
+        public void onBeforeOpenDataSource() {
+
+        }
+
+        @Override
+        public void onCurrentStateChanged(@NotNull BaseMediaPlayerController.State currentState, @NotNull BaseMediaPlayerController.State previousState) {
+            if (currentState == BaseMediaPlayerController.State.PREPARED) {
+                // dispatched under lock of member, other members are checked on sampler thread
+                if (isStartRequested()) {
+                    executeOnSampler(SyncGroup.this::startIfReady);
+                }
+            } else if (currentState == BaseMediaPlayerController.State.PLAYING) {
+                if (speed != 1f) {
+                    // nudged speed was kept by paused player
+                    executeOnSampler(() -> resetSpeed(this));
+                }
+            } else if (currentState == BaseMediaPlayerController.State.IDLE || currentState == BaseMediaPlayerController.State.RELEASED) {
+                // new player starts with normal speed
+                speed = 1f;
+            }
+        }
+
+        @Override
+        public void onTargetStateChanged(@NotNull BaseMediaPlayerController.State targetState) {
+
+        }
+    }
+
+    /**
+     * drift of member relative to median of group, positive if member is ahead
+     */
+    public static final class DriftStats {
+
+        @NotNull
+        public final MediaPlayerController controller;
+
+        public final int samplesCount;
+
+        public final long lastDriftMs;
+
+        public final long maxAbsDriftMs;
+
+        public final double meanAbsDriftMs;
+
+        public final double rmsDriftMs;
+
+        public final int nudgesCount;
+
+        public final int seeksCount;
+
+        public final float currentSpeed;
+
+        DriftStats(@NotNull MediaPlayerController controller, int samplesCount, long lastDriftMs, long maxAbsDriftMs,
+                   double meanAbsDriftMs, double rmsDriftMs, int nudgesCount, int seeksCount, float currentSpeed) {
+            this.controller = controller;
+            this.samplesCount = samplesCount;
+            this.lastDriftMs = lastDriftMs;
+            this.maxAbsDriftMs = maxAbsDriftMs;
+            this.meanAbsDriftMs = meanAbsDriftMs;
+            this.rmsDriftMs = rmsDriftMs;
+            this.nudgesCount = nudgesCount;
+            this.seeksCount = seeksCount;
+            this.currentSpeed = currentSpeed;
+        }
+
+        @Override
+        public String toString() {
+            return "DriftStats{" +
+                    "samplesCount=" + samplesCount +
+                    ", lastDriftMs=" + lastDriftMs +
+                    ", maxAbsDriftMs=" + maxAbsDriftMs +
+                    ", meanAbsDriftMs=" + meanAbsDriftMs +
+                    ", rmsDriftMs=" + rmsDriftMs +
+                    ", nudgesCount=" + nudgesCount +
+                    ", seeksCount=" + seeksCount +
+                    ", currentSpeed=" + currentSpeed +
+                    '}';
+        }
+    }
+
+    public interface OnSyncListener {
+
+        /**
+         * called on sampler thread when start of all members was scheduled
+         */
+        void onGroupStarted(@NotNull SyncGroup group);
+
+        /**
+         * called on sampler thread after each sample, see {@link #getStats()}
+         *
+         * @param spreadMs difference between most ahead and most behind members
+         */
+        void onDriftSampled(@NotNull SyncGroup group, long spreadMs);
+    }
+
+    private static class OnSyncObservable extends Observable<OnSyncListener> {
+
+        private void dispatchStarted(@NotNull SyncGroup group) {
+            synchronized (observers) {
+                for (OnSyncListener l : copyOfObservers()) {
+                    l.onGroupStarted(group);
+                }
+            }
+        }
+
+        private void dispatchSampled(@NotNull SyncGroup group, long spreadMs) {
+            synchronized (observers) {
+                for (OnSyncListener l : copyOfObservers()) {
+                    l.onDriftSampled(group, spreadMs);
+                }
+            }
+        }
+    }
+}
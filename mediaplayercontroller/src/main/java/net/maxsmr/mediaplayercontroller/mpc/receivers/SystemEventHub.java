@@ -0,0 +1,347 @@
+package net.maxsmr.mediaplayercontroller.mpc.receivers;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyManager;
+
+import androidx.core.content.ContextCompat;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Process-wide owner of system receivers (audio focus, headset plug, noisy audio, call state):
+ * each receiver is registered once while there is at least one subscriber and events are fanned out to subscribers;
+ * subscribers are stored in copy-on-write arrays, so dispatching doesn't lock
+ */
+public final class SystemEventHub {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(SystemEventHub.class);
+
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    private static volatile SystemEventHub sInstance;
+
+    private final Object mLock = new Object();
+
+    /**
+     * receivers are (un)registered on main thread in order of subscriptions
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final AudioFocusChangeReceiver mAudioFocusChangeReceiver = new AudioFocusChangeReceiver();
+
+    private final HeadsetPlugBroadcastReceiver mHeadsetPlugBroadcastReceiver = new HeadsetPlugBroadcastReceiver();
+
+    private final NoisyAudioBroadcastReceiver mNoisyBroadcastReceiver = new NoisyAudioBroadcastReceiver();
+
+    /**
+     * created on main thread when first needed
+     */
+    @Nullable
+    private PhoneStateListener mPhoneStateListener;
+
+    @NotNull
+    private volatile Subscriber[] mSubscribers = EMPTY;
+
+    /**
+     * subscribers holding audio focus, last one is focused
+     */
+    @NotNull
+    private volatile Subscriber[] mFocusHolders = EMPTY;
+
+    /**
+     * true if hub owns system audio focus; it's lost permanently while holders may stay registered,
+     * then next request goes to system again
+     */
+    private boolean mSystemFocusOwned = false;
+
+    @NotNull
+    private volatile InterruptPolicy mInterruptPolicy = InterruptPolicy.ALL;
+
+    @Nullable
+    private Context mContext;
+
+    private SystemEventHub() {
+        mAudioFocusChangeReceiver.getAudioFocusChangeObservable().registerObserver(new AudioFocusChangeReceiver.OnAudioFocusChangeListener() {
+            @Override
+            public void onAudioFocusGain() {
+                synchronized (mLock) {
+                    mSystemFocusOwned = true;
+                }
+                for (Subscriber s : mFocusHolders) {
+                    s.onAudioFocusGain();
+                }
+            }
+
+            @Override
+            public void onAudioFocusLoss() {
+                synchronized (mLock) {
+                    mSystemFocusOwned = false;
+                }
+                for (Subscriber s : getInterruptTargets(mFocusHolders)) {
+                    s.onAudioFocusLoss();
+                }
+            }
+
+            @Override
+            public void onAudioFocusLossTransient() {
+                for (Subscriber s : getInterruptTargets(mFocusHolders)) {
+                    s.onAudioFocusLossTransient();
+                }
+            }
+
+            @Override
+            public void onAudioFocusLossTransientCanDuck() {
+                for (Subscriber s : getInterruptTargets(mFocusHolders)) {
+                    s.onAudioFocusLossTransientCanDuck();
+                }
+            }
+        });
+        mNoisyBroadcastReceiver.getNoisyAudioObservable().registerObserver(() -> {
+            for (Subscriber s : getInterruptTargets(mSubscribers)) {
+                s.onNoisyAudio();
+            }
+        });
+        mHeadsetPlugBroadcastReceiver.getHeadsetStateChangedObservable().registerObserver(new HeadsetPlugBroadcastReceiver.OnHeadsetStateChangedListener() {
+            @Override
+            public void onHeadphonesPlugged(boolean hasMicrophone) {
+                for (Subscriber s : mSubscribers) {
+                    s.onHeadphonesPlugged(hasMicrophone);
+                }
+            }
+
+            @Override
+            public void onHeadphonesUnplugged() {
+                for (Subscriber s : getInterruptTargets(mSubscribers)) {
+                    s.onHeadphonesUnplugged();
+                }
+            }
+        });
+    }
+
+    @NotNull
+    public static SystemEventHub getInstance() {
+        if (sInstance == null) {
+            synchronized (SystemEventHub.class) {
+                if (sInstance == null) {
+                    sInstance = new SystemEventHub();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    @NotNull
+    public InterruptPolicy getInterruptPolicy() {
+        return mInterruptPolicy;
+    }
+
+    public void setInterruptPolicy(@NotNull InterruptPolicy interruptPolicy) {
+        mInterruptPolicy = interruptPolicy;
+    }
+
+    public int getSubscribersCount() {
+        return mSubscribers.length;
+    }
+
+    /**
+     * @return subscriber that requested audio focus last or null, if nobody holds it
+     */
+    @Nullable
+    public Subscriber getFocusedSubscriber() {
+        final Subscriber[] holders = mFocusHolders;
+        return holders.length > 0 ? holders[holders.length - 1] : null;
+    }
+
+    /**
+     * receivers are registered with first subscriber
+     *
+     * @return false if already subscribed
+     */
+    public boolean subscribe(@NotNull Context context, @NotNull Subscriber subscriber) {
+        synchronized (mLock) {
+            if (indexOf(mSubscribers, subscriber) >= 0) {
+                return false;
+            }
+            mSubscribers = add(mSubscribers, subscriber);
+            if (mSubscribers.length == 1) {
+                final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+                mContext = appContext;
+                mMainHandler.post(() -> registerReceivers(appContext));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * receivers are unregistered with last subscriber, focus held by subscriber is abandoned
+     *
+     * @return false if wasn't subscribed
+     */
+    public boolean unsubscribe(@NotNull Subscriber subscriber) {
+        synchronized (mLock) {
+            if (indexOf(mSubscribers, subscriber) < 0) {
+                return false;
+            }
+            if (mContext != null) {
+                abandonFocus(mContext, subscriber);
+            }
+            mSubscribers = remove(mSubscribers, subscriber);
+            if (mSubscribers.length == 0 && mContext != null) {
+                final Context appContext = mContext;
+                mContext = null;
+                mMainHandler.post(() -> unregisterReceivers(appContext));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * audio focus is requested from system once for all holders (and again after it was lost permanently);
+     * subscriber becomes focused one
+     */
+    public boolean requestFocus(@NotNull Context context, @NotNull Subscriber subscriber) {
+        synchronized (mLock) {
+            if (!mSystemFocusOwned) {
+                if (!mAudioFocusChangeReceiver.requestFocus(context)) {
+                    return false;
+                }
+                mSystemFocusOwned = true;
+            }
+            mFocusHolders = add(remove(mFocusHolders, subscriber), subscriber);
+            return true;
+        }
+    }
+
+    /**
+     * audio focus is abandoned when last holder abandons it
+     */
+    public boolean abandonFocus(@NotNull Context context, @NotNull Subscriber subscriber) {
+        synchronized (mLock) {
+            final Subscriber[] holders = mFocusHolders;
+            if (indexOf(holders, subscriber) < 0) {
+                return true;
+            }
+            mFocusHolders = remove(holders, subscriber);
+            if (mFocusHolders.length > 0) {
+                return true;
+            }
+            mSystemFocusOwned = false;
+            return mAudioFocusChangeReceiver.abandonFocus(context);
+        }
+    }
+
+    @NotNull
+    private Subscriber[] getInterruptTargets(@NotNull Subscriber[] all) {
+        if (mInterruptPolicy == InterruptPolicy.FOCUSED_ONLY) {
+            final Subscriber focused = getFocusedSubscriber();
+            if (focused != null) {
+                return new Subscriber[]{focused};
+            }
+        }
+        return all;
+    }
+
+    private void registerReceivers(@NotNull Context context) {
+        logger.d("registering receivers...");
+        mNoisyBroadcastReceiver.register(context);
+        mHeadsetPlugBroadcastReceiver.register(context);
+        if (ContextCompat.checkSelfPermission(context, "android.permission.READ_PHONE_STATE") == PackageManager.PERMISSION_GRANTED) {
+            final TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Activity.TELEPHONY_SERVICE);
+            if (telephonyManager != null) {
+                telephonyManager.listen(getPhoneStateListener(), PhoneStateListener.LISTEN_CALL_STATE);
+            }
+        }
+    }
+
+    private void unregisterReceivers(@NotNull Context context) {
+        logger.d("unregistering receivers...");
+        mNoisyBroadcastReceiver.unregister(context);
+        mHeadsetPlugBroadcastReceiver.unregister(context);
+        if (mPhoneStateListener != null) {
+            final TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Activity.TELEPHONY_SERVICE);
+            if (telephonyManager != null) {
+                telephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            }
+        }
+    }
+
+    @NotNull
+    private PhoneStateListener getPhoneStateListener() {
+        if (mPhoneStateListener == null) {
+            mPhoneStateListener = new PhoneStateListener() {
+
+                @Override
+                public void onCallStateChanged(int state, String incomingNumber) {
+                    final Subscriber[] targets = state == TelephonyManager.CALL_STATE_RINGING ? getInterruptTargets(mSubscribers) : mSubscribers;
+                    for (Subscriber s : targets) {
+                        s.onCallStateChanged(state, incomingNumber);
+                    }
+                }
+            };
+        }
+        return mPhoneStateListener;
+    }
+
+    private static int indexOf(@NotNull Subscriber[] array, @NotNull Subscriber subscriber) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == subscriber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @NotNull
+    private static Subscriber[] add(@NotNull Subscriber[] array, @NotNull Subscriber subscriber) {
+        final Subscriber[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = subscriber;
+        return result;
+    }
+
+    @NotNull
+    private static Subscriber[] remove(@NotNull Subscriber[] array, @NotNull Subscriber subscriber) {
+        final int index = indexOf(array, subscriber);
+        if (index < 0) {
+            return array;
+        }
+        if (array.length == 1) {
+            return EMPTY;
+        }
+        final Subscriber[] result = new Subscriber[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    public enum InterruptPolicy {
+
+        /**
+         * interrupting events (focus loss, unplugged headset, noisy audio, ringing) are delivered to all subscribers
+         */
+        ALL,
+
+        /**
+         * interrupting events are delivered only to focused subscriber (to all, if nobody holds focus);
+         * events ending interruption are always delivered to all
+         */
+        FOCUSED_ONLY
+    }
+
+    public interface Subscriber extends AudioFocusChangeReceiver.OnAudioFocusChangeListener,
+            HeadsetPlugBroadcastReceiver.OnHeadsetStateChangedListener,
+            NoisyAudioBroadcastReceiver.OnNoisyAudioListener {
+
+        void onCallStateChanged(int state, String incomingNumber);
+    }
+}
@@ -4,6 +4,7 @@ import android.content.ContentResolver;
 import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import androidx.annotation.CallSuper;
@@ -16,6 +17,9 @@ import net.maxsmr.commonutils.data.number.MathUtils;
 import net.maxsmr.commonutils.logger.BaseLogger;
 import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
 import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
+import net.maxsmr.mediaplayercontroller.mpc.ContentTypeResolver;
+import net.maxsmr.mediaplayercontroller.mpc.TimerWheel;
+import net.maxsmr.mediaplayercontroller.mpc.VolumeRamp;
 import net.maxsmr.mediaplayercontroller.playlist.item.BasePlaylistItem;
 import net.maxsmr.mediaplayercontroller.playlist.item.DescriptorPlaylistItem;
 import net.maxsmr.mediaplayercontroller.playlist.item.UriPlaylistItem;
@@ -24,7 +28,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,7 +35,9 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ScheduledFuture;
 
 import static net.maxsmr.mediaplayercontroller.playlist.PlaylistManager.TracksSwitchMode.RANDOM;
@@ -43,6 +48,51 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 
     public final static int NO_POSITION = -1;
 
+    /**
+     * tolerance for position checks of crossfade scheduling
+     */
+    private final static long POSITION_MARGIN_MS = 500;
+
+    /**
+     * initial estimate of time incoming controller takes to prepare next track
+     */
+    private final static long DEFAULT_CROSSFADE_PREPARE_ESTIMATE_MS = 300;
+
+    /**
+     * controllers used by managers (active and second ones) with number of managers for each
+     */
+    private final static Map<BaseMediaPlayerController<?>, Integer> sBoundControllers = new WeakHashMap<>();
+
+    /**
+     * @return true if controller is used by some not released manager: it must not be released by its owner,
+     * because manager can't be moved to another controller
+     */
+    public static boolean isBound(@NotNull BaseMediaPlayerController<?> controller) {
+        synchronized (sBoundControllers) {
+            return sBoundControllers.containsKey(controller);
+        }
+    }
+
+    private static void bind(@NotNull BaseMediaPlayerController<?> controller) {
+        synchronized (sBoundControllers) {
+            final Integer count = sBoundControllers.get(controller);
+            sBoundControllers.put(controller, count != null ? count + 1 : 1);
+        }
+    }
+
+    private static void unbind(@NotNull BaseMediaPlayerController<?> controller) {
+        synchronized (sBoundControllers) {
+            final Integer count = sBoundControllers.get(controller);
+            if (count != null) {
+                if (count > 1) {
+                    sBoundControllers.put(controller, count - 1);
+                } else {
+                    sBoundControllers.remove(controller);
+                }
+            }
+        }
+    }
+
     /**
      * empty -> accept all
      */
@@ -123,7 +173,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
                 if (isFile) {
                     return !TextUtils.isEmpty(uri.getPath()) &&
                             FileHelper.isFileCorrect(new File(uri.getPath())) &&
-                            isFileMimeTypeValid(HttpURLConnection.guessContentTypeFromName(uriString));
+                            (mAcceptableFileMimeTypePrefixes.isEmpty() || isFileMimeTypeValid(ContentTypeResolver.getInstance().resolve(new File(uri.getPath()))));
                 } else
                     return uri.getScheme() != null && (uri.getScheme().equalsIgnoreCase(ContentResolver.SCHEME_CONTENT)
                             || uri.getScheme().equalsIgnoreCase(ContentResolver.SCHEME_ANDROID_RESOURCE)
@@ -200,7 +250,39 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 
     private C mPlayerController;
 
-    private ScheduledFuture<?> mTrackResetFuture;
+    /**
+     * play timeout of infinite-mode track, tracked by shared {@link TimerWheel}
+     */
+    @Nullable
+    private TimerWheel.Timeout mTrackResetTimeout;
+
+    /**
+     * second controller for crossfades; after each crossfade it's swapped with active one
+     */
+    @Nullable
+    private C mCrossfadeController;
+
+    private long mCrossfadeDurationMs = 0;
+
+    private ScheduledFuture<?> mCrossfadeFuture;
+
+    /**
+     * moving average of prepare time of incoming tracks: crossfade is started earlier by it,
+     * so overlap isn't shortened by preparing; updated by controller callbacks without lock
+     */
+    private volatile long mCrossfadePrepareEstimateMs = DEFAULT_CROSSFADE_PREPARE_ESTIMATE_MS;
+
+    /**
+     * controller, which is fading out after handover
+     */
+    @Nullable
+    private C mFadingOutController;
+
+    /**
+     * track, which is prepared on second controller ahead of time by {@link #stageTrack(BasePlaylistItem)}
+     */
+    @Nullable
+    private T mStagedTrack;
 
 //    @NotNull
 //    private PlayMode mPlayMode = DEFAULT_PLAY_MODE;
@@ -209,6 +291,11 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 
     private int mCurrentTrackIndex = NO_POSITION;
 
+    /**
+     * next index for {@link TracksSwitchMode#RANDOM}, chosen in advance, so it's known to prefetchers
+     */
+    private int mPlannedRandomIndex = NO_POSITION;
+
     @NotNull
     private TracksSwitchMode mTracksSwitchMode = TracksSwitchMode.CONSEQUENTIALLY;
 
@@ -232,12 +319,27 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 
     private final OnTracksClearedObservable mTracksClearedObservable = new OnTracksClearedObservable();
 
+    private final OnPlayerControllerChangedObservable<C> mPlayerControllerChangedObservable = new OnPlayerControllerChangedObservable<>();
+
+    private final Runnable mCrossfadeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mTracks) {
+                if (!isReleased() && mPlayerController != null) {
+                    mPlayerController.postOnMediaHandler(PlaylistManager.this::startCrossfade);
+                }
+            }
+        }
+    };
+
     private final Runnable mTrackResetRunnable = new Runnable() {
         @Override
         public void run() {
             logger.d("mTrackResetRunnable :: run()");
             synchronized (mTracks) {
-                checkReleased();
+                if (mReleased) {
+                    return;
+                }
                 if (mPlayerController != null && !isTracksEmpty()) {
                     mPlayerController.postOnMediaHandler(new Runnable() {
                         @Override
@@ -269,6 +371,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
         checkReleased();
 
         resetTrack();
+        bind(mPlayerController);
         mPlayerController.getStateChangedObservable().registerObserver(mMediaControllerCallbacks);
         mPlayerController.getCompletionObservable().registerObserver(mMediaControllerCallbacks);
         mPlayerController.getErrorObservable().registerObserver(mMediaControllerCallbacks);
@@ -279,10 +382,12 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 
         checkReleased();
 
+        setCrossfade(null, 0);
         clearTracks();
         mPlayerController.getStateChangedObservable().unregisterObserver(mMediaControllerCallbacks);
         mPlayerController.getCompletionObservable().unregisterObserver(mMediaControllerCallbacks);
         mPlayerController.getErrorObservable().unregisterObserver(mMediaControllerCallbacks);
+        unbind(mPlayerController);
 
         mPlayerController = null;
 
@@ -314,6 +419,114 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
     }
 
     @NotNull
+    public Observable<OnPlayerControllerChangedListener<C>> getPlayerControllerChangedObservable() {
+        return mPlayerControllerChangedObservable;
+    }
+
+    public boolean isCrossfadeEnabled() {
+        synchronized (mTracks) {
+            return mCrossfadeController != null && mCrossfadeDurationMs > 0;
+        }
+    }
+
+    public long getCrossfadeDurationMs() {
+        synchronized (mTracks) {
+            return mCrossfadeDurationMs;
+        }
+    }
+
+    /**
+     * enables crossfade between consecutive {@link BaseMediaPlayerController.PlayMode#AUDIO} tracks:
+     * next track is prepared on second controller ahead of time (by estimated prepare time)
+     * and started specified time before end of current one, volumes are ramped against each other and then second controller becomes active
+     * (see {@link #getPlayerControllerChangedObservable()}), previous active one becomes second;
+     * owner is responsible for release of both controllers
+     *
+     * @param secondaryController null to disable
+     */
+    public void setCrossfade(@Nullable C secondaryController, long durationMs) {
+        synchronized (mTracks) {
+            checkReleased();
+            if (secondaryController != null) {
+                if (secondaryController == mPlayerController) {
+                    throw new IllegalArgumentException("secondaryController is the same as active one");
+                }
+                if (durationMs <= 0) {
+                    throw new IllegalArgumentException("incorrect durationMs: " + durationMs);
+                }
+            }
+            cancelStagedTrack();
+            cancelCrossfadeFuture();
+            if (mCrossfadeController != null) {
+                unbind(mCrossfadeController);
+            }
+            if (secondaryController != null) {
+                bind(secondaryController);
+            }
+            mCrossfadeController = secondaryController;
+            mCrossfadeDurationMs = secondaryController != null ? durationMs : 0;
+            if (secondaryController != null && mPlayerController.isPlaying()) {
+                scheduleCrossfade();
+            }
+        }
+    }
+
+    @Nullable
+    public T getStagedTrack() {
+        synchronized (mTracks) {
+            return mStagedTrack;
+        }
+    }
+
+    /**
+     * prepares track on second controller (see {@link #setCrossfade(BaseMediaPlayerController, long)}) without starting it;
+     * when same track is prepared or played next, second controller becomes active instead of opening track again,
+     * so switch is gapless; crossfades are not started while track is staged
+     *
+     * @return false if there is no second controller or it's busy with crossfade at the moment
+     */
+    public boolean stageTrack(@NotNull T track) {
+        logger.d("stageTrack(), track=" + track);
+        synchronized (mTracks) {
+            checkReleased();
+            if (mCrossfadeController == null || mCrossfadeController.isReleased() || mFadingOutController != null) {
+                logger.w("second controller is not available, track is not staged");
+                return false;
+            }
+            if (!isTrackValid(track)) {
+                logger.e("incorrect track: " + track);
+                return false;
+            }
+            if (track.equals(mStagedTrack)) {
+                return true;
+            }
+            cancelCrossfadeFuture();
+            mStagedTrack = track;
+            setTrackInternal(mCrossfadeController, track);
+            mCrossfadeController.resume();
+            return true;
+        }
+    }
+
+    /**
+     * drops track, prepared by {@link #stageTrack(BasePlaylistItem)}, if it wasn't handed over yet
+     */
+    public void cancelStagedTrack() {
+        synchronized (mTracks) {
+            if (mStagedTrack == null) {
+                return;
+            }
+            logger.d("cancelling staged track " + mStagedTrack);
+            mStagedTrack = null;
+            if (mCrossfadeController != null) {
+                clearController(mCrossfadeController);
+            }
+            if (!isReleased() && mPlayerController.isPlaying()) {
+                scheduleCrossfade();
+            }
+        }
+    }
+
     public TracksSwitchMode getTracksSwitchMode() {
         synchronized (mTracks) {
             checkReleased();
@@ -345,9 +558,9 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
                     boolean schedule = track != null &&
                             track.playMode != BaseMediaPlayerController.PlayMode.NONE && track.playMode.isInfiniteMode && (!mLoopPlaylist || getTracksCount() > 1);
                     if (schedule) {
-                        if (mTrackResetFuture == null || mTrackResetFuture.isCancelled() || mTrackResetFuture.isDone()) {
+                        if (mTrackResetTimeout == null || !mTrackResetTimeout.isPending()) {
                             logger.d("scheduling reset callback (play timeout) after " + track.duration + " ms");
-                            mTrackResetFuture = mPlayerController.scheduleOnExecutor(mTrackResetRunnable, track.duration);
+                            mTrackResetTimeout = TimerWheel.getInstance().schedule(mTrackResetRunnable, track.duration);
                         }
                     }
                 }
@@ -605,7 +818,8 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
                     if (hasCurrentTrack()) {
                         if (getTracksCount() > 1) {
                             int prevIndex = mCurrentTrackIndex;
-                            int newIndex = MathUtils.randInt(0, getTracksCount() - 1);
+                            int newIndex = getPlannedRandomIndex();
+                            mPlannedRandomIndex = NO_POSITION;
                             if (newIndex != prevIndex) {
                                 if (getTargetState() == BaseMediaPlayerController.State.PLAYING) {
                                     playTrack(newIndex);
@@ -628,6 +842,55 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
         }
     }
 
+    private int getPlannedRandomIndex() {
+        if (mPlannedRandomIndex == NO_POSITION || mPlannedRandomIndex >= getTracksCount()) {
+            mPlannedRandomIndex = MathUtils.randInt(0, getTracksCount() - 1);
+        }
+        return mPlannedRandomIndex;
+    }
+
+    /**
+     * @param count max count of tracks to return
+     * @return tracks, which will follow current in {@link #nextTrackByMode()} order, without current;
+     * for {@link TracksSwitchMode#RANDOM} only next one is known
+     */
+    @NotNull
+    public List<T> getUpcomingTracks(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("incorrect count: " + count);
+        }
+        synchronized (mTracks) {
+            final List<T> result = new ArrayList<>();
+            if (count == 0 || isTracksEmpty()) {
+                return result;
+            }
+            if (mTracksSwitchMode == RANDOM && hasCurrentTrack()) {
+                if (getTracksCount() > 1) {
+                    final int index = getPlannedRandomIndex();
+                    if (index != mCurrentTrackIndex) {
+                        result.add(mTracks.get(index));
+                        return result;
+                    }
+                }
+            }
+            int index = mCurrentTrackIndex;
+            for (int i = 0; i < getTracksCount() && result.size() < count; i++) {
+                index++;
+                if (index >= getTracksCount()) {
+                    if (!mLoopPlaylist) {
+                        break;
+                    }
+                    index = 0;
+                }
+                if (index == mCurrentTrackIndex) {
+                    break;
+                }
+                result.add(mTracks.get(index));
+            }
+            return result;
+        }
+    }
+
     private void setTrackInternal(@NotNull T track) {
 
         checkReleased();
@@ -636,46 +899,62 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 
 //        mPlayerController.clearContent();
 
+        setTrackInternal(mPlayerController, track);
+    }
+
+    private void setTrackInternal(@NotNull C controller, @NotNull T track) {
         if (track instanceof UriPlaylistItem) {
-            mPlayerController.setContentUri(track.playMode, Uri.parse(fixUrl(((UriPlaylistItem) track).uri)));
+            controller.setContentUri(track.playMode, Uri.parse(fixUrl(((UriPlaylistItem) track).uri)));
         } else if (track instanceof DescriptorPlaylistItem) {
-            mPlayerController.setContentFd(track.playMode, ((DescriptorPlaylistItem) track).descriptor);
+            controller.setContentFd(track.playMode, ((DescriptorPlaylistItem) track).descriptor);
         } else {
             throw new RuntimeException("unknown track class: " + track.getClass());
         }
 
-        mPlayerController.setLooping(track.isLooping);
+        controller.setLooping(track.isLooping);
     }
 
     private void prepareTrackInternal(@NotNull T track) {
         logger.d("prepareTrackInternal(), track=" + track);
         T previous = getCurrentTrack();
-        setTrackInternal(track);
+        if (handOverStagedTrack(track)) {
+            cancelResetFuture();
+        } else {
+            setTrackInternal(track);
+        }
         mPlayerController.resume();
         boolean schedule = false;
         if (track.duration != BasePlaylistItem.DURATION_NOT_SPECIFIED) {
             schedule = !mLoopPlaylist || getTracksCount() > 1;
             if (track.playMode != BaseMediaPlayerController.PlayMode.NONE && !track.playMode.isInfiniteMode) {
-                long actualDuration = 0;
-                if (track instanceof UriPlaylistItem) {
-                    Uri uri = !TextUtils.isEmpty(((UriPlaylistItem) track).uri) ? Uri.parse(fixUrl(((UriPlaylistItem) track).uri)) : null;
-                    if (uri != null && CompareUtils.stringsEqual(uri.getScheme(), ContentResolver.SCHEME_FILE, true) && !TextUtils.isEmpty(uri.getPath())) {
-                        actualDuration = MetadataRetriever.extractMediaDuration(new File(uri.getPath()));
-                    }
-                } else if (track instanceof DescriptorPlaylistItem) {
-                    AssetFileDescriptor fd = ((DescriptorPlaylistItem) track).descriptor;
-                    actualDuration = MetadataRetriever.extractMediaDuration(fd.getFileDescriptor());
-                }
+                long actualDuration = extractTrackDuration(track);
                 schedule = actualDuration <= 0 || track.duration <= actualDuration - 1000;
             }
         }
         if (schedule) {
             logger.d("scheduling reset callback (play timeout) after " + track.duration + " ms");
-            mTrackResetFuture = mPlayerController.scheduleOnExecutor(mTrackResetRunnable, track.duration);
+            mTrackResetTimeout = TimerWheel.getInstance().schedule(mTrackResetRunnable, track.duration);
         }
         mActiveTrackChangedObservable.dispatchPrepare(track, previous);
     }
 
+    /**
+     * @return media duration from metadata (local tracks only) or 0
+     */
+    private long extractTrackDuration(@NotNull T track) {
+        long actualDuration = 0;
+        if (track instanceof UriPlaylistItem) {
+            Uri uri = !TextUtils.isEmpty(((UriPlaylistItem) track).uri) ? Uri.parse(fixUrl(((UriPlaylistItem) track).uri)) : null;
+            if (uri != null && CompareUtils.stringsEqual(uri.getScheme(), ContentResolver.SCHEME_FILE, true) && !TextUtils.isEmpty(uri.getPath())) {
+                actualDuration = MetadataRetriever.extractMediaDuration(new File(uri.getPath()));
+            }
+        } else if (track instanceof DescriptorPlaylistItem) {
+            AssetFileDescriptor fd = ((DescriptorPlaylistItem) track).descriptor;
+            actualDuration = MetadataRetriever.extractMediaDuration(fd.getFileDescriptor());
+        }
+        return actualDuration;
+    }
+
     private void playTrackInternal(@NotNull T track) {
         logger.d("playTrackInternal(), track=" + track);
         T previous = getCurrentTrack();
@@ -684,13 +963,209 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
         mActiveTrackChangedObservable.dispatchPlay(getCurrentTrack(), previous);
     }
 
+    /**
+     * makes second controller with staged track active, previous active one is stopped
+     *
+     * @return false if track is not staged or second controller failed to prepare it
+     */
+    private boolean handOverStagedTrack(@NotNull T track) {
+        if (mStagedTrack == null || mCrossfadeController == null || !mStagedTrack.equals(track)) {
+            return false;
+        }
+        final C staging = mCrossfadeController;
+        mStagedTrack = null;
+        if (!(staging.isPreparing() || staging.isInPlaybackState())) {
+            logger.w("staged track " + track + " was not prepared");
+            clearController(staging);
+            return false;
+        }
+        logger.d("handing over staged track " + track);
+        final C outgoing = swapControllers();
+        clearController(outgoing);
+        return true;
+    }
+
     private void cancelResetFuture() {
-        if (mTrackResetFuture != null) {
-            if (!mTrackResetFuture.isCancelled() && !mTrackResetFuture.isDone()) {
-//                logger.d("cancelling reset callback (play timeout)...");
-                mTrackResetFuture.cancel(true);
+        if (mTrackResetTimeout != null) {
+//            logger.d("cancelling reset callback (play timeout)...");
+            mTrackResetTimeout.cancel();
+            mTrackResetTimeout = null;
+        }
+    }
+
+    /**
+     * @return time, after which current track will end: by its duration or by {@link BasePlaylistItem#duration}
+     */
+    private long getCurrentTrackRemainingMs() {
+        final T track = getCurrentTrack();
+        if (track == null) {
+            return 0;
+        }
+        long duration = mPlayerController.getDuration();
+        if (duration <= 0) {
+            duration = extractTrackDuration(track);
+        }
+        if (track.duration != BasePlaylistItem.DURATION_NOT_SPECIFIED && (duration <= 0 || track.duration < duration)) {
+            // play timeout is counted from prepare, so it's approximate here
+            duration = track.duration;
+        }
+        final int position = mPlayerController.getCurrentPosition();
+        return duration > 0 ? duration - Math.max(position, 0) : 0;
+    }
+
+    /**
+     * @return index, which {@link #nextTrackByMode()} would switch to, or {@link #NO_POSITION}
+     */
+    private int peekNextTrackIndex() {
+        if (mTracksSwitchMode == RANDOM && hasCurrentTrack() && getTracksCount() > 1) {
+            final int index = getPlannedRandomIndex();
+            if (index != mCurrentTrackIndex) {
+                return index;
+            }
+        }
+        if (mCurrentTrackIndex < getTracksCount() - 1) {
+            return mCurrentTrackIndex + 1;
+        }
+        return mLoopPlaylist ? 0 : NO_POSITION;
+    }
+
+    private boolean canCrossfade() {
+        if (mCrossfadeController == null || mCrossfadeDurationMs <= 0 || mFadingOutController != null || mStagedTrack != null || mCrossfadeController.isReleased()) {
+            return false;
+        }
+        final T current = getCurrentTrack();
+        if (current == null || current.isLooping || current.playMode != BaseMediaPlayerController.PlayMode.AUDIO) {
+            return false;
+        }
+        if (mPlayerController.getTargetState() != BaseMediaPlayerController.State.PLAYING) {
+            return false;
+        }
+        final int nextIndex = peekNextTrackIndex();
+        if (nextIndex == NO_POSITION || nextIndex == mCurrentTrackIndex) {
+            return false;
+        }
+        final T next = getTrack(nextIndex);
+        return next.playMode == BaseMediaPlayerController.PlayMode.AUDIO && isTrackValid(next);
+    }
+
+    private void scheduleCrossfade() {
+        cancelCrossfadeFuture();
+        if (!canCrossfade()) {
+            return;
+        }
+        final long remaining = getCurrentTrackRemainingMs();
+        if (remaining <= 0 || remaining < mCrossfadeDurationMs * 2 && mPlayerController.getCurrentPosition() <= POSITION_MARGIN_MS) {
+            // unknown duration or track is too short for crossfade from its start: hard switch
+            return;
+        }
+        final long delay = Math.max(1, remaining - mCrossfadeDurationMs - mCrossfadePrepareEstimateMs);
+        logger.d("scheduling crossfade after " + delay + " ms");
+        mCrossfadeFuture = mPlayerController.scheduleOnExecutor(mCrossfadeRunnable, delay);
+    }
+
+    private void cancelCrossfadeFuture() {
+        if (mCrossfadeFuture != null) {
+            if (!mCrossfadeFuture.isCancelled() && !mCrossfadeFuture.isDone()) {
+                mCrossfadeFuture.cancel(false);
+            }
+            mCrossfadeFuture = null;
+        }
+    }
+
+    /**
+     * called on media thread: starts next track on second controller, makes it active and ramps volumes
+     */
+    @SuppressWarnings("unchecked")
+    private void startCrossfade() {
+        synchronized (mTracks) {
+            if (isReleased() || !canCrossfade()) {
+                return;
+            }
+            final long remaining = getCurrentTrackRemainingMs();
+            if (remaining > mCrossfadeDurationMs + mCrossfadePrepareEstimateMs + POSITION_MARGIN_MS) {
+                // position was changed (e.g. by seek)
+                scheduleCrossfade();
+                return;
+            }
+            final int nextIndex = peekNextTrackIndex();
+            if (nextIndex == getPlannedRandomIndexIfSet()) {
+                mPlannedRandomIndex = NO_POSITION;
+            }
+            final long fadeMs = Math.max(remaining - mCrossfadePrepareEstimateMs, 1);
+            logger.d("starting crossfade to track " + nextIndex + " for " + fadeMs + " ms, expected prepare time: " + mCrossfadePrepareEstimateMs + " ms");
+
+            cancelResetFuture();
+            cancelCrossfadeFuture();
+
+            final C incoming = mCrossfadeController;
+            final C outgoing = swapControllers();
+            mFadingOutController = outgoing;
+
+            // started manually when prepared: volume, set in onPrepared, must not be heard before ramp
+            incoming.getStateChangedObservable().registerObserver(new CrossfadeStarter(incoming, outgoing, fadeMs, SystemClock.elapsedRealtime() + remaining));
+
+            final T previous = getCurrentTrack();
+            mCurrentTrackIndex = nextIndex;
+            prepareTrackInternal(getTrack(nextIndex));
+            mActiveTrackChangedObservable.dispatchPlay(getCurrentTrack(), previous);
+        }
+    }
+
+    /**
+     * makes second controller active and previous active one second
+     *
+     * @return previous active controller
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull
+    private C swapControllers() {
+        final C outgoing = mPlayerController;
+        final C incoming = mCrossfadeController;
+        if (incoming == null) {
+            throw new IllegalStateException("second controller is not set");
+        }
+        outgoing.getStateChangedObservable().unregisterObserver(mMediaControllerCallbacks);
+        outgoing.getCompletionObservable().unregisterObserver(mMediaControllerCallbacks);
+        outgoing.getErrorObservable().unregisterObserver(mMediaControllerCallbacks);
+        mPlayerController = incoming;
+        mCrossfadeController = outgoing;
+        incoming.getStateChangedObservable().registerObserver(mMediaControllerCallbacks);
+        incoming.getCompletionObservable().registerObserver(mMediaControllerCallbacks);
+        incoming.getErrorObservable().registerObserver(mMediaControllerCallbacks);
+        mPlayerControllerChangedObservable.dispatchChanged(incoming, outgoing);
+        return outgoing;
+    }
+
+    private int getPlannedRandomIndexIfSet() {
+        return mTracksSwitchMode == RANDOM ? mPlannedRandomIndex : NO_POSITION;
+    }
+
+    /**
+     * called on media thread, when outgoing controller is silent
+     */
+    private void finishCrossfade(@NotNull C outgoing) {
+        synchronized (mTracks) {
+            if (mFadingOutController == outgoing) {
+                mFadingOutController = null;
+            }
+            clearController(outgoing);
+            logger.d("crossfade finished");
+            if (!isReleased() && mPlayerController.isPlaying()) {
+                scheduleCrossfade();
             }
-            mTrackResetFuture = null;
+        }
+    }
+
+    private void clearController(@NotNull C controller) {
+        if (!controller.isReleased()) {
+            controller.stop();
+            if (controller.getContentUri() != null) {
+                controller.setContentUri(BaseMediaPlayerController.PlayMode.NONE, null);
+            }
+            if (controller.getContentAssetFileDescriptor() != null) {
+                controller.setContentFd(BaseMediaPlayerController.PlayMode.NONE, null);
+            }
+            controller.getVolumeRamp().cancel();
         }
     }
 
@@ -700,6 +1175,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
             checkReleased();
 
             cancelResetFuture();
+            cancelCrossfadeFuture();
 
             if (mCurrentTrackIndex != NO_POSITION) {
 
@@ -937,6 +1413,50 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
         }
     }
 
+    /**
+     * replaces tracks without resetting player (unlike {@link #setTracks(Collection)}), so there is no blackout between playlists:
+     * new track is opened by controller over the current one
+     *
+     * @param startIndex index in new tracks to switch to or {@link #NO_POSITION} to continue current track,
+     *                   if new tracks contain it (first track is used otherwise)
+     * @param play       true to play switched track, false to prepare it
+     * @return false if some tracks were incorrect
+     */
+    public final boolean replaceTracks(@NotNull Collection<T> tracks, int startIndex, boolean play) {
+        synchronized (mTracks) {
+            checkReleased();
+            final List<T> newTracks = new ArrayList<>(tracks);
+            final List<T> incorrect = filterIncorrectTracks(newTracks);
+            if (!incorrect.isEmpty()) {
+                onTracksSetFailed(incorrect);
+            }
+            if (newTracks.isEmpty()) {
+                clearTracks();
+                return incorrect.isEmpty();
+            }
+            if (startIndex != NO_POSITION && (startIndex < 0 || startIndex >= newTracks.size())) {
+                throw new IndexOutOfBoundsException("incorrect startIndex: " + startIndex);
+            }
+            final T current = getCurrentTrack();
+            cancelCrossfadeFuture();
+            mTracks.clear();
+            mTracks.addAll(newTracks);
+            mCurrentTrackIndex = current != null ? mTracks.indexOf(current) : NO_POSITION;
+            onTracksSet();
+            if (startIndex == NO_POSITION && mCurrentTrackIndex == NO_POSITION) {
+                startIndex = 0;
+            }
+            if (startIndex != NO_POSITION) {
+                if (play) {
+                    playTrack(startIndex);
+                } else {
+                    prepareTrack(startIndex);
+                }
+            }
+            return incorrect.isEmpty();
+        }
+    }
+
     public final boolean setTracks(T... tracks) {
         return setTracks(tracks != null ? Arrays.asList(tracks) : null);
     }
@@ -957,6 +1477,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
     @CallSuper
     protected void onTracksSet() {
         logger.d("onTracksSet()");
+        mPlannedRandomIndex = NO_POSITION;
         mTracksSetObservable.dispatchSet(getTracks());
     }
 
@@ -980,6 +1501,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
     @CallSuper
     protected void onTracksCleared(int oldCount) {
         logger.d("onTracksCleared(), oldCount=" + oldCount);
+        mPlannedRandomIndex = NO_POSITION;
         mTracksClearedObservable.dispatchCleared(oldCount);
     }
 
@@ -1012,6 +1534,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
     @CallSuper
     protected void onTrackAdded(int addedPosition, T track) {
         logger.d("onTrackAdded(), addedPosition=" + addedPosition + ", track=" + track);
+        mPlannedRandomIndex = NO_POSITION;
         mTrackAddedObservable.dispatchAdded(addedPosition, track);
     }
 
@@ -1041,6 +1564,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
     @CallSuper
     protected void onTrackSet(int setPosition, T track) {
         logger.d("onTrackSet(), setPosition=" + setPosition + ", track=" + track);
+        mPlannedRandomIndex = NO_POSITION;
         mTrackSetObservable.dispatchSet(setPosition, track);
     }
 
@@ -1092,6 +1616,7 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
     @CallSuper
     protected void onTrackRemoved(int removedPosition, T track) {
         logger.d("onTrackRemoved(), removedPosition=" + removedPosition + ", track=" + track);
+        mPlannedRandomIndex = NO_POSITION;
         mTrackRemovedObservable.dispatchRemoved(removedPosition, track);
     }
 
@@ -1155,6 +1680,14 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
         void onTrackRemoved(int from, T track);
     }
 
+    public interface OnPlayerControllerChangedListener<C extends BaseMediaPlayerController> {
+
+        /**
+         * called when crossfade hands playback over to other controller
+         */
+        void onPlayerControllerChanged(@NotNull C current, @NotNull C previous);
+    }
+
     public interface OnTracksClearedListener {
 
         void onTracksCleared(int oldCount);
@@ -1204,6 +1737,9 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
 //                        }
 //                    }
                 }
+                if (!isReleased() && mCrossfadeController != null) {
+                    onActiveStateChanged(currentState);
+                }
             }
         }
 
@@ -1212,6 +1748,14 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
             // do nothing
         }
 
+        private void onActiveStateChanged(@NotNull BaseMediaPlayerController.State currentState) {
+            if (currentState == BaseMediaPlayerController.State.PLAYING) {
+                scheduleCrossfade();
+            } else {
+                cancelCrossfadeFuture();
+            }
+        }
+
         @Override
         public void onCompletion(final boolean isTrackLooping) {
             logger.d("onCompletion(), isTrackLooping=" + isTrackLooping);
@@ -1362,6 +1906,101 @@ public class PlaylistManager<C extends BaseMediaPlayerController, T extends Base
         }
     }
 
+    private static class OnPlayerControllerChangedObservable<C extends BaseMediaPlayerController> extends Observable<OnPlayerControllerChangedListener<C>> {
+
+        private void dispatchChanged(@NotNull C current, @NotNull C previous) {
+            synchronized (observers) {
+                for (OnPlayerControllerChangedListener<C> l : copyOfObservers()) {
+                    l.onPlayerControllerChanged(current, previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * one-shot listener of incoming controller: starts it silently and ramps both controllers, when it's prepared
+     */
+    private class CrossfadeStarter implements BaseMediaPlayerController.OnStateChangedListener {
+
+        @NotNull
+        private final C mIncoming;
+
+        @NotNull
+        private final C mOutgoing;
+
+        private final long mFadeMs;
+
+        /**
+         * expected end of outgoing track
+         */
+        private final long mOutgoingEndTime;
+
+        private final long mStartTime = SystemClock.elapsedRealtime();
+
+        CrossfadeStarter(@NotNull C incoming, @NotNull C outgoing, long fadeMs, long outgoingEndTime) {
+            mIncoming = incoming;
+            mOutgoing = outgoing;
+            mFadeMs = fadeMs;
+            mOutgoingEndTime = outgoingEndTime;
+        }
+
+        @Override
+        public void onBeforeOpenDataSource() {
+
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onCurrentStateChanged(@NotNull BaseMediaPlayerController.State currentState, @NotNull BaseMediaPlayerController.State previousState) {
+            if (currentState == BaseMediaPlayerController.State.PREPARED) {
+                mIncoming.getStateChangedObservable().unregisterObserver(this);
+                final long prepareMs = SystemClock.elapsedRealtime() - mStartTime;
+                mCrossfadePrepareEstimateMs = (mCrossfadePrepareEstimateMs + prepareMs) / 2;
+                // after onPrepared is finished
+                mIncoming.postOnMediaHandler(this::startRamps);
+            } else if (currentState == BaseMediaPlayerController.State.IDLE && previousState == BaseMediaPlayerController.State.PREPARING
+                    || currentState == BaseMediaPlayerController.State.RELEASED) {
+                // prepare failed: outgoing one is not needed anymore
+                mIncoming.getStateChangedObservable().unregisterObserver(this);
+                fadeOutOutgoing();
+            }
+        }
+
+        @Override
+        public void onTargetStateChanged(@NotNull BaseMediaPlayerController.State targetState) {
+
+        }
+
+        private void startRamps() {
+            if (mIncoming.isReleased() || isReleased()) {
+                fadeOutOutgoing();
+                return;
+            }
+            // overlap is what is left of outgoing track; if preparing took longer than expected, it's shorter
+            final long leftMs = mOutgoingEndTime - SystemClock.elapsedRealtime();
+            final long fadeMs = leftMs > 0 ? leftMs : mFadeMs;
+            final VolumeRamp incomingRamp = mIncoming.getVolumeRamp();
+            // ramp applies silence synchronously, so incoming track doesn't blip at full volume on start
+            incomingRamp.start(BaseMediaPlayerController.VOLUME_MIN, BaseMediaPlayerController.VOLUME_MIN,
+                    mIncoming.getEffectiveVolumeLeft(), mIncoming.getEffectiveVolumeRight(), fadeMs, VolumeRamp.Curve.EQUAL_POWER, null);
+            mIncoming.start();
+            fadeOutOutgoing(Math.max(leftMs, 1));
+        }
+
+        private void fadeOutOutgoing() {
+            fadeOutOutgoing(mFadeMs);
+        }
+
+        private void fadeOutOutgoing(long fadeMs) {
+            if (mOutgoing.isReleased()) {
+                finishCrossfade(mOutgoing);
+                return;
+            }
+            mOutgoing.getVolumeRamp().rampTo(BaseMediaPlayerController.VOLUME_MIN, BaseMediaPlayerController.VOLUME_MIN, fadeMs, VolumeRamp.Curve.EQUAL_POWER,
+                    () -> mOutgoing.postOnMediaHandler(() -> finishCrossfade(mOutgoing)));
+        }
+    }
+
     private static class OnTracksClearedObservable extends Observable<OnTracksClearedListener> {
 
         private void dispatchCleared(int oldCount) {
@@ -0,0 +1,757 @@
+package net.maxsmr.mediaplayercontroller.playlist;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import net.maxsmr.commonutils.data.Observable;
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
+import net.maxsmr.mediaplayercontroller.mpc.ContentTypeResolver;
+import net.maxsmr.mediaplayercontroller.mpc.TimerWheel;
+import net.maxsmr.mediaplayercontroller.playlist.item.BasePlaylistItem;
+import net.maxsmr.mediaplayercontroller.playlist.item.UriPlaylistItem;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Switches tracks of {@link PlaylistManager} by schedule of time-windowed {@link Segment}s (one-shot windows and daily dayparts);
+ * overlapping segments are resolved by priority. Occurrences of all segments within horizon are flattened into sorted timeline,
+ * so active segment at any instant is found by binary search; timeline is rebuilt when segments change or horizon is passed.
+ * Before boundary first item of next segment is prepared on second controller of manager ({@link PlaylistManager#stageTrack(BasePlaylistItem)}),
+ * on boundary tracks are replaced by {@link PlaylistManager#replaceTracks(Collection, int, boolean)}, so staged controller is handed over
+ * without opening track again; without second controller only content type of item is resolved ahead and track is opened on boundary
+ */
+public class PlaylistScheduler<T extends BasePlaylistItem> {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(PlaylistScheduler.class);
+
+    public static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    public static final long DEFAULT_PRE_STAGE_LEAD_MS = 10 * 1000L;
+
+    /**
+     * max time between evaluations, so wall clock changes are picked up
+     */
+    public static final long MAX_WAKEUP_INTERVAL_MS = 60 * 1000L;
+
+    /**
+     * timeline covers occurrences in [now - HORIZON_PAST_MS, now + HORIZON_FUTURE_MS)
+     */
+    private static final long HORIZON_PAST_MS = DAY_MS;
+
+    private static final long HORIZON_FUTURE_MS = 2 * DAY_MS;
+
+    /**
+     * timeline is rebuilt when less than this time remains till end of horizon
+     */
+    private static final long HORIZON_REBUILD_MARGIN_MS = DAY_MS / 2;
+
+    public static final int ALL_DAYS = 0x7F;
+
+    @NotNull
+    private final PlaylistManager<?, T> mManager;
+
+    private final Object mLock = new Object();
+
+    /**
+     * segments by id in order of adding
+     */
+    @NotNull
+    private final Map<String, Segment<T>> mSegments = new LinkedHashMap<>();
+
+    private final OnScheduleObservable<T> mScheduleObservable = new OnScheduleObservable<>();
+
+    private final Runnable mEvaluateRunnable = this::evaluate;
+
+    @Nullable
+    private Timeline<T> mTimeline;
+
+    @Nullable
+    private Segment<T> mActiveSegment;
+
+    /**
+     * true if tracks should be switched on next evaluation even if active segment is same
+     */
+    private boolean mForceSwitch = false;
+
+    private long mStagedBoundary = Long.MIN_VALUE;
+
+    @Nullable
+    private TimerWheel.Timeout mWakeup;
+
+    @NotNull
+    private List<T> mFallbackTracks = Collections.emptyList();
+
+    private long mPreStageLeadMs = DEFAULT_PRE_STAGE_LEAD_MS;
+
+    private boolean mAutoPlay = true;
+
+    private boolean mStarted = false;
+
+    public PlaylistScheduler(@NotNull PlaylistManager<?, T> manager) {
+        mManager = manager;
+    }
+
+    public Observable<OnScheduleListener<T>> getScheduleObservable() {
+        return mScheduleObservable;
+    }
+
+    public long getPreStageLeadMs() {
+        synchronized (mLock) {
+            return mPreStageLeadMs;
+        }
+    }
+
+    public void setPreStageLeadMs(long preStageLeadMs) {
+        if (preStageLeadMs < 0) {
+            throw new IllegalArgumentException("incorrect preStageLeadMs: " + preStageLeadMs);
+        }
+        synchronized (mLock) {
+            mPreStageLeadMs = preStageLeadMs;
+        }
+        reschedule();
+    }
+
+    public boolean isAutoPlay() {
+        synchronized (mLock) {
+            return mAutoPlay;
+        }
+    }
+
+    /**
+     * @param autoPlay true to play tracks of segment on switch, false to prepare only
+     */
+    public void setAutoPlay(boolean autoPlay) {
+        synchronized (mLock) {
+            mAutoPlay = autoPlay;
+        }
+    }
+
+    /**
+     * @param tracks played when no segment is active, empty to clear tracks
+     */
+    public void setFallbackTracks(@Nullable Collection<T> tracks) {
+        synchronized (mLock) {
+            mFallbackTracks = tracks != null ? Collections.unmodifiableList(new ArrayList<>(tracks)) : Collections.emptyList();
+            if (mActiveSegment == null) {
+                mForceSwitch = true;
+            }
+        }
+        reschedule();
+    }
+
+    @NotNull
+    public List<Segment<T>> getSegments() {
+        synchronized (mLock) {
+            return new ArrayList<>(mSegments.values());
+        }
+    }
+
+    @Nullable
+    public Segment<T> getSegment(@NotNull String id) {
+        synchronized (mLock) {
+            return mSegments.get(id);
+        }
+    }
+
+    /**
+     * replaces segment with same id
+     */
+    public void addSegment(@NotNull Segment<T> segment) {
+        addSegments(Collections.singletonList(segment));
+    }
+
+    public void addSegments(@NotNull Collection<Segment<T>> segments) {
+        synchronized (mLock) {
+            for (Segment<T> segment : segments) {
+                mSegments.put(segment.id, segment);
+            }
+            mTimeline = null;
+        }
+        reschedule();
+    }
+
+    /**
+     * replaces all segments
+     */
+    public void setSegments(@NotNull Collection<Segment<T>> segments) {
+        synchronized (mLock) {
+            mSegments.clear();
+            for (Segment<T> segment : segments) {
+                mSegments.put(segment.id, segment);
+            }
+            mTimeline = null;
+        }
+        reschedule();
+    }
+
+    @Nullable
+    public Segment<T> removeSegment(@NotNull String id) {
+        final Segment<T> removed;
+        synchronized (mLock) {
+            removed = mSegments.remove(id);
+            if (removed != null) {
+                mTimeline = null;
+            }
+        }
+        if (removed != null) {
+            reschedule();
+        }
+        return removed;
+    }
+
+    public void clearSegments() {
+        setSegments(Collections.emptyList());
+    }
+
+    public boolean isStarted() {
+        synchronized (mLock) {
+            return mStarted;
+        }
+    }
+
+    @Nullable
+    public Segment<T> getActiveSegment() {
+        synchronized (mLock) {
+            return mActiveSegment;
+        }
+    }
+
+    /**
+     * @return segment active at given wall clock time, resolved by current segments
+     */
+    @Nullable
+    public Segment<T> getSegmentAt(long time) {
+        synchronized (mLock) {
+            return getTimeline(time, false).segmentAt(time);
+        }
+    }
+
+    /**
+     * @return next time after given one when active segment changes or {@link Long#MAX_VALUE}, if it's beyond horizon
+     */
+    public long getNextBoundary(long time) {
+        synchronized (mLock) {
+            return getTimeline(time, false).nextBoundary(time);
+        }
+    }
+
+    /**
+     * starts switching tracks of manager; active segment is applied immediately
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) {
+                return;
+            }
+            if (mManager.isReleased()) {
+                throw new IllegalStateException(PlaylistManager.class.getSimpleName() + " was released");
+            }
+            mStarted = true;
+            mActiveSegment = null;
+            mForceSwitch = true;
+            mStagedBoundary = Long.MIN_VALUE;
+        }
+        reschedule();
+    }
+
+    /**
+     * stops switching, current tracks are left as is
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mStarted) {
+                return;
+            }
+            mStarted = false;
+            cancelWakeup();
+            mStagedBoundary = Long.MIN_VALUE;
+        }
+        if (!mManager.isReleased()) {
+            mManager.getPlayerController().removeFromMediaHandler(mEvaluateRunnable);
+            mManager.cancelStagedTrack();
+        }
+    }
+
+    public void release() {
+        stop();
+        synchronized (mLock) {
+            mSegments.clear();
+            mTimeline = null;
+            mActiveSegment = null;
+        }
+    }
+
+    /**
+     * evaluation is run on media thread of manager, so tracks are switched in order
+     */
+    private void reschedule() {
+        synchronized (mLock) {
+            if (!mStarted) {
+                return;
+            }
+            cancelWakeup();
+        }
+        postEvaluate();
+    }
+
+    private void postEvaluate() {
+        if (!mManager.isReleased()) {
+            final BaseMediaPlayerController<?> controller = mManager.getPlayerController();
+            controller.removeFromMediaHandler(mEvaluateRunnable);
+            controller.postOnMediaHandler(mEvaluateRunnable);
+        }
+    }
+
+    private void evaluate() {
+        final long now = System.currentTimeMillis();
+        final Segment<T> previous;
+        final Segment<T> active;
+        final Segment<T> next;
+        final long boundary;
+        final boolean switchTracks;
+        final boolean preStage;
+        final boolean autoPlay;
+        final List<T> fallbackTracks;
+        synchronized (mLock) {
+            if (!mStarted) {
+                return;
+            }
+            if (mManager.isReleased()) {
+                logger.e(PlaylistManager.class.getSimpleName() + " was released, stopping");
+                mStarted = false;
+                cancelWakeup();
+                return;
+            }
+            final Timeline<T> timeline = getTimeline(now, true);
+            final int index = timeline.indexAt(now);
+            active = index >= 0 ? timeline.segments[index] : null;
+            boundary = timeline.nextBoundary(now);
+            next = boundary != Long.MAX_VALUE ? timeline.segmentAt(boundary) : null;
+
+            previous = mActiveSegment;
+            // adjacent intervals of same segment are merged by timeline, so segment continues while it's same
+            switchTracks = active != previous || mForceSwitch;
+            mActiveSegment = active;
+            mForceSwitch = false;
+
+            preStage = next != null && next != active && boundary != mStagedBoundary && boundary - now <= mPreStageLeadMs;
+            if (preStage) {
+                mStagedBoundary = boundary;
+            }
+            autoPlay = mAutoPlay;
+            fallbackTracks = mFallbackTracks;
+
+            long delay = Math.min(boundary - now, MAX_WAKEUP_INTERVAL_MS);
+            if (next != null && boundary != mStagedBoundary) {
+                delay = Math.min(delay, boundary - mPreStageLeadMs - now);
+            }
+            delay = Math.max(delay, TimerWheel.getInstance().getTickMs());
+            cancelWakeup();
+            mWakeup = TimerWheel.getInstance().schedule(this::postEvaluate, delay);
+        }
+        if (switchTracks) {
+            logger.i("switching segment: " + previous + " -> " + active);
+            final List<T> tracks = active != null ? active.tracks : fallbackTracks;
+            try {
+                if (tracks.isEmpty()) {
+                    mManager.clearTracks();
+                } else {
+                    mManager.replaceTracks(tracks, 0, autoPlay);
+                }
+                // if staged track was not handed over, it's not needed anymore
+                mManager.cancelStagedTrack();
+            } catch (RuntimeException e) {
+                logger.e("can't switch to segment " + active, e);
+            }
+            mScheduleObservable.dispatchSegmentChanged(active, previous);
+        }
+        if (preStage) {
+            preStage(next, boundary);
+        }
+    }
+
+    /**
+     * prepares first item of next segment on second controller of manager; if it's not available,
+     * resolves content type of item off media thread (so it's cached by the time it's opened);
+     * then notifies listeners
+     */
+    private void preStage(@NotNull Segment<T> next, long startTime) {
+        logger.d("pre-staging segment " + next + " starting at " + startTime);
+        final T first = next.tracks.isEmpty() ? null : next.tracks.get(0);
+        boolean staged = false;
+        if (first != null) {
+            try {
+                staged = mManager.stageTrack(first);
+            } catch (RuntimeException e) {
+                logger.e("can't stage " + first, e);
+            }
+        }
+        if (!staged && first instanceof UriPlaylistItem) {
+            final String url = mManager.fixUrl(((UriPlaylistItem) first).uri);
+            if (!TextUtils.isEmpty(url)) {
+                final BaseMediaPlayerController<?> controller = mManager.getPlayerController();
+                final Uri uri = Uri.parse(url);
+                if (ContentTypeResolver.getInstance().peek(uri) == null) {
+                    try {
+                        controller.submitOnExecutor(() -> ContentTypeResolver.getInstance().resolve(controller.getContext(), uri, null));
+                    } catch (RuntimeException e) {
+                        logger.e("can't resolve content type of " + uri, e);
+                    }
+                }
+            }
+        }
+        mScheduleObservable.dispatchPreStage(next, first, startTime);
+    }
+
+    private void cancelWakeup() {
+        if (mWakeup != null) {
+            mWakeup.cancel();
+            mWakeup = null;
+        }
+    }
+
+    /**
+     * @param rebuild false to build temporary timeline for time out of horizon, so cached one is kept
+     */
+    @NotNull
+    private Timeline<T> getTimeline(long time, boolean rebuild) {
+        Timeline<T> timeline = mTimeline;
+        if (timeline != null && !rebuild && time >= timeline.from && time < timeline.to) {
+            return timeline;
+        }
+        if (timeline == null || time < timeline.from || time > timeline.to - HORIZON_REBUILD_MARGIN_MS) {
+            final long startTime = System.currentTimeMillis();
+            timeline = Timeline.build(mSegments.values(), time - HORIZON_PAST_MS, time + HORIZON_FUTURE_MS);
+            logger.d("timeline of " + mSegments.size() + " segments built: " + timeline.starts.length + " intervals, time: " + (System.currentTimeMillis() - startTime) + " ms");
+            if (rebuild || mTimeline == null) {
+                mTimeline = timeline;
+            }
+        }
+        return timeline;
+    }
+
+    /**
+     * scheduled playlist: either one-shot window [{@link #validFrom}, {@link #validUntil})
+     * or, if {@link #isDaily()}, daily window [{@link #dayStartMs}, {@link #dayEndMs}) on days of {@link #daysOfWeek}
+     * within validity period; daily window with end before start wraps past midnight
+     */
+    public static class Segment<T extends BasePlaylistItem> {
+
+        @NotNull
+        public final String id;
+
+        /**
+         * among overlapping segments one with highest priority is active, on equal priority - one started later
+         */
+        public final int priority;
+
+        @NotNull
+        public final List<T> tracks;
+
+        public final long validFrom;
+
+        public final long validUntil;
+
+        /**
+         * offset from local midnight, -1 for one-shot segment
+         */
+        public final long dayStartMs;
+
+        public final long dayEndMs;
+
+        /**
+         * bit mask, bit 0 is {@link Calendar#SUNDAY}, bit 6 is {@link Calendar#SATURDAY}
+         */
+        public final int daysOfWeek;
+
+        private Segment(@NotNull String id, int priority, @NotNull Collection<T> tracks,
+                        long validFrom, long validUntil, long dayStartMs, long dayEndMs, int daysOfWeek) {
+            if (TextUtils.isEmpty(id)) {
+                throw new IllegalArgumentException("id is empty");
+            }
+            if (validFrom >= validUntil) {
+                throw new IllegalArgumentException("incorrect validity: " + validFrom + " - " + validUntil);
+            }
+            this.id = id;
+            this.priority = priority;
+            this.tracks = Collections.unmodifiableList(new ArrayList<>(tracks));
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+            this.dayStartMs = dayStartMs;
+            this.dayEndMs = dayEndMs;
+            this.daysOfWeek = daysOfWeek;
+        }
+
+        /**
+         * @param startTime wall clock time
+         */
+        @NotNull
+        public static <T extends BasePlaylistItem> Segment<T> once(@NotNull String id, int priority, @NotNull Collection<T> tracks,
+                                                                   long startTime, long endTime) {
+            return new Segment<>(id, priority, tracks, startTime, endTime, -1, -1, 0);
+        }
+
+        /**
+         * @param dayStartMs offset from local midnight
+         * @param dayEndMs   offset from local midnight, if not greater than dayStartMs, window ends next day
+         * @param daysOfWeek days when window starts, see {@link #dayBit(int)}
+         */
+        @NotNull
+        public static <T extends BasePlaylistItem> Segment<T> daily(@NotNull String id, int priority, @NotNull Collection<T> tracks,
+                                                                    long dayStartMs, long dayEndMs, int daysOfWeek,
+                                                                    long validFrom, long validUntil) {
+            if (dayStartMs < 0 || dayStartMs >= DAY_MS) {
+                throw new IllegalArgumentException("incorrect dayStartMs: " + dayStartMs);
+            }
+            if (dayEndMs < 0 || dayEndMs > DAY_MS) {
+                throw new IllegalArgumentException("incorrect dayEndMs: " + dayEndMs);
+            }
+            if (daysOfWeek <= 0 || daysOfWeek > ALL_DAYS) {
+                throw new IllegalArgumentException("incorrect daysOfWeek: " + daysOfWeek);
+            }
+            return new Segment<>(id, priority, tracks, validFrom, validUntil, dayStartMs, dayEndMs, daysOfWeek);
+        }
+
+        @NotNull
+        public static <T extends BasePlaylistItem> Segment<T> daily(@NotNull String id, int priority, @NotNull Collection<T> tracks,
+                                                                    long dayStartMs, long dayEndMs) {
+            return daily(id, priority, tracks, dayStartMs, dayEndMs, ALL_DAYS, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param calendarDay {@link Calendar#SUNDAY} .. {@link Calendar#SATURDAY}
+         */
+        public static int dayBit(int calendarDay) {
+            if (calendarDay < Calendar.SUNDAY || calendarDay > Calendar.SATURDAY) {
+                throw new IllegalArgumentException("incorrect calendarDay: " + calendarDay);
+            }
+            return 1 << (calendarDay - Calendar.SUNDAY);
+        }
+
+        public boolean isDaily() {
+            return dayStartMs >= 0;
+        }
+
+        /**
+         * adds occurrences intersecting [from, to) to target; daily window is placed from local midnight,
+         * so on DST transition days it's shifted by the difference
+         */
+        void collectOccurrences(long from, long to, @NotNull List<Occurrence<T>> target) {
+            if (!isDaily()) {
+                addOccurrence(validFrom, validUntil, from, to, target);
+                return;
+            }
+            final Calendar calendar = Calendar.getInstance();
+            // window started on previous day may still last
+            calendar.setTimeInMillis(Math.max(from, validFrom) - DAY_MS);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            final long end = Math.min(to, validUntil);
+            while (calendar.getTimeInMillis() < end) {
+                if ((daysOfWeek & dayBit(calendar.get(Calendar.DAY_OF_WEEK))) != 0) {
+                    final long midnight = calendar.getTimeInMillis();
+                    final long start = midnight + dayStartMs;
+                    final long stop = dayEndMs > dayStartMs ? midnight + dayEndMs : midnight + DAY_MS + dayEndMs;
+                    addOccurrence(start, stop, from, to, target);
+                }
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            }
+        }
+
+        private void addOccurrence(long start, long end, long from, long to, @NotNull List<Occurrence<T>> target) {
+            start = Math.max(start, validFrom);
+            end = Math.min(end, validUntil);
+            if (start < end && start < to && end > from) {
+                target.add(new Occurrence<>(this, Math.max(start, from), Math.min(end, to)));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "id='" + id + '\'' +
+                    ", priority=" + priority +
+                    ", tracks=" + tracks.size() +
+                    ", validFrom=" + validFrom +
+                    ", validUntil=" + validUntil +
+                    ", dayStartMs=" + dayStartMs +
+                    ", dayEndMs=" + dayEndMs +
+                    ", daysOfWeek=" + Integer.toBinaryString(daysOfWeek) +
+                    '}';
+        }
+    }
+
+    private static class Occurrence<T extends BasePlaylistItem> {
+
+        @NotNull
+        final Segment<T> segment;
+
+        final long start;
+
+        final long end;
+
+        Occurrence(@NotNull Segment<T> segment, long start, long end) {
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * non-overlapping intervals [starts[i], starts[i + 1]) with winning segment (null for gap), sorted by start;
+     * last interval ends at {@link #to}
+     */
+    private static class Timeline<T extends BasePlaylistItem> {
+
+        final long from;
+
+        final long to;
+
+        @NotNull
+        final long[] starts;
+
+        @NotNull
+        final Segment<T>[] segments;
+
+        private Timeline(long from, long to, @NotNull long[] starts, @NotNull Segment<T>[] segments) {
+            this.from = from;
+            this.to = to;
+            this.starts = starts;
+            this.segments = segments;
+        }
+
+        /**
+         * sweeps occurrence boundaries keeping started occurrences in priority queue, ended ones are dropped lazily from top
+         */
+        @SuppressWarnings("unchecked")
+        @NotNull
+        static <T extends BasePlaylistItem> Timeline<T> build(@NotNull Collection<Segment<T>> segments, long from, long to) {
+            final List<Occurrence<T>> occurrences = new ArrayList<>();
+            for (Segment<T> segment : segments) {
+                segment.collectOccurrences(from, to, occurrences);
+            }
+            // Long.compare() requires API 19
+            Collections.sort(occurrences, (o1, o2) -> o1.start < o2.start ? -1 : (o1.start == o2.start ? 0 : 1));
+
+            final long[] bounds = new long[occurrences.size() * 2 + 1];
+            int boundsCount = 0;
+            bounds[boundsCount++] = from;
+            for (Occurrence<T> o : occurrences) {
+                bounds[boundsCount++] = o.start;
+                bounds[boundsCount++] = o.end;
+            }
+            Arrays.sort(bounds, 0, boundsCount);
+
+            final PriorityQueue<Occurrence<T>> active = new PriorityQueue<>(16, new Comparator<Occurrence<T>>() {
+                @Override
+                public int compare(Occurrence<T> o1, Occurrence<T> o2) {
+                    if (o1.segment.priority != o2.segment.priority) {
+                        return o1.segment.priority > o2.segment.priority ? -1 : 1;
+                    }
+                    return o1.start > o2.start ? -1 : (o1.start == o2.start ? 0 : 1);
+                }
+            });
+            final long[] starts = new long[boundsCount];
+            final Segment<T>[] winners = new Segment[boundsCount];
+            int count = 0;
+            int next = 0;
+            for (int i = 0; i < boundsCount; i++) {
+                final long time = bounds[i];
+                if (i > 0 && time == bounds[i - 1]) {
+                    continue;
+                }
+                while (next < occurrences.size() && occurrences.get(next).start <= time) {
+                    active.add(occurrences.get(next++));
+                }
+                while (!active.isEmpty() && active.peek().end <= time) {
+                    active.poll();
+                }
+                final Segment<T> winner = active.isEmpty() ? null : active.peek().segment;
+                if (count == 0 || winners[count - 1] != winner) {
+                    starts[count] = time;
+                    winners[count] = winner;
+                    count++;
+                }
+            }
+            return new Timeline<>(from, to, Arrays.copyOf(starts, count), Arrays.copyOf(winners, count));
+        }
+
+        /**
+         * @return index of interval containing time or -1
+         */
+        int indexAt(long time) {
+            if (time < from || time >= to || starts.length == 0) {
+                return -1;
+            }
+            int index = Arrays.binarySearch(starts, time);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index >= 0 && segments[index] != null ? index : -1;
+        }
+
+        @Nullable
+        Segment<T> segmentAt(long time) {
+            final int index = indexAt(time);
+            return index >= 0 ? segments[index] : null;
+        }
+
+        long nextBoundary(long time) {
+            int index = Arrays.binarySearch(starts, time);
+            index = index < 0 ? -index - 1 : index + 1;
+            return index < starts.length ? starts[index] : Long.MAX_VALUE;
+        }
+    }
+
+    public interface OnScheduleListener<T extends BasePlaylistItem> {
+
+        /**
+         * called on media thread after tracks were replaced
+         *
+         * @param current null if no segment is active (fallback tracks are used)
+         */
+        void onSegmentChanged(@Nullable Segment<T> current, @Nullable Segment<T> previous);
+
+        /**
+         * called on media thread {@link #getPreStageLeadMs()} before segment starts
+         *
+         * @param firstTrack null if segment has no tracks
+         */
+        void onSegmentPreStage(@NotNull Segment<T> next, @Nullable T firstTrack, long startTime);
+    }
+
+    private static class OnScheduleObservable<T extends BasePlaylistItem> extends Observable<OnScheduleListener<T>> {
+
+        private void dispatchSegmentChanged(@Nullable Segment<T> current, @Nullable Segment<T> previous) {
+            synchronized (observers) {
+                for (OnScheduleListener<T> l : copyOfObservers()) {
+                    l.onSegmentChanged(current, previous);
+                }
+            }
+        }
+
+        private void dispatchPreStage(@NotNull Segment<T> next, @Nullable T firstTrack, long startTime) {
+            synchronized (observers) {
+                for (OnScheduleListener<T> l : copyOfObservers()) {
+                    l.onSegmentPreStage(next, firstTrack, startTime);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.maxsmr.mediaplayercontroller.playlist;
+
+import android.text.TextUtils;
+
+import net.maxsmr.mediaplayercontroller.mpc.BaseMediaPlayerController;
+import net.maxsmr.mediaplayercontroller.mpc.jsplayer.ImagePrefetcher;
+import net.maxsmr.mediaplayercontroller.mpc.jsplayer.JsMediaPlayer;
+import net.maxsmr.mediaplayercontroller.mpc.jsplayer.PagePrerenderer;
+import net.maxsmr.mediaplayercontroller.playlist.item.BasePlaylistItem;
+import net.maxsmr.mediaplayercontroller.playlist.item.UriPlaylistItem;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On each track change requests {@link ImagePrefetcher} of {@link JsMediaPlayer}
+ * to preload next {@link BaseMediaPlayerController.PlayMode#PICTURE} items in switch order
+ * and, if player has {@link PagePrerenderer}, prerenders next {@link BaseMediaPlayerController.PlayMode#PAGE} item
+ */
+public class SlideshowPrefetcher<T extends BasePlaylistItem> implements PlaylistManager.OnActiveTrackChangedListener<T> {
+
+    public static final int DEFAULT_PREFETCH_COUNT = 3;
+
+    @NotNull
+    private final PlaylistManager<? extends JsMediaPlayer, T> mPlaylistManager;
+
+    @NotNull
+    private final JsMediaPlayer mPlayer;
+
+    private int mPrefetchCount = DEFAULT_PREFETCH_COUNT;
+
+    private boolean mAttached = false;
+
+    public SlideshowPrefetcher(@NotNull PlaylistManager<? extends JsMediaPlayer, T> playlistManager) {
+        mPlaylistManager = playlistManager;
+        mPlayer = (JsMediaPlayer) playlistManager.getPlayerController();
+    }
+
+    public int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    public void setPrefetchCount(int prefetchCount) {
+        if (prefetchCount < 0) {
+            throw new IllegalArgumentException("incorrect prefetchCount: " + prefetchCount);
+        }
+        mPrefetchCount = prefetchCount;
+    }
+
+    public void attach() {
+        if (!mAttached) {
+            mPlaylistManager.getActiveTrackChangedObservable().registerObserver(this);
+            mAttached = true;
+        }
+    }
+
+    public void detach() {
+        if (mAttached) {
+            mPlaylistManager.getActiveTrackChangedObservable().unregisterObserver(this);
+            mAttached = false;
+            mPlayer.postOnMediaHandler(() -> mPlayer.getImagePrefetcher().clear());
+        }
+    }
+
+    @Override
+    public void onPrepare(@NotNull T track, @Nullable T previous) {
+        prefetchUpcoming();
+    }
+
+    @Override
+    public void onPlay(@NotNull T current, @Nullable T previous) {
+        // already requested on prepare
+    }
+
+    @Override
+    public void onReset(@NotNull T previous) {
+
+    }
+
+    @Override
+    public void onCompleted(@NotNull T current) {
+
+    }
+
+    @Override
+    public void onError(@NotNull BaseMediaPlayerController.OnErrorListener.MediaError error, @NotNull T current) {
+
+    }
+
+    private void prefetchUpcoming() {
+        if (mPlaylistManager.isReleased() || mPrefetchCount == 0) {
+            return;
+        }
+        final List<T> upcoming = mPlaylistManager.getUpcomingTracks(mPrefetchCount);
+        final List<String> urls = new ArrayList<>();
+        String nextPageUrl = null;
+        for (int i = 0; i < upcoming.size(); i++) {
+            final T track = upcoming.get(i);
+            if (track instanceof UriPlaylistItem) {
+                final String url = mPlaylistManager.fixUrl(((UriPlaylistItem) track).uri);
+                if (TextUtils.isEmpty(url)) {
+                    continue;
+                }
+                if (track.playMode == BaseMediaPlayerController.PlayMode.PICTURE && !urls.contains(url)) {
+                    urls.add(url);
+                } else if (track.playMode == BaseMediaPlayerController.PlayMode.PAGE && i == 0) {
+                    // only one page ahead: there is one back buffer
+                    nextPageUrl = url;
+                }
+            }
+        }
+        final String pageUrl = nextPageUrl;
+        mPlayer.postOnMediaHandler(() -> {
+            if (!mPlayer.isReleased()) {
+                mPlayer.getImagePrefetcher().prefetch(urls);
+                final PagePrerenderer prerenderer = mPlayer.getPagePrerenderer();
+                if (prerenderer != null && pageUrl != null) {
+                    prerenderer.prerender(pageUrl);
+                }
+            }
+        });
+    }
+}
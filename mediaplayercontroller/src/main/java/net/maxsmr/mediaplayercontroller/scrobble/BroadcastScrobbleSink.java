@@ -0,0 +1,49 @@
+package net.maxsmr.mediaplayercontroller.scrobble;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends batch as one broadcast with JSON array of entries; accepted as soon as it's sent,
+ * so it's suitable only for receivers, which are always registered
+ */
+public class BroadcastScrobbleSink implements ScrobbleSink {
+
+    public static final String ACTION_SCROBBLE_BATCH = "net.maxsmr.mediaplayercontroller.action.SCROBBLE_BATCH";
+
+    public static final String EXTRA_ENTRIES = "entries";
+
+    @NotNull
+    private final Context mContext;
+
+    @Nullable
+    private final String mReceiverPermission;
+
+    public BroadcastScrobbleSink(@NotNull Context context, @Nullable String receiverPermission) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mReceiverPermission = receiverPermission;
+    }
+
+    @Override
+    public void deliver(@NotNull List<ScrobbleJournal.Entry> entries) throws IOException {
+        final JSONArray array = new JSONArray();
+        try {
+            for (ScrobbleJournal.Entry entry : entries) {
+                array.put(entry.toJson());
+            }
+        } catch (JSONException e) {
+            throw new IOException("can't make JSON: " + e.getMessage(), e);
+        }
+        final Intent intent = new Intent(ACTION_SCROBBLE_BATCH);
+        intent.putExtra(EXTRA_ENTRIES, array.toString());
+        mContext.sendBroadcast(intent, mReceiverPermission);
+    }
+}
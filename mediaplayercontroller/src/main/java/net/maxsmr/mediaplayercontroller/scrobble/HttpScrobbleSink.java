@@ -0,0 +1,85 @@
+package net.maxsmr.mediaplayercontroller.scrobble;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * POSTs batch as JSON array to specified endpoint (e.g. local collector); any 2xx response means acceptance
+ */
+public class HttpScrobbleSink implements ScrobbleSink {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(HttpScrobbleSink.class);
+
+    public static final int DEFAULT_TIMEOUT_MS = 15000;
+
+    @NotNull
+    private final URL mUrl;
+
+    @Nullable
+    private final Map<String, String> mHeaders;
+
+    private int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    public HttpScrobbleSink(@NotNull URL url, @Nullable Map<String, String> headers) {
+        mUrl = url;
+        mHeaders = headers;
+    }
+
+    public void setTimeoutMs(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("incorrect timeoutMs: " + timeoutMs);
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void deliver(@NotNull List<ScrobbleJournal.Entry> entries) throws IOException {
+        final JSONArray array = new JSONArray();
+        try {
+            for (ScrobbleJournal.Entry entry : entries) {
+                array.put(entry.toJson());
+            }
+        } catch (JSONException e) {
+            throw new IOException("can't make JSON: " + e.getMessage(), e);
+        }
+        final byte[] body = array.toString().getBytes(Charset.forName("UTF-8"));
+
+        final HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            connection.setConnectTimeout(mTimeoutMs);
+            connection.setReadTimeout(mTimeoutMs);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            if (mHeaders != null) {
+                for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+            final int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("unexpected response code " + code + " from " + mUrl);
+            }
+            logger.d("delivered " + entries.size() + " entries to " + mUrl);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
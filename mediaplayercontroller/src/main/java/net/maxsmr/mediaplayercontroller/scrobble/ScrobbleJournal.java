@@ -0,0 +1,538 @@
+package net.maxsmr.mediaplayercontroller.scrobble;
+
+import android.text.TextUtils;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk log of play events: one tab-separated line per entry with CRC,
+ * so torn tail after crash is detected and dropped; fsync is batched by count and delay.
+ * Delivered entries are acknowledged by sequence number (persisted in sidecar file)
+ * and removed by compaction
+ */
+public class ScrobbleJournal implements Closeable {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(ScrobbleJournal.class);
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public static final String ACK_FILE_EXT = ".ack";
+
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 16;
+
+    public static final long DEFAULT_SYNC_DELAY_MS = 1000;
+
+    public static final int DEFAULT_COMPACT_THRESHOLD = 256;
+
+    @NotNull
+    private final File mFile;
+
+    @NotNull
+    private final File mAckFile;
+
+    private final ScheduledExecutorService mSyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, ScrobbleJournal.class.getSimpleName() + "-Sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FileOutputStream mOutputStream;
+
+    private Writer mWriter;
+
+    private long mLastSeq = 0;
+
+    private long mAckedSeq = 0;
+
+    /**
+     * entries in file, including acknowledged ones
+     */
+    private int mEntriesCount = 0;
+
+    private int mAckedCount = 0;
+
+    private int mUnsyncedCount = 0;
+
+    @Nullable
+    private ScheduledFuture<?> mSyncFuture;
+
+    private int mSyncBatchSize = DEFAULT_SYNC_BATCH_SIZE;
+
+    private long mSyncDelayMs = DEFAULT_SYNC_DELAY_MS;
+
+    private int mCompactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+    private boolean mClosed = false;
+
+    public ScrobbleJournal(@NotNull File file) throws IOException {
+        mFile = file;
+        mAckFile = new File(file.getPath() + ACK_FILE_EXT);
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("can't create directory: " + parent);
+        }
+        readAck();
+        final boolean corrupted = scan();
+        mLastSeq = Math.max(mLastSeq, mAckedSeq);
+        if (corrupted || mAckedCount >= mCompactThreshold) {
+            compact();
+        } else {
+            openWriter();
+        }
+        logger.d("opened " + file + ": " + getPendingCount() + " pending entries, last seq " + mLastSeq);
+    }
+
+    @NotNull
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized int getPendingCount() {
+        return mEntriesCount - mAckedCount;
+    }
+
+    public synchronized long getAckedSeq() {
+        return mAckedSeq;
+    }
+
+    /**
+     * @param syncBatchSize fsync is done after this count of appended entries
+     * @param syncDelayMs   or after this time since first unsynced entry
+     */
+    public synchronized void setSyncPolicy(int syncBatchSize, long syncDelayMs) {
+        if (syncBatchSize <= 0) {
+            throw new IllegalArgumentException("incorrect syncBatchSize: " + syncBatchSize);
+        }
+        if (syncDelayMs < 0) {
+            throw new IllegalArgumentException("incorrect syncDelayMs: " + syncDelayMs);
+        }
+        mSyncBatchSize = syncBatchSize;
+        mSyncDelayMs = syncDelayMs;
+    }
+
+    /**
+     * @param compactThreshold file is rewritten when count of acknowledged entries in it reaches this value
+     */
+    public synchronized void setCompactThreshold(int compactThreshold) {
+        if (compactThreshold <= 0) {
+            throw new IllegalArgumentException("incorrect compactThreshold: " + compactThreshold);
+        }
+        mCompactThreshold = compactThreshold;
+    }
+
+    /**
+     * @return appended entry with assigned sequence number
+     */
+    @NotNull
+    public synchronized Entry append(@NotNull Type type, @Nullable String track, long positionMs, long durationMs,
+                                     @Nullable String artist, @Nullable String title, @Nullable String album) throws IOException {
+        checkClosed();
+        final Entry entry = new Entry(mLastSeq + 1, System.currentTimeMillis(), type, track, positionMs, durationMs, artist, title, album);
+        mWriter.write(encode(entry));
+        mLastSeq = entry.seq;
+        mEntriesCount++;
+        mUnsyncedCount++;
+        if (mUnsyncedCount >= mSyncBatchSize || mSyncDelayMs == 0) {
+            sync();
+        } else if (mSyncFuture == null) {
+            mSyncFuture = mSyncExecutor.schedule(this::syncQuietly, mSyncDelayMs, TimeUnit.MILLISECONDS);
+        }
+        return entry;
+    }
+
+    /**
+     * writes buffered entries and syncs them to storage
+     */
+    public synchronized void sync() throws IOException {
+        checkClosed();
+        if (mSyncFuture != null) {
+            mSyncFuture.cancel(false);
+            mSyncFuture = null;
+        }
+        if (mUnsyncedCount > 0) {
+            mWriter.flush();
+            mOutputStream.getFD().sync();
+            mUnsyncedCount = 0;
+        }
+    }
+
+    /**
+     * @return up to maxCount not acknowledged entries, oldest first
+     */
+    @NotNull
+    public synchronized List<Entry> readPending(int maxCount) throws IOException {
+        checkClosed();
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("incorrect maxCount: " + maxCount);
+        }
+        final List<Entry> result = new ArrayList<>();
+        if (getPendingCount() == 0) {
+            return result;
+        }
+        sync();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET))) {
+            String line;
+            while (result.size() < maxCount && (line = reader.readLine()) != null) {
+                final Entry entry = decode(line);
+                if (entry != null && entry.seq > mAckedSeq) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * marks all entries up to specified sequence number as delivered
+     */
+    public synchronized void acknowledge(long seq) throws IOException {
+        checkClosed();
+        if (seq > mLastSeq) {
+            throw new IllegalArgumentException("incorrect seq: " + seq);
+        }
+        if (seq <= mAckedSeq) {
+            return;
+        }
+        mAckedSeq = seq;
+        writeAck();
+        mAckedCount = countAcked();
+        if (mAckedCount >= mCompactThreshold || (mAckedCount > 0 && mAckedCount == mEntriesCount)) {
+            compact();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            try {
+                sync();
+            } finally {
+                mClosed = true;
+                mSyncExecutor.shutdown();
+                mWriter.close();
+            }
+        }
+    }
+
+    private void checkClosed() {
+        if (mClosed) {
+            throw new IllegalStateException(ScrobbleJournal.class.getSimpleName() + " was closed");
+        }
+    }
+
+    private synchronized void syncQuietly() {
+        mSyncFuture = null;
+        if (!mClosed) {
+            try {
+                sync();
+            } catch (IOException e) {
+                logger.e("can't sync " + mFile, e);
+            }
+        }
+    }
+
+    private void openWriter() throws IOException {
+        mOutputStream = new FileOutputStream(mFile, true);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOutputStream, CHARSET));
+    }
+
+    /**
+     * counts entries in file and restores last sequence number
+     *
+     * @return true if file has invalid lines (e.g. torn by crash) and must be rewritten
+     */
+    private boolean scan() throws IOException {
+        if (!mFile.isFile()) {
+            return false;
+        }
+        boolean corrupted = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Entry entry = decode(line);
+                if (entry == null || entry.seq <= mLastSeq) {
+                    logger.w("dropping invalid line in " + mFile + ": " + line);
+                    corrupted = true;
+                    continue;
+                }
+                mLastSeq = entry.seq;
+                mEntriesCount++;
+                if (entry.seq <= mAckedSeq) {
+                    mAckedCount++;
+                }
+            }
+        }
+        return corrupted;
+    }
+
+    /**
+     * sequence numbers may have gaps after dropped lines, so entries are counted, not subtracted
+     */
+    private int countAcked() throws IOException {
+        sync();
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Entry entry = decode(line);
+                if (entry != null) {
+                    if (entry.seq > mAckedSeq) {
+                        break;
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * rewrites file with not acknowledged entries only
+     */
+    private void compact() throws IOException {
+        if (mWriter != null) {
+            mWriter.flush();
+            mOutputStream.getFD().sync();
+            mWriter.close();
+            mUnsyncedCount = 0;
+        }
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        int count = 0;
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(fos, CHARSET));
+            if (mFile.isFile()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET))) {
+                    String line;
+                    long lastSeq = 0;
+                    while ((line = reader.readLine()) != null) {
+                        final Entry entry = decode(line);
+                        if (entry != null && entry.seq > mAckedSeq && entry.seq > lastSeq) {
+                            writer.write(line);
+                            writer.write('\n');
+                            lastSeq = entry.seq;
+                            count++;
+                        }
+                    }
+                }
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("can't rename " + tempFile + " to " + mFile);
+        }
+        logger.d("compacted " + mFile + ": " + (mEntriesCount - count) + " entries removed");
+        mEntriesCount = count;
+        mAckedCount = 0;
+        openWriter();
+    }
+
+    private void readAck() {
+        if (!mAckFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mAckFile), CHARSET))) {
+            final String line = reader.readLine();
+            mAckedSeq = line != null ? Long.parseLong(line.trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            // entries will be delivered again: better than lost ones
+            logger.e("can't read " + mAckFile, e);
+            mAckedSeq = 0;
+        }
+    }
+
+    private void writeAck() throws IOException {
+        final File tempFile = new File(mAckFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            fos.write(String.valueOf(mAckedSeq).getBytes(CHARSET));
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(mAckFile)) {
+            throw new IOException("can't rename " + tempFile + " to " + mAckFile);
+        }
+    }
+
+    @NotNull
+    private static String encode(@NotNull Entry entry) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(entry.seq).append('\t')
+                .append(entry.timestamp).append('\t')
+                .append(entry.type.name()).append('\t')
+                .append(entry.positionMs).append('\t')
+                .append(entry.durationMs).append('\t')
+                .append(escape(entry.track)).append('\t')
+                .append(escape(entry.artist)).append('\t')
+                .append(escape(entry.title)).append('\t')
+                .append(escape(entry.album));
+        sb.append('\t').append(Long.toHexString(crc(sb))).append('\n');
+        return sb.toString();
+    }
+
+    @Nullable
+    private static Entry decode(@NotNull String line) {
+        final int crcIndex = line.lastIndexOf('\t');
+        if (crcIndex < 0) {
+            return null;
+        }
+        try {
+            if (Long.parseLong(line.substring(crcIndex + 1), 16) != crc(line.substring(0, crcIndex))) {
+                return null;
+            }
+            final String[] parts = line.substring(0, crcIndex).split("\t", -1);
+            if (parts.length != 9) {
+                return null;
+            }
+            return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Type.valueOf(parts[2]),
+                    unescape(parts[5]), Long.parseLong(parts[3]), Long.parseLong(parts[4]),
+                    unescape(parts[6]), unescape(parts[7]), unescape(parts[8]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static long crc(@NotNull CharSequence s) {
+        final CRC32 crc = new CRC32();
+        crc.update(s.toString().getBytes(CHARSET));
+        return crc.getValue();
+    }
+
+    /**
+     * null and empty strings are both written as empty
+     */
+    @NotNull
+    private static String escape(@Nullable String s) {
+        if (TextUtils.isEmpty(s)) {
+            return "";
+        }
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    @Nullable
+    private static String unescape(@NotNull String s) {
+        if (s.isEmpty()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                final char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public enum Type {
+        START, PAUSE, RESUME, COMPLETE, STOP
+    }
+
+    public static final class Entry {
+
+        public final long seq;
+
+        public final long timestamp;
+
+        @NotNull
+        public final Type type;
+
+        /**
+         * uri or other track identity
+         */
+        @Nullable
+        public final String track;
+
+        /**
+         * -1 if unknown
+         */
+        public final long positionMs;
+
+        /**
+         * -1 if unknown
+         */
+        public final long durationMs;
+
+        @Nullable
+        public final String artist;
+
+        @Nullable
+        public final String title;
+
+        @Nullable
+        public final String album;
+
+        Entry(long seq, long timestamp, @NotNull Type type, @Nullable String track, long positionMs, long durationMs,
+              @Nullable String artist, @Nullable String title, @Nullable String album) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.track = track;
+            this.positionMs = positionMs;
+            this.durationMs = durationMs;
+            this.artist = artist;
+            this.title = title;
+            this.album = album;
+        }
+
+        @NotNull
+        public JSONObject toJson() throws JSONException {
+            final JSONObject json = new JSONObject();
+            json.put("seq", seq);
+            json.put("timestamp", timestamp);
+            json.put("type", type.name());
+            json.putOpt("track", track);
+            json.put("position", positionMs);
+            json.put("duration", durationMs);
+            json.putOpt("artist", artist);
+            json.putOpt("title", title);
+            json.putOpt("album", album);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "seq=" + seq +
+                    ", timestamp=" + timestamp +
+                    ", type=" + type +
+                    ", track='" + track + '\'' +
+                    ", positionMs=" + positionMs +
+                    ", durationMs=" + durationMs +
+                    ", artist='" + artist + '\'' +
+                    ", title='" + title + '\'' +
+                    ", album='" + album + '\'' +
+                    '}';
+        }
+    }
+}
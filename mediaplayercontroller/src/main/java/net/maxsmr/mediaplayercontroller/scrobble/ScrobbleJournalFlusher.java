@@ -0,0 +1,169 @@
+package net.maxsmr.mediaplayercontroller.scrobble;
+
+import net.maxsmr.commonutils.logger.BaseLogger;
+import net.maxsmr.commonutils.logger.holder.BaseLoggerHolder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically delivers pending {@link ScrobbleJournal} entries to {@link ScrobbleSink} in batches
+ * and acknowledges them; on failure delivery is retried with exponential backoff
+ */
+public class ScrobbleJournalFlusher {
+
+    private static final BaseLogger logger = BaseLoggerHolder.getInstance().getLogger(ScrobbleJournalFlusher.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    public static final long DEFAULT_INTERVAL_MS = 60 * 1000;
+
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30 * 60 * 1000;
+
+    @NotNull
+    private final ScrobbleJournal mJournal;
+
+    @NotNull
+    private final ScrobbleSink mSink;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, ScrobbleJournalFlusher.class.getSimpleName());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+    private long mIntervalMs = DEFAULT_INTERVAL_MS;
+
+    private long mMaxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+    /**
+     * 0 if last delivery succeeded
+     */
+    private long mBackoffMs = 0;
+
+    @Nullable
+    private ScheduledFuture<?> mNextFuture;
+
+    private boolean mStarted = false;
+
+    public ScrobbleJournalFlusher(@NotNull ScrobbleJournal journal, @NotNull ScrobbleSink sink) {
+        mJournal = journal;
+        mSink = sink;
+    }
+
+    public synchronized void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("incorrect batchSize: " + batchSize);
+        }
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * @param intervalMs period of delivery attempts, when previous one succeeded
+     * @param maxBackoffMs maximum delay between attempts after failures
+     */
+    public synchronized void setIntervals(long intervalMs, long maxBackoffMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("incorrect intervalMs: " + intervalMs);
+        }
+        if (maxBackoffMs < intervalMs) {
+            throw new IllegalArgumentException("incorrect maxBackoffMs: " + maxBackoffMs);
+        }
+        mIntervalMs = intervalMs;
+        mMaxBackoffMs = maxBackoffMs;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    public synchronized void start() {
+        if (mExecutor.isShutdown()) {
+            throw new IllegalStateException(ScrobbleJournalFlusher.class.getSimpleName() + " was released");
+        }
+        if (!mStarted) {
+            mStarted = true;
+            schedule(0);
+        }
+    }
+
+    public synchronized void stop() {
+        if (mStarted) {
+            mStarted = false;
+            cancelNext();
+        }
+    }
+
+    /**
+     * requests delivery as soon as possible (e.g. when connectivity is restored), backoff is reset
+     */
+    public synchronized void flushNow() {
+        if (mStarted) {
+            mBackoffMs = 0;
+            schedule(0);
+        }
+    }
+
+    public synchronized void release() {
+        stop();
+        mExecutor.shutdown();
+    }
+
+    private void schedule(long delayMs) {
+        cancelNext();
+        mNextFuture = mExecutor.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelNext() {
+        if (mNextFuture != null) {
+            mNextFuture.cancel(false);
+            mNextFuture = null;
+        }
+    }
+
+    private void flush() {
+        final int batchSize;
+        synchronized (this) {
+            if (!mStarted) {
+                return;
+            }
+            batchSize = mBatchSize;
+        }
+        boolean success = true;
+        int delivered = 0;
+        try {
+            List<ScrobbleJournal.Entry> batch;
+            while (!mJournal.isClosed() && !(batch = mJournal.readPending(batchSize)).isEmpty()) {
+                mSink.deliver(batch);
+                mJournal.acknowledge(batch.get(batch.size() - 1).seq);
+                delivered += batch.size();
+                synchronized (this) {
+                    if (!mStarted) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.e("can't deliver scrobble entries", e);
+            success = false;
+        }
+        if (delivered > 0) {
+            logger.d("delivered " + delivered + " entries");
+        }
+        synchronized (this) {
+            if (mStarted) {
+                mBackoffMs = success ? 0 : Math.min(mMaxBackoffMs, mBackoffMs > 0 ? mBackoffMs * 2 : mIntervalMs);
+                schedule(success ? mIntervalMs : mBackoffMs);
+            }
+        }
+    }
+}
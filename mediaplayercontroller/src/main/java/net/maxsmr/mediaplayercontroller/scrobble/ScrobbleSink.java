@@ -0,0 +1,20 @@
+package net.maxsmr.mediaplayercontroller.scrobble;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of {@link ScrobbleJournal} entries
+ */
+public interface ScrobbleSink {
+
+    /**
+     * called on flusher thread; normal return means batch was accepted and will be acknowledged
+     *
+     * @param entries not empty, in sequence order
+     * @throws IOException if batch wasn't accepted, it will be delivered again later
+     */
+    void deliver(@NotNull List<ScrobbleJournal.Entry> entries) throws IOException;
+}